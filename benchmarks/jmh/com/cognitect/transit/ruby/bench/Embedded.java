@@ -0,0 +1,68 @@
+// Copyright 2014 Cognitect. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS-IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cognitect.transit.ruby.bench;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jruby.Ruby;
+import org.jruby.RubyInstanceConfig;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * A JRuby runtime with transit and benchmarks/jmh/transit_benchmarks.rb
+ * loaded. The load path comes from the transit.load_path system
+ * property, which rake jmh sets to its own load path, so the runtime
+ * finds the same gems and lib/transit.jar as the specs do.
+ */
+final class Embedded {
+    final Ruby runtime;
+    final ThreadContext context;
+    final IRubyObject benchmarks;
+
+    Embedded() {
+        RubyInstanceConfig config = new RubyInstanceConfig();
+        config.setLoadPaths(loadPaths());
+        runtime = Ruby.newInstance(config);
+        runtime.evalScriptlet("require 'transit'; require 'transit_benchmarks'");
+        context = runtime.getCurrentContext();
+        benchmarks = runtime.getModule("TransitBenchmarks");
+    }
+
+    private static List<String> loadPaths() {
+        String path = System.getProperty("transit.load_path");
+        if (path == null) throw new IllegalStateException("Run with -Dtransit.load_path, as rake jmh does");
+        List<String> paths = new ArrayList<String>();
+        for (String p : path.split(File.pathSeparator)) {
+            if (p.length() > 0) paths.add(p);
+        }
+        return paths;
+    }
+
+    IRubyObject call(String name, IRubyObject... args) {
+        return benchmarks.callMethod(context, name, args);
+    }
+
+    IRubyObject payload(String name) {
+        return call("payload", runtime.newString(name));
+    }
+
+    void tearDown() {
+        runtime.tearDown();
+    }
+}
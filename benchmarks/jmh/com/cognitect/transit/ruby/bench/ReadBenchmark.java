@@ -0,0 +1,77 @@
+// Copyright 2014 Cognitect. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS-IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cognitect.transit.ruby.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.jruby.runtime.builtin.IRubyObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reads a payload, written once in setup, with Unmarshaler::Json (for
+ * json and json_verbose) or MessagePack. Each op resets one reader to
+ * the start of the same io, so only the read itself is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 10, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ReadBenchmark {
+    @Param({"json", "json_verbose", "msgpack"})
+    public String format;
+
+    @Param({"records", "keywords", "nested", "strings", "tagged", "custom"})
+    public String payload;
+
+    private Embedded ruby;
+    private IRubyObject io;
+    private IRubyObject reader;
+
+    @Setup
+    public void setup() {
+        ruby = new Embedded();
+        IRubyObject formatName = ruby.runtime.newString(format);
+        IRubyObject written = ruby.call("marshaler", formatName)
+                .callMethod(ruby.context, "encode", ruby.payload(payload));
+        io = ruby.call("io", written);
+        reader = ruby.call("reader", formatName, io);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ruby.tearDown();
+    }
+
+    @Benchmark
+    public IRubyObject read() {
+        io.callMethod(ruby.context, "rewind");
+        reader.callMethod(ruby.context, "reset", io);
+        return reader.callMethod(ruby.context, "read");
+    }
+}
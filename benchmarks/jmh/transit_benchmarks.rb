@@ -0,0 +1,77 @@
+# Copyright 2014 Cognitect. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS-IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+# Payloads and readers/writers for the JMH benchmarks in
+# com.cognitect.transit.ruby.bench, loaded into the JRuby runtime each
+# benchmark embeds.
+module TransitBenchmarks
+  Point = Struct.new(:x, :y)
+
+  class PointWriteHandler
+    def tag(_) "point" end
+    def rep(p) [p.x, p.y] end
+    def string_rep(_) nil end
+  end
+
+  class PointReadHandler
+    def from_rep(rep) Point.new(*rep) end
+  end
+
+  WRITE_HANDLERS = {Point => PointWriteHandler.new}
+  READ_HANDLERS  = {"point" => PointReadHandler.new}
+
+  def self.nested(depth)
+    depth == 0 ? {:leaf => true} : {:depth => depth, :children => [nested(depth - 1), depth]}
+  end
+
+  PAYLOADS = {
+    # an array of flat records with repeating keys
+    "records" => (1..200).map {|i|
+      {"id" => i, "name" => "user #{i}", "email" => "user#{i}@example.com",
+       "active" => i.even?, "score" => i * 1.5, "tags" => ["a", "b", "c"]}
+    },
+    # maps keyed and valued by keywords, which are cached
+    "keywords" => (1..100).map {|i|
+      Hash[(1..20).map {|k| [:"key_#{k}", :"value_#{(i + k) % 7}"]}]
+    },
+    # maps and arrays nested deep, a few values at each level (msgpack
+    # allows at most 128 open arrays and maps)
+    "nested" => nested(32),
+    # a few strings too long to cache
+    "strings" => (1..8).map {|i| ("x" * 8192) + i.to_s},
+    # values written and read by the stock tagged handlers
+    "tagged" => (1..100).map {|i|
+      [Time.at(1400000000 + i), Transit::UUID.new, Addressable::URI.parse("http://example.com/#{i}"),
+       Set.new([i, i + 1]), BigDecimal.new("#{i}.25"), Transit::Symbol.new("sym#{i}")]
+    },
+    # values written and read by ruby handlers
+    "custom" => (1..500).map {|i| Point.new(i, -i)}
+  }
+
+  def self.payload(name)
+    PAYLOADS.fetch(name)
+  end
+
+  def self.marshaler(format)
+    Transit::Writer.marshaler(format.to_sym, nil, :handlers => WRITE_HANDLERS)
+  end
+
+  def self.reader(format, io)
+    Transit::Reader.new(format.to_sym, io, :handlers => READ_HANDLERS)
+  end
+
+  def self.io(string)
+    StringIO.new(string)
+  end
+end
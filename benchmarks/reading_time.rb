@@ -0,0 +1,87 @@
+# Copyright 2014 Cognitect. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS-IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+$LOAD_PATH << File.expand_path("../../lib", __FILE__)
+require 'transit'
+require 'benchmark'
+
+n = 40
+
+# Mostly scalars: the values the parser hands to the reader's
+# array/map builders for conversion to Ruby objects.
+records = (1..10000).map do |i|
+  {"id"     => i,
+   "name"   => "name #{i}",
+   "score"  => i * 1.5,
+   "active" => i.even?,
+   "tags"   => [i, i + 1, "a", "b", nil]}
+end
+
+[:json, :msgpack].each do |format|
+  io = StringIO.new('', 'w+')
+  Transit::Writer.new(format, io).write(records)
+  encoded = io.string
+
+  Benchmark.benchmark do |bm|
+    puts "Transit::Reader.new(#{format.inspect}, io).read (#{encoded.bytesize} bytes)"
+    5.times do
+      bm.report do
+        n.times do
+          Transit::Reader.new(format, StringIO.new(encoded)).read
+        end
+      end
+    end
+    puts
+  end
+end
+
+__END__
+
+Before and after switching the reader's Java -> Ruby value conversion from
+TransitTypeConverter.needsCostomConverter + JavaUtil.convertJavaToUsableRubyObject
+to TransitTypeConverter.convertElementToRuby (JRuby 1.7.27, Java 8).
+
+Before:
+
+$ jruby benchmarks/reading_time.rb
+Transit::Reader.new(:json, io).read (863188 bytes)
+   5.380000   0.090000   5.470000 (  5.520000)
+   2.700000   0.010000   2.710000 (  2.742000)
+   2.660000   0.030000   2.690000 (  2.726000)
+   3.030000   0.030000   3.060000 (  3.132000)
+   3.200000   0.020000   3.220000 (  3.288000)
+
+Transit::Reader.new(:msgpack, io).read (507764 bytes)
+   9.840000   0.080000   9.920000 ( 10.119000)
+   9.290000   0.060000   9.350000 (  9.522000)
+   7.390000   0.070000   7.460000 (  7.763000)
+   6.750000   0.040000   6.790000 (  6.880000)
+   8.160000   0.040000   8.200000 (  8.320000)
+
+After:
+
+$ jruby benchmarks/reading_time.rb
+Transit::Reader.new(:json, io).read (863188 bytes)
+   2.980000   0.060000   3.040000 (  3.085000)
+   1.750000   0.010000   1.760000 (  1.778000)
+   1.660000   0.000000   1.660000 (  1.684000)
+   1.540000   0.000000   1.540000 (  1.568000)
+   2.010000   0.020000   2.030000 (  2.054000)
+
+Transit::Reader.new(:msgpack, io).read (507764 bytes)
+   7.260000   0.050000   7.310000 (  7.381000)
+   6.470000   0.030000   6.500000 (  6.578000)
+   7.640000   0.070000   7.710000 (  7.862000)
+   8.270000   0.060000   8.330000 (  8.467000)
+   7.620000   0.050000   7.670000 (  7.827000)
@@ -0,0 +1,256 @@
+# Copyright 2014 Cognitect. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS-IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+# Times Transit::Writer and Transit::Reader end to end, in every format,
+# over fixed corpora, on whichever Ruby runs it: Oj and msgpack on CRuby,
+# the java extension on JRuby. For each corpus, size, format and
+# direction it reports MB/s, values/s and the peak RSS of the process.
+#
+# Corpora:
+#
+#   exemplars  the transit-format simple exemplars, when checked out next
+#              to this repo as the specs expect
+#   records    a stream of flat records, as many as fill each size, cycling
+#              through a prebuilt pool of up to 1000
+#   tree       one tree of maps and arrays, deep enough to fill each size
+#
+# Each corpus is written once per format to a temp file, which the read
+# runs then read back. Writes go to the null device.
+#
+#   jruby benchmarks/throughput.rb --sizes 1K,1M,64M --save baseline-jruby.json
+#   jruby benchmarks/throughput.rb --sizes 1K,1M,64M --baseline baseline-jruby.json
+#
+# With --baseline, exits with 1 when MB/s is down by more than the
+# threshold (10% by default) anywhere against the baseline, which is the
+# --save output of an earlier run on the same Ruby and machine. Numbers
+# only compare on one machine, so no baselines are kept in the repo.
+# Cases the baseline has no entry for, such as sizes it was not run
+# with, are listed on stderr.
+
+$LOAD_PATH << File.expand_path("../../lib", __FILE__)
+require 'transit'
+require 'benchmark'
+require 'json'
+require 'optparse'
+require 'tempfile'
+
+module Throughput
+  EXEMPLARS = File.expand_path("../../../transit-format/examples/0.8/simple", __FILE__)
+  UNITS = {"" => 1, "K" => 1024, "M" => 1024 ** 2, "G" => 1024 ** 3}
+
+  module_function
+
+  def parse_size(s)
+    m = /\A(\d+)([KMG]?)B?\z/i.match(s) or raise ArgumentError, "Bad size #{s.inspect}"
+    Integer(m[1]) * UNITS[m[2].upcase]
+  end
+
+  def format_size(bytes)
+    unit = UNITS.keys.reverse.find {|u| bytes >= UNITS[u] && bytes % UNITS[u] == 0}
+    "#{bytes / UNITS[unit]}#{unit}B"
+  end
+
+  def record(i)
+    {"id" => i, "name" => "name #{i}", "email" => "user#{i}@example.com",
+     "score" => i * 1.5, "active" => i.even?, "tags" => [:a, :b, "c"]}
+  end
+
+  # Records, as many as encode to about size bytes as json. They cycle
+  # through a pool built up front, so the timed writes build none.
+  def records(size)
+    count = [size / Transit.encode(record(1), :json).bytesize, 1].max
+    pool = Array.new([count, 1000].min) {|i| record(i)}
+    Enumerator.new {|y| count.times {|i| y << pool[i % pool.size]}}
+  end
+
+  # A tree with four children at each level. The children are the same
+  # object, so even the largest trees take little memory to write, but
+  # each is written, and read back, in full.
+  def tree(size)
+    node = record(0)
+    depth = 0
+    while Transit.encode(node, :json).bytesize * 4 <= size
+      depth += 1
+      node = {"depth" => depth, "children" => Array.new(4, node)}
+    end
+    [node]
+  end
+
+  def exemplars
+    files = Dir[File.join(EXEMPLARS, "*.json")].reject {|f| f.end_with?(".verbose.json")}.sort
+    files.map {|f| File.open(f) {|io| Transit::Reader.new(:json, io).read}}
+  end
+
+  # Peak RSS in MB, on Linux only. Reset before each case where the
+  # kernel allows it, otherwise the peak so far.
+  def reset_peak_rss
+    File.write("/proc/self/clear_refs", "5") rescue nil
+  end
+
+  def peak_rss
+    status = File.read("/proc/self/status") rescue nil
+    status && status[/^VmHWM:\s+(\d+)/, 1].to_i / 1024.0
+  end
+
+  def write(format, values, io)
+    writer = Transit::Writer.new(format, io)
+    count = 0
+    values.each {|v| writer.write(v); count += 1}
+    io.flush
+    count
+  end
+
+  def read(format, path)
+    count = 0
+    File.open(path, "rb") {|io| Transit::Reader.new(format, io).each {|_| count += 1}}
+    count
+  end
+
+  # Runs block runs times, after warmup runs, and returns the values it
+  # counted and the fastest time. Each run calls block again until it has
+  # taken min_time, so small corpora are timed as accurately as large
+  # ones, and the time returned is per call.
+  def time(runs, warmup, min_time)
+    warmup.times { yield }
+    best = nil
+    count = nil
+    runs.times do
+      GC.start
+      calls = 0
+      elapsed = Benchmark.realtime do
+        start = Time.now
+        begin
+          count = yield
+          calls += 1
+        end while Time.now - start < min_time
+      end
+      best = elapsed / calls if best.nil? || elapsed / calls < best
+    end
+    [count, best]
+  end
+
+  def run(options)
+    engine = defined?(RUBY_ENGINE) ? RUBY_ENGINE : "ruby"
+    cases = []
+    options[:corpora].each do |corpus|
+      if corpus == "exemplars"
+        values = exemplars
+        if values.empty?
+          warn "Skipping exemplars: none found in #{EXEMPLARS}"
+        else
+          cases << [corpus, nil, values]
+        end
+      else
+        options[:sizes].each {|size| cases << [corpus, size, send(corpus, size)]}
+      end
+    end
+
+    results = {}
+    regressed = []
+    missing = []
+    printf("%-6s %-10s %-7s %-13s %-6s %10s %12s %9s %9s\n",
+           "ruby", "corpus", "size", "format", "op", "MB/s", "values/s", "RSS MB", "baseline")
+    cases.each do |corpus, size, values|
+      options[:formats].each do |format|
+        file = Tempfile.new("transit-throughput")
+        file.binmode
+        begin
+          write(format, values, file)
+          file.close
+          bytes = File.size(file.path)
+          ops = {
+            "write" => lambda { File.open(File::NULL, "wb") {|io| write(format, values, io)} },
+            "read"  => lambda { read(format, file.path) }
+          }
+          ops.each do |op, body|
+            reset_peak_rss
+            count, seconds = time(options[:runs], options[:warmup], options[:min_time]) { body.call }
+            key = [engine, corpus, size ? format_size(size) : "-", format, op].join("/")
+            result = {"bytes" => bytes, "values" => count,
+                      "mb_per_s" => bytes / 1024.0 / 1024.0 / seconds,
+                      "values_per_s" => count / seconds,
+                      "peak_rss_mb" => peak_rss}
+            results[key] = result
+            baseline = options[:baseline] && options[:baseline][key]
+            missing << key if options[:baseline] && baseline.nil?
+            regressed << key if report(key, result, baseline, options[:threshold])
+          end
+        ensure
+          file.close!
+        end
+      end
+    end
+    [results, regressed, missing]
+  end
+
+  # Prints the result and returns whether it regressed against baseline.
+  def report(key, result, baseline, threshold)
+    change = baseline && (result["mb_per_s"] / baseline["mb_per_s"] - 1)
+    regressed = !!(change && change < -threshold)
+    printf("%-6s %-10s %-7s %-13s %-6s %10.2f %12.0f %9s %9s%s\n",
+           *key.split("/"), result["mb_per_s"], result["values_per_s"],
+           result["peak_rss_mb"] ? "%.0f" % result["peak_rss_mb"] : "-",
+           change ? "%+.1f%%" % (change * 100) : "-",
+           regressed ? "  REGRESSED" : "")
+    regressed
+  end
+
+  def main(argv)
+    options = {
+      :corpora   => %w[exemplars records tree],
+      :sizes     => %w[1K 1M 16M].map {|s| parse_size(s)},
+      :formats   => [:json, :json_verbose, :msgpack],
+      :runs      => 3,
+      :warmup    => (Transit::jruby? ? 2 : 0),
+      :min_time  => 0.5,
+      :threshold => 0.10,
+      :baseline  => nil
+    }
+    OptionParser.new do |o|
+      o.banner = "Usage: #{$0} [options]"
+      o.on("--corpora LIST", Array, "exemplars,records,tree") {|v| options[:corpora] = v}
+      o.on("--sizes LIST", Array, "sizes of records and tree, from 1K to 1G (default 1K,1M,16M)") do |v|
+        options[:sizes] = v.map {|s| parse_size(s)}
+      end
+      o.on("--formats LIST", Array, "json,json_verbose,msgpack") {|v| options[:formats] = v.map(&:to_sym)}
+      o.on("--runs N", Integer, "timed runs per case, the fastest counts (default 3)") {|v| options[:runs] = v}
+      o.on("--warmup N", Integer, "untimed runs first (default 2 on JRuby, 0 elsewhere)") {|v| options[:warmup] = v}
+      o.on("--min-time SECONDS", Float, "repeat each run for at least this long (default 0.5)") do |v|
+        options[:min_time] = v
+      end
+      o.on("--baseline FILE", "compare with the results saved in FILE") do |v|
+        options[:baseline] = JSON.parse(File.read(v))
+      end
+      o.on("--threshold FRACTION", Float, "drop in MB/s that fails against the baseline (default 0.10)") do |v|
+        options[:threshold] = v
+      end
+      o.on("--save FILE", "save the results to FILE, as a baseline for later runs") {|v| options[:save] = v}
+    end.parse!(argv)
+
+    unknown = options[:corpora] - %w[exemplars records tree]
+    raise ArgumentError, "Unknown corpora #{unknown.join(', ')}" unless unknown.empty?
+
+    results, regressed, missing = run(options)
+    File.write(options[:save], JSON.pretty_generate(results)) if options[:save]
+    unless missing.empty?
+      warn "\n#{missing.size} not in the baseline, so not checked: #{missing.join(', ')}"
+    end
+    unless regressed.empty?
+      puts "\n#{regressed.size} regressed by more than #{(options[:threshold] * 100).round}%: #{regressed.join(', ')}"
+      exit 1
+    end
+  end
+end
+
+Throughput.main(ARGV) if $0 == __FILE__
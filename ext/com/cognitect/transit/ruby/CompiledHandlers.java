@@ -0,0 +1,88 @@
+// Copyright 2014 Cognitect. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS-IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cognitect.transit.ruby;
+
+import java.util.Map;
+
+import org.jruby.RubyHash;
+
+/**
+ * Keeps a compiled java handler table on the ruby handlers Hash it was
+ * compiled from. The ruby side hands every reader/writer with the same
+ * handler configuration the same Hash, so they all share one table, and
+ * the table goes away with the Hash.
+ *
+ * Each table keeps the Hash's entries as they were when it was compiled
+ * and is compiled again if any entry has changed (by identity) since.
+ */
+public final class CompiledHandlers {
+
+    public interface Compiler<T> {
+        T compile();
+    }
+
+    private static final class Entry {
+        // keys and values, alternating, in the Hash's order
+        final Object[] entries;
+        final Object table;
+
+        Entry(Object[] entries, Object table) {
+            this.entries = entries;
+            this.table = table;
+        }
+
+        boolean matches(RubyHash handlers) {
+            if (handlers.size() * 2 != entries.length) return false;
+            int i = 0;
+            for (Object o : handlers.directEntrySet()) {
+                Map.Entry<?, ?> entry = (Map.Entry<?, ?>)o;
+                if (entries[i++] != entry.getKey() || entries[i++] != entry.getValue()) return false;
+            }
+            return true;
+        }
+    }
+
+    private CompiledHandlers() {}
+
+    /**
+     * Returns the table stored on handlers under name, compiling and storing
+     * it first if there is none or handlers has changed. Two threads may
+     * compile the same table at once; either result is good.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T get(RubyHash handlers, String name, Compiler<T> compiler) {
+        String key = "__transit_" + name + "__";
+        Object cached = handlers.getInternalVariable(key);
+        if (cached instanceof Entry && ((Entry)cached).matches(handlers)) {
+            return (T)((Entry)cached).table;
+        }
+        Object[] entries = entries(handlers);
+        T table = compiler.compile();
+        handlers.setInternalVariable(key, new Entry(entries, table));
+        return table;
+    }
+
+    private static Object[] entries(RubyHash handlers) {
+        Object[] entries = new Object[handlers.size() * 2];
+        int i = 0;
+        for (Object o : handlers.directEntrySet()) {
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>)o;
+            entries[i++] = entry.getKey();
+            entries[i++] = entry.getValue();
+        }
+        return entries;
+    }
+}
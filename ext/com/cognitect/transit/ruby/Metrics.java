@@ -0,0 +1,268 @@
+// Copyright 2014 Cognitect. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS-IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cognitect.transit.ruby;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import com.cognitect.transit.impl.Constants;
+
+/**
+ * The counters behind a Transit::Metrics, shared by every reader and
+ * writer created with it, on any thread. Readers and writers without
+ * one only ever check for null, so they pay nothing for this.
+ *
+ * Time is measured around each top-level value, and around each call
+ * into a ruby handler made meanwhile. The side timing a value on a
+ * thread is kept in a thread local, as handlers are compiled once and
+ * shared by readers and writers with and without metrics.
+ */
+public class Metrics implements MetricsMXBean {
+    private static final ThreadLocal<Side> CURRENT = new ThreadLocal<Side>();
+
+    private final Ruby runtime;
+    public final Side read = new Side();
+    public final Side write = new Side();
+
+    public Metrics(Ruby runtime) {
+        this.runtime = runtime;
+    }
+
+    /**
+     * Returns the counters of the Transit::Metrics given as :metrics in
+     * opts, or null when there is none.
+     */
+    public static Metrics fromOptions(ThreadContext context, IRubyObject opts) {
+        if (!(opts instanceof RubyHash)) return null;
+        IRubyObject metrics = ((RubyHash)opts).fastARef(context.getRuntime().newSymbol("metrics"));
+        if (metrics == null || metrics.isNil()) return null;
+        return (Metrics)metrics.callMethod(context, "counters").toJava(Metrics.class);
+    }
+
+    /**
+     * The side timing a value on this thread, or null.
+     */
+    public static Side current() {
+        return CURRENT.get();
+    }
+
+    public class Side {
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong values = new AtomicLong();
+        private final AtomicLong cacheHits = new AtomicLong();
+        private final AtomicLong cacheMisses = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+        private final AtomicLong handlerNanos = new AtomicLong();
+        private final ConcurrentMap<String, AtomicLong> types = new ConcurrentHashMap<String, AtomicLong>();
+        private final ConcurrentMap<String, AtomicLong> handlerCalls = new ConcurrentHashMap<String, AtomicLong>();
+        private final ConcurrentMap<String, AtomicLong> handlerTimes = new ConcurrentHashMap<String, AtomicLong>();
+
+        public void bytes(long n) {
+            bytes.addAndGet(n);
+        }
+
+        public void value() {
+            values.incrementAndGet();
+        }
+
+        /**
+         * Counts o under the name of the ruby class it is, or becomes.
+         */
+        public void type(Object o) {
+            String name = typeName(o);
+            if (name != null) add(types, name, 1);
+        }
+
+        public void cacheHit() {
+            cacheHits.incrementAndGet();
+        }
+
+        public void cacheMiss() {
+            cacheMisses.incrementAndGet();
+        }
+
+        /**
+         * Makes this the side timing a value on this thread, returning the
+         * side to put back by exit, if another was timing one already.
+         */
+        public Side enter() {
+            Side outer = CURRENT.get();
+            CURRENT.set(this);
+            return outer;
+        }
+
+        public void exit(Side outer, long start) {
+            nanos.addAndGet(System.nanoTime() - start);
+            CURRENT.set(outer);
+        }
+
+        public void handlerCall(String key, long time) {
+            add(handlerCalls, key, 1);
+            add(handlerTimes, key, time);
+            handlerNanos.addAndGet(time);
+        }
+
+        double cacheHitRate() {
+            long hits = cacheHits.get();
+            long total = hits + cacheMisses.get();
+            return total == 0 ? 0.0 : (double)hits / total;
+        }
+
+        void reset() {
+            bytes.set(0);
+            values.set(0);
+            cacheHits.set(0);
+            cacheMisses.set(0);
+            nanos.set(0);
+            handlerNanos.set(0);
+            types.clear();
+            handlerCalls.clear();
+            handlerTimes.clear();
+        }
+
+        RubyHash toRuby() {
+            RubyHash hash = RubyHash.newHash(runtime);
+            put(hash, "bytes", bytes.get());
+            put(hash, "values", values.get());
+            hash.fastASet(runtime.newSymbol("types"), countsToRuby(types));
+            put(hash, "cache_hits", cacheHits.get());
+            put(hash, "cache_misses", cacheMisses.get());
+            RubyHash handlers = RubyHash.newHash(runtime);
+            for (Map.Entry<String, AtomicLong> entry : handlerCalls.entrySet()) {
+                RubyHash handler = RubyHash.newHash(runtime);
+                put(handler, "calls", entry.getValue().get());
+                AtomicLong time = handlerTimes.get(entry.getKey());
+                put(handler, "nanos", time == null ? 0 : time.get());
+                handlers.fastASet(runtime.newString(entry.getKey()), handler);
+            }
+            hash.fastASet(runtime.newSymbol("handlers"), handlers);
+            long total = nanos.get();
+            long inHandlers = handlerNanos.get();
+            put(hash, "nanos", total);
+            put(hash, "handler_nanos", inHandlers);
+            put(hash, "native_nanos", Math.max(0, total - inHandlers));
+            return hash;
+        }
+    }
+
+    private static void add(ConcurrentMap<String, AtomicLong> counters, String key, long n) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            AtomicLong added = new AtomicLong();
+            counter = counters.putIfAbsent(key, added);
+            if (counter == null) counter = added;
+        }
+        counter.addAndGet(n);
+    }
+
+    /**
+     * Values read come from the parsers as java objects as often as not,
+     * so they are named for the ruby class they convert to. Transit's own
+     * markers are not values and have no name.
+     */
+    String typeName(Object o) {
+        if (o instanceof IRubyObject) return ((IRubyObject)o).getMetaClass().getRealClass().getName();
+        if (o == null) return runtime.getNilClass().getName();
+        if (o instanceof String) return Constants.MAP_AS_ARRAY.equals(o) ? null : runtime.getString().getName();
+        if (o instanceof Long || o instanceof Integer) return runtime.getFixnum().getName();
+        if (o instanceof BigInteger) return runtime.getBignum().getName();
+        if (o instanceof Double || o instanceof Float) return runtime.getFloat().getName();
+        if (o instanceof Boolean) return ((Boolean)o ? runtime.getTrueClass() : runtime.getFalseClass()).getName();
+        if (o.getClass().getName().startsWith("com.cognitect.transit.")) return null;
+        return o.getClass().getSimpleName();
+    }
+
+    private void put(RubyHash hash, String key, long value) {
+        hash.fastASet(runtime.newSymbol(key), runtime.newFixnum(value));
+    }
+
+    private RubyHash countsToRuby(Map<String, AtomicLong> counters) {
+        RubyHash hash = RubyHash.newHash(runtime);
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            hash.fastASet(runtime.newString(entry.getKey()), runtime.newFixnum(entry.getValue().get()));
+        }
+        return hash;
+    }
+
+    private static Map<String, Long> toJava(Map<String, AtomicLong> counters) {
+        Map<String, Long> map = new HashMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            map.put(entry.getKey(), entry.getValue().get());
+        }
+        return map;
+    }
+
+    /**
+     * Returns the counters as a Hash, as Transit::Metrics#snapshot does.
+     */
+    public RubyHash snapshot() {
+        RubyHash hash = RubyHash.newHash(runtime);
+        hash.fastASet(runtime.newSymbol("read"), read.toRuby());
+        hash.fastASet(runtime.newSymbol("write"), write.toRuby());
+        return hash;
+    }
+
+    public void reset() {
+        read.reset();
+        write.reset();
+    }
+
+    private static ObjectName objectName(String name) throws JMException {
+        return new ObjectName("com.cognitect.transit:type=Metrics,name=" + ObjectName.quote(name));
+    }
+
+    /**
+     * Registers these counters with the platform MBean server under name,
+     * and returns the object name.
+     */
+    public String register(String name) throws JMException {
+        ObjectName objectName = objectName(name);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName.toString();
+    }
+
+    public void unregister(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName(name));
+    }
+
+    public long getBytesRead() { return read.bytes.get(); }
+    public long getBytesWritten() { return write.bytes.get(); }
+    public long getValuesRead() { return read.values.get(); }
+    public long getValuesWritten() { return write.values.get(); }
+    public double getReadCacheHitRate() { return read.cacheHitRate(); }
+    public double getWriteCacheHitRate() { return write.cacheHitRate(); }
+    public long getReadNanos() { return read.nanos.get(); }
+    public long getWriteNanos() { return write.nanos.get(); }
+    public long getReadHandlerNanos() { return read.handlerNanos.get(); }
+    public long getWriteHandlerNanos() { return write.handlerNanos.get(); }
+    public Map<String, Long> getReadTypes() { return toJava(read.types); }
+    public Map<String, Long> getWriteTypes() { return toJava(write.types); }
+    public Map<String, Long> getReadHandlerCalls() { return toJava(read.handlerCalls); }
+    public Map<String, Long> getWriteHandlerCalls() { return toJava(write.handlerCalls); }
+}
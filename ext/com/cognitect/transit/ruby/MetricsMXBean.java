@@ -0,0 +1,40 @@
+// Copyright 2014 Cognitect. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS-IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cognitect.transit.ruby;
+
+import java.util.Map;
+
+/**
+ * The attributes Metrics shows over JMX. Times are in nanoseconds, and
+ * type and handler counts are keyed as in Transit::Metrics#snapshot.
+ */
+public interface MetricsMXBean {
+    long getBytesRead();
+    long getBytesWritten();
+    long getValuesRead();
+    long getValuesWritten();
+    double getReadCacheHitRate();
+    double getWriteCacheHitRate();
+    long getReadNanos();
+    long getWriteNanos();
+    long getReadHandlerNanos();
+    long getWriteHandlerNanos();
+    Map<String, Long> getReadTypes();
+    Map<String, Long> getWriteTypes();
+    Map<String, Long> getReadHandlerCalls();
+    Map<String, Long> getWriteHandlerCalls();
+    void reset();
+}
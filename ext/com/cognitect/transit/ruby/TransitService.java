@@ -66,6 +66,10 @@ public class TransitService implements BasicLibraryService {
         });
         messagepack_unmarshaler.defineAnnotatedMethods(com.cognitect.transit.ruby.unmarshaler.MessagePack.class);
 
+        RubyClass lazy_source = unmarshaler.defineClassUnder("LazySource", runtime.getObject(),
+                ObjectAllocator.NOT_ALLOCATABLE_ALLOCATOR);
+        lazy_source.defineAnnotatedMethods(com.cognitect.transit.ruby.unmarshaler.LazyParsers.LazySource.class);
+
         RubyModule marshaler = transit.defineModuleUnder("Marshaler");
         RubyClass json_marshaler = marshaler.defineClassUnder("Json", runtime.getObject(), new ObjectAllocator() {
             private com.cognitect.transit.ruby.marshaler.Json json = null;
@@ -1,32 +1,75 @@
 package com.cognitect.transit.ruby;
 
-import java.util.Arrays;
-import java.util.List;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 
 import org.jruby.Ruby;
+import org.jruby.RubyBignum;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyString;
+import org.jruby.ext.bigdecimal.RubyBigDecimal;
+import org.jruby.javasupport.JavaUtil;
 import org.jruby.runtime.builtin.IRubyObject;
 
 public class TransitTypeConverter {
-    private static final List<String> specialString = Arrays.asList("NaN", "Infinity", "-Infinity");
 
-    public static boolean needsCostomConverter(Object o) {
-        if ((o instanceof String) && specialString.contains((String)o)) {
-            return true;
-        } else {
-            return false;
+    /**
+     * Converts an array element or map key/value produced by the parser,
+     * reading "NaN", "Infinity" and "-Infinity" as Floats.
+     */
+    public static IRubyObject convertElementToRuby(Ruby runtime, Object o) {
+        if (o instanceof String) {
+            IRubyObject f = convertStringToFloat(runtime, (String)o);
+            if (f != null) return f;
         }
+        return convertJavaToRuby(runtime, o);
     }
 
-    public static IRubyObject convertStringToFloat(Ruby runtime, Object o) {
-        String str = (String)o;
-        if ("NaN".equals(str)) {
-            return runtime.newFloat(Double.NaN);
-        } else if ("Infinity".equals(str)) {
-            return runtime.newFloat(Double.POSITIVE_INFINITY);
-        } else if ("-Infinity".equals(str)) {
-            return runtime.newFloat(Double.NEGATIVE_INFINITY);
-        } else {
+    /**
+     * Converts a value produced by the parser to a Ruby object. Checks the
+     * types the parsers actually produce before falling back to JavaUtil's
+     * generic conversion.
+     */
+    public static IRubyObject convertJavaToRuby(Ruby runtime, Object o) {
+        if (o instanceof IRubyObject) {
+            return (IRubyObject)o;
+        } else if (o instanceof String) {
+            return RubyString.newUnicodeString(runtime, (String)o);
+        } else if (o instanceof Long) {
+            return RubyFixnum.newFixnum(runtime, ((Long)o).longValue());
+        } else if (o instanceof Integer) {
+            return RubyFixnum.newFixnum(runtime, ((Integer)o).longValue());
+        } else if (o instanceof Double) {
+            return runtime.newFloat(((Double)o).doubleValue());
+        } else if (o instanceof Boolean) {
+            return runtime.newBoolean(((Boolean)o).booleanValue());
+        } else if (o == null) {
             return runtime.getNil();
+        } else if (o instanceof BigInteger) {
+            return RubyBignum.bignorm(runtime, (BigInteger)o);
+        } else if (o instanceof BigDecimal) {
+            return new RubyBigDecimal(runtime, (BigDecimal)o);
+        } else {
+            return JavaUtil.convertJavaToUsableRubyObject(runtime, o);
+        }
+    }
+
+    /**
+     * Returns the Float for "NaN", "Infinity" or "-Infinity", and null for
+     * any other string.
+     */
+    private static IRubyObject convertStringToFloat(Ruby runtime, String str) {
+        switch (str.length()) {
+            case 3:
+                if ("NaN".equals(str)) return runtime.newFloat(Double.NaN);
+                break;
+            case 8:
+                if ("Infinity".equals(str)) return runtime.newFloat(Double.POSITIVE_INFINITY);
+                break;
+            case 9:
+                if ("-Infinity".equals(str)) return runtime.newFloat(Double.NEGATIVE_INFINITY);
+                break;
         }
+        return null;
     }
 }
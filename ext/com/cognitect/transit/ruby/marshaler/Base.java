@@ -17,27 +17,48 @@ package com.cognitect.transit.ruby.marshaler;
 
 import java.io.OutputStream;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
-import java.util.Set;
 
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
+import org.jruby.RubyBignum;
+import org.jruby.RubyBoolean;
 import org.jruby.RubyClass;
+import org.jruby.RubyEnumerable;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyFloat;
 import org.jruby.RubyHash;
+import org.jruby.RubyIO;
 import org.jruby.RubyModule;
+import org.jruby.RubyNil;
+import org.jruby.RubyNumeric;
 import org.jruby.RubyObject;
 import org.jruby.RubyString;
+import org.jruby.RubySymbol;
+import org.jruby.RubyTime;
+import org.jruby.exceptions.RaiseException;
+import org.jruby.ext.bigdecimal.RubyBigDecimal;
+import org.jruby.ext.stringio.StringIO;
 import org.jruby.javasupport.JavaUtil;
 import org.jruby.runtime.Block;
+import org.jruby.runtime.BlockCallback;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
+import org.jruby.util.ByteList;
 
 import com.cognitect.transit.WriteHandler;
-import com.cognitect.transit.Writer;
+import com.cognitect.transit.impl.WriteHandlerSet;
+import com.cognitect.transit.ruby.CompiledHandlers;
+import com.cognitect.transit.ruby.Metrics;
 
 public class Base extends RubyObject {
     private static final long serialVersionUID = -3179062656279837886L;
-    protected Writer<Object> writer;
+    protected RubyWriters.WriterImpl writer;
+    // kept across write_all calls with :parallel, made on the first
+    private ParallelEncoder parallel;
+    protected OutputStream output;
+    protected RubyOutputStreams.BufferOutputStream buffer;
 
     @Override
     public Object clone() throws CloneNotSupportedException {
@@ -48,14 +69,62 @@ public class Base extends RubyObject {
         super(runtime, metaClass);
     }
 
+    /**
+     * StringIO, IO and File (but not subclasses, which may override write)
+     * get native adapters, re-targeted rather than replaced when the current
+     * output is already of the same kind. Other IOs are written through
+     * their write method. nil means the marshaler is used through encode and
+     * writes into its own buffer.
+     */
     protected OutputStream convertRubyIOToOutputStream(ThreadContext context, IRubyObject rubyObject) {
-        if (rubyObject.respondsTo("to_outputstream")) {
-            return (OutputStream) rubyObject.callMethod(context, "to_outputstream").toJava(OutputStream.class);
+        if (rubyObject.isNil()) {
+            if (buffer == null) buffer = new RubyOutputStreams.BufferOutputStream();
+            return buffer;
+        } else if (rubyObject instanceof StringIO
+                && rubyObject.getMetaClass() == context.getRuntime().getClass("StringIO")) {
+            if (output instanceof RubyOutputStreams.StringIOOutputStream) {
+                ((RubyOutputStreams.StringIOOutputStream)output).setTarget((StringIO)rubyObject);
+                return output;
+            }
+            return new RubyOutputStreams.StringIOOutputStream(context.getRuntime(), (StringIO)rubyObject);
+        } else if (rubyObject instanceof RubyIO) {
+            RubyClass type = rubyObject.getMetaClass();
+            OutputStream out = type == context.getRuntime().getIO() || type == context.getRuntime().getFile()
+                    ? ((RubyIO)rubyObject).getOutStream()
+                    : new org.jruby.util.IOOutputStream(rubyObject);
+            if (output instanceof RubyOutputStreams.IOOutputStream) {
+                ((RubyOutputStreams.IOOutputStream)output).setTarget(out);
+                return output;
+            }
+            return new RubyOutputStreams.IOOutputStream(out);
+        } else if (rubyObject.respondsTo("to_outputstream")) {
+            OutputStream out = (OutputStream) rubyObject.callMethod(context, "to_outputstream").toJava(OutputStream.class);
+            if (output instanceof RubyOutputStreams.IOOutputStream) {
+                ((RubyOutputStreams.IOOutputStream)output).setTarget(out);
+                return output;
+            }
+            return new RubyOutputStreams.IOOutputStream(out);
         } else {
             throw rubyObject.getRuntime().newArgumentError("The first argument is not IO");
         }
     }
 
+    /**
+     * Returns the handler set for @handlers, compiling it only if no other
+     * writer has compiled the same ruby handlers already.
+     */
+    @SuppressWarnings("rawtypes")
+    protected WriteHandlerSet handlerSet(final ThreadContext context, final IRubyObject opts, final boolean verbose) {
+        RubyHash rubyHandlers = (RubyHash)this.getInstanceVariable("@handlers");
+        return CompiledHandlers.get(rubyHandlers, verbose ? "verbose_write_handlers" : "write_handlers",
+                new CompiledHandlers.Compiler<WriteHandlerSet>() {
+                    public WriteHandlerSet compile() {
+                        Map<Class, WriteHandler<?, ?>> handlers = convertRubyHandlersToJavaHandler(context, opts);
+                        return verbose ? RubyWriters.verboseHandlerSet(handlers) : RubyWriters.handlerSet(handlers);
+                    }
+                });
+    }
+
     /**
      * Converts the handlers defined in Ruby to java and wraps them in a single java handler
      * that delegates to the correct handler. Assumes that @handlers includes custom handlers
@@ -64,80 +133,136 @@ public class Base extends RubyObject {
     protected Map<Class, WriteHandler<?, ?>> convertRubyHandlersToJavaHandler(
             final ThreadContext context,
             IRubyObject arg) {
-        Map<Class, WriteHandler<?, ?>> result = new HashMap<Class, WriteHandler<?, ?>>(1);
+        Map<Class, WriteHandler<?, ?>> result = new HashMap<Class, WriteHandler<?, ?>>();
         RubyHash rubyHandlers = (RubyHash)this.getInstanceVariable("@handlers");
-        final Map<String, WriteHandler<Object, Object>> javaHandlers = new HashMap<String, WriteHandler<Object, Object>>();
+        Map<RubyModule, WriteHandler<Object, Object>> javaHandlers =
+                new IdentityHashMap<RubyModule, WriteHandler<Object, Object>>(rubyHandlers.size());
 
-        for (Map.Entry entry : (Set<Map.Entry>)rubyHandlers.entrySet()) {
-            javaHandlers.put(((RubyModule)entry.getKey()).getName(),
-                    convertRubyToJava(context, (RubyObject)entry.getValue()));
+        for (Object o : rubyHandlers.directEntrySet()) {
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>)o;
+            javaHandlers.put((RubyModule)entry.getKey(),
+                    convertRubyToJava(context.getRuntime(), (RubyObject)entry.getValue()));
         }
-        result.put(RubyObject.class, new WriteHandler<Object, Object>() {
-            @Override
-            public <V> WriteHandler<Object, V> getVerboseHandler() {
-                return null;
-            }
-
-            private WriteHandler<Object, Object> findHandler(Object o) {
-                if (o instanceof RubyObject) {
-                    RubyArray ancestors = (RubyArray)((RubyObject)o).getMetaClass().callMethod(context, "ancestors");
-                    for (Object ancestor : ancestors) {
-                        WriteHandler<Object, Object> handler = javaHandlers.get(((RubyModule)ancestor).getName());
-                        if (handler != null) return handler;
-                    }
-                }
-                return null;
-            }
-
-            @Override
-            public Object rep(Object o) {
-                WriteHandler<Object, Object> handler = findHandler(o);
-                if (handler != null) return handler.rep(o);
-                return null;
-            }
+        DispatchingWriteHandler dispatcher = new DispatchingWriteHandler(javaHandlers);
+        result.put(RubyObject.class, dispatcher);
+        registerCoreHandlers(context.getRuntime(), rubyHandlers, dispatcher, result);
+        return result;
+    }
 
-            @Override
-            public String stringRep(Object o) {
-                WriteHandler<Object, Object> handler = findHandler(o);
-                if (handler != null) return handler.stringRep(o);
-                return null;
-            }
+    /**
+     * Registers java handlers for the core ruby types whose handler in @handlers
+     * is still the stock one from Transit::WriteHandlers. Types with a custom
+     * handler are left to the dispatcher.
+     */
+    @SuppressWarnings("rawtypes")
+    private void registerCoreHandlers(
+            Ruby runtime,
+            RubyHash rubyHandlers,
+            WriteHandler<Object, Object> dispatcher,
+            Map<Class, WriteHandler<?, ?>> result) {
+        RubyClass nilClass = runtime.getNilClass();
+        if (isStock(rubyHandlers, nilClass, "NilHandler")) {
+            result.put(RubyNil.class, new RubyWriteHandlers.NilWriteHandler(nilClass, dispatcher));
+        }
+        RubyClass symbolClass = runtime.getSymbol();
+        if (isStock(rubyHandlers, symbolClass, "KeywordHandler")) {
+            result.put(RubySymbol.class, new RubyWriteHandlers.KeywordWriteHandler(symbolClass, dispatcher));
+        }
+        RubyClass stringClass = runtime.getString();
+        if (isStock(rubyHandlers, stringClass, "StringHandler")) {
+            result.put(RubyString.class, new RubyWriteHandlers.StringWriteHandler(stringClass, dispatcher));
+        }
+        RubyClass trueClass = runtime.getTrueClass();
+        RubyClass falseClass = runtime.getFalseClass();
+        if (isStock(rubyHandlers, trueClass, "TrueHandler") && isStock(rubyHandlers, falseClass, "FalseHandler")) {
+            result.put(RubyBoolean.class, new RubyWriteHandlers.BooleanWriteHandler(trueClass, falseClass, dispatcher));
+        }
+        RubyClass fixnumClass = runtime.getFixnum();
+        if (isStock(rubyHandlers, fixnumClass, "IntHandler")) {
+            result.put(RubyFixnum.class, new RubyWriteHandlers.FixnumWriteHandler(fixnumClass, dispatcher));
+        }
+        RubyClass bignumClass = runtime.getBignum();
+        if (isStock(rubyHandlers, bignumClass, "IntHandler")) {
+            result.put(RubyBignum.class, new RubyWriteHandlers.BignumWriteHandler(bignumClass, dispatcher));
+        }
+        RubyClass floatClass = runtime.getFloat();
+        if (isStock(rubyHandlers, floatClass, "FloatHandler")) {
+            result.put(RubyFloat.class, new RubyWriteHandlers.FloatWriteHandler(floatClass, dispatcher));
+        }
+        RubyClass bigDecimalClass = runtime.getClass("BigDecimal");
+        if (bigDecimalClass != null && isStock(rubyHandlers, bigDecimalClass, "BigDecimalHandler")) {
+            result.put(RubyBigDecimal.class, new RubyWriteHandlers.BigDecimalWriteHandler(bigDecimalClass, dispatcher));
+        }
+        RubyClass timeClass = runtime.getTime();
+        if (isStock(rubyHandlers, timeClass, "TimeHandler")) {
+            result.put(RubyTime.class, new RubyWriteHandlers.TimeWriteHandler(timeClass, dispatcher));
+        } else if (isStock(rubyHandlers, timeClass, "VerboseTimeHandler")) {
+            result.put(RubyTime.class, new RubyWriteHandlers.VerboseTimeWriteHandler(timeClass, dispatcher));
+        }
+        RubyClass arrayClass = runtime.getArray();
+        if (isStock(rubyHandlers, arrayClass, "ArrayHandler")) {
+            result.put(RubyArray.class, new RubyWriteHandlers.ArrayWriteHandler(arrayClass, dispatcher));
+        }
+        RubyClass hashClass = runtime.getHash();
+        if (isStock(rubyHandlers, hashClass, "MapHandler")) {
+            result.put(RubyHash.class, new RubyWriteHandlers.MapWriteHandler(hashClass, dispatcher));
+        }
+    }
 
-            @Override
-            public String tag(Object o) {
-                WriteHandler<Object, Object> handler = findHandler(o);
-                if (handler != null) return handler.tag(o);
-                return null;
+    /**
+     * True when the handler find_handler would pick for instances of type is
+     * an unmodified instance of Transit::WriteHandlers::<handlerName>.
+     */
+    private boolean isStock(RubyHash rubyHandlers, RubyClass type, String handlerName) {
+        for (IRubyObject ancestor : type.getAncestorList()) {
+            IRubyObject handler = rubyHandlers.fastARef(ancestor);
+            if (handler != null) {
+                return ("Transit::WriteHandlers::" + handlerName).equals(handler.getMetaClass().getName());
             }
-        });
-        return result;
+        }
+        return false;
     }
 
-    private WriteHandler<Object, Object> convertRubyToJava(final ThreadContext context, final RubyObject handler) {
+    /**
+     * Wraps a ruby handler. Calls go through the context of the thread that
+     * makes them, so the writer can be used from any thread, and are timed
+     * when that thread is timing a value for metrics.
+     */
+    private WriteHandler<Object, Object> convertRubyToJava(final Ruby runtime, final RubyObject handler) {
+        final String name = handler.getMetaClass().getRealClass().getName();
         return new WriteHandler<Object, Object>() {
             @Override
             public <V> WriteHandler<Object, V> getVerboseHandler() {
                 return null;
             }
 
+            private IRubyObject call(String method, Object o) {
+                IRubyObject arg = JavaUtil.convertJavaToUsableRubyObject(runtime, o);
+                Metrics.Side metrics = Metrics.current();
+                if (metrics == null) return handler.callMethod(runtime.getCurrentContext(), method, arg);
+                long start = System.nanoTime();
+                try {
+                    return handler.callMethod(runtime.getCurrentContext(), method, arg);
+                } finally {
+                    metrics.handlerCall(name, System.nanoTime() - start);
+                }
+            }
+
             @Override
             public Object rep(Object o) {
-                IRubyObject ret =
-                        handler.callMethod(context, "rep", JavaUtil.convertJavaToUsableRubyObject(context.getRuntime(), o));
+                IRubyObject ret = call("rep", o);
                 return ret.toJava(Object.class);
             }
 
             @Override
             public String stringRep(Object o) {
-                RubyString ret =
-                        (RubyString) handler.callMethod(context, "string_rep", JavaUtil.convertJavaToUsableRubyObject(context.getRuntime(), o));
+                RubyString ret = (RubyString) call("string_rep", o);
                 return ret.asJavaString();
             }
 
             @Override
             public String tag(Object o) {
-                IRubyObject ret =
-                        handler.callMethod(context, "tag", JavaUtil.convertJavaToUsableRubyObject(context.getRuntime(), o));
+                IRubyObject ret = call("tag", o);
                 if (ret.isNil()) {
                     return null;
                 } else {
@@ -153,12 +278,249 @@ public class Base extends RubyObject {
         } catch (Throwable t) {
             // TODO: use log api to spit out java exception
             //e.printStackTrace();
-            if (t.getCause() != null) {
-                throw context.getRuntime().newRuntimeError(t.getCause().getMessage());
+            throw rubyError(context, t);
+        }
+        return context.getRuntime().getNil();
+    }
+
+    /**
+     * The ruby error for a failure in the writer, with the message of the
+     * exception it wraps, if any.
+     */
+    private static RaiseException rubyError(ThreadContext context, Throwable t) {
+        return context.getRuntime().newRuntimeError(t.getCause() != null ? t.getCause().getMessage() : t.getMessage());
+    }
+
+    /**
+     * Sets the writer's flush policy from the @flush_every and @buffer_size
+     * the ruby side parsed from the options (see Marshaler::Base).
+     */
+    protected void setFlushPolicy() {
+        writer.setFlushPolicy(
+                RubyFixnum.fix2int(this.getInstanceVariable("@flush_every")),
+                RubyFixnum.fix2int(this.getInstanceVariable("@buffer_size")));
+    }
+
+    /**
+     * Starts a session when the ruby side parsed a :session option into
+     * @session (see Marshaler.session_policy).
+     */
+    protected void setSessionPolicy() {
+        IRubyObject session = this.getInstanceVariable("@session");
+        if (session != null && !session.isNil()) writer.setSession(RubyFixnum.fix2int(session));
+    }
+
+    /**
+     * Counts into the Transit::Metrics given as :metrics, if any.
+     */
+    protected void setMetrics(ThreadContext context, IRubyObject opts) {
+        Metrics metrics = Metrics.fromOptions(context, opts);
+        if (metrics != null) writer.setMetrics(metrics.write);
+    }
+
+    protected IRubyObject resetSession(ThreadContext context) {
+        try {
+            writer.resetSession();
+        } catch (Throwable t) {
+            throw rubyError(context, t);
+        }
+        return context.getRuntime().getNil();
+    }
+
+    /**
+     * Writes every value in values (an Array or any Enumerable) in a single
+     * call, flushing as the policy says and at the end unless it is :manual.
+     */
+    protected IRubyObject writeAll(ThreadContext context, IRubyObject values) {
+        try {
+            if (values instanceof RubyArray) {
+                RubyArray array = (RubyArray)values;
+                for (int i = 0; i < array.getLength(); i++) {
+                    writer.writeBatched(array.eltInternal(i));
+                }
             } else {
-                throw context.getRuntime().newRuntimeError(t.getMessage());
+                final Ruby runtime = context.getRuntime();
+                RubyEnumerable.callEach(runtime, context, values, new BlockCallback() {
+                    public IRubyObject call(ThreadContext context, IRubyObject[] args, Block block) {
+                        IRubyObject value = args.length == 1 ? args[0] : runtime.newArrayNoCopy(args);
+                        writer.writeBatched(value);
+                        return runtime.getNil();
+                    }
+                });
+            }
+            writer.endBatch();
+        } catch (RaiseException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw rubyError(context, t);
+        }
+        return context.getRuntime().getNil();
+    }
+
+    /**
+     * Encodes every value in values (an Array or any Enumerable) on the
+     * given number of threads, or one per processor when it is below 1,
+     * and returns an Array of binary Strings in the same order.
+     */
+    protected IRubyObject encodeAll(ThreadContext context, IRubyObject values, IRubyObject threads) {
+        final Ruby runtime = context.getRuntime();
+        final RubyArray encoded = runtime.newArray();
+        encodeParallel(context, values, threads, new ParallelEncoder.Sink() {
+            public void accept(byte[] bytes) {
+                if (writer.metrics != null) writer.metrics.bytes(bytes.length);
+                encoded.append(RubyString.newString(runtime, new ByteList(bytes, false)));
             }
+        });
+        return encoded;
+    }
+
+    /**
+     * Like writeAll, but encodes the values on the given number of threads
+     * and writes them to the io in order.
+     */
+    protected IRubyObject writeAllParallel(ThreadContext context, IRubyObject values, IRubyObject threads) {
+        encodeParallel(context, values, threads, new ParallelEncoder.Sink() {
+            public void accept(byte[] bytes) {
+                writer.writeEncoded(bytes);
+            }
+        });
+        try {
+            writer.endBatch();
+        } catch (Throwable t) {
+            throw rubyError(context, t);
         }
         return context.getRuntime().getNil();
     }
+
+    private void encodeParallel(ThreadContext context, IRubyObject values, IRubyObject threads,
+                                ParallelEncoder.Sink sink) {
+        int n = RubyNumeric.num2int(threads);
+        if (n < 1) n = Runtime.getRuntime().availableProcessors();
+        if (parallel == null || parallel.threads() != n) {
+            if (parallel != null) parallel.close();
+            parallel = new ParallelEncoder(writer, n, separatesValues());
+        }
+        final ParallelEncoder encoder = parallel;
+        encoder.begin(sink);
+        boolean finished = false;
+        try {
+            if (values instanceof RubyArray) {
+                RubyArray array = (RubyArray)values;
+                for (int i = 0; i < array.getLength(); i++) {
+                    encoder.add(array.eltInternal(i));
+                }
+            } else {
+                final Ruby runtime = context.getRuntime();
+                RubyEnumerable.callEach(runtime, context, values, new BlockCallback() {
+                    public IRubyObject call(ThreadContext context, IRubyObject[] args, Block block) {
+                        encoder.add(args.length == 1 ? args[0] : runtime.newArrayNoCopy(args));
+                        return runtime.getNil();
+                    }
+                });
+            }
+            encoder.finish();
+            finished = true;
+        } catch (RaiseException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw rubyError(context, t);
+        } finally {
+            if (!finished) encoder.cancel();
+        }
+    }
+
+    /**
+     * The streaming methods below write one array or map a piece at a time.
+     * Transit::Writer checks that they are called in a sensible order.
+     */
+    protected IRubyObject beginArray(ThreadContext context, IRubyObject size) {
+        try {
+            writer.beginArray(size.isNil() ? null : RubyFixnum.num2long(size));
+        } catch (Throwable t) {
+            throw rubyError(context, t);
+        }
+        return context.getRuntime().getNil();
+    }
+
+    protected IRubyObject endArray(ThreadContext context) {
+        try {
+            writer.endArray();
+        } catch (Throwable t) {
+            throw rubyError(context, t);
+        }
+        return context.getRuntime().getNil();
+    }
+
+    protected IRubyObject beginMap(ThreadContext context, IRubyObject size) {
+        try {
+            writer.beginMap(size.isNil() ? null : RubyFixnum.num2long(size));
+        } catch (Throwable t) {
+            throw rubyError(context, t);
+        }
+        return context.getRuntime().getNil();
+    }
+
+    protected IRubyObject endMap(ThreadContext context) {
+        try {
+            writer.endMap();
+        } catch (Throwable t) {
+            throw rubyError(context, t);
+        }
+        return context.getRuntime().getNil();
+    }
+
+    protected IRubyObject writeElement(ThreadContext context, IRubyObject value) {
+        try {
+            writer.writeElement(value);
+        } catch (Throwable t) {
+            throw rubyError(context, t);
+        }
+        return context.getRuntime().getNil();
+    }
+
+    protected IRubyObject writeEntry(ThreadContext context, IRubyObject key, IRubyObject value) {
+        try {
+            writer.writeEntry(key, value);
+        } catch (Throwable t) {
+            throw rubyError(context, t);
+        }
+        return context.getRuntime().getNil();
+    }
+
+    protected IRubyObject flush(ThreadContext context) {
+        try {
+            writer.flush();
+        } catch (Throwable t) {
+            throw rubyError(context, t);
+        }
+        return context.getRuntime().getNil();
+    }
+
+    /**
+     * Points the writer at a new io, keeping its handlers, cache and buffers.
+     * Anything still waiting to be flushed goes to the old io first.
+     */
+    protected IRubyObject reset(ThreadContext context, IRubyObject io) {
+        flush(context);
+        output = convertRubyIOToOutputStream(context, io);
+        writer.reset(output);
+        return this;
+    }
+
+    protected IRubyObject encode(ThreadContext context, IRubyObject arg) {
+        if (buffer == null || output != buffer) {
+            throw context.getRuntime().newRuntimeError("encode requires a marshaler without an io");
+        }
+        buffer.reset();
+        write(context, arg);
+        return buffer.toRubyString(context.getRuntime(), separatesValues());
+    }
+
+    /**
+     * True for formats that write a space before each top-level value after
+     * the first, which encode leaves out so each value comes back alone.
+     */
+    protected boolean separatesValues() {
+        return false;
+    }
 }
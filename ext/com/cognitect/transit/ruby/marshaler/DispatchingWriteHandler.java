@@ -0,0 +1,118 @@
+// Copyright 2014 Cognitect. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS-IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cognitect.transit.ruby.marshaler;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.jruby.RubyClass;
+import org.jruby.RubyModule;
+import org.jruby.RubyObject;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import com.cognitect.transit.WriteHandler;
+
+/**
+ * Single java handler registered for RubyObject.class. Finds the handler
+ * for an object by walking the ancestors of its class, the same way
+ * Transit::Marshaler::Base#find_handler does, and remembers the result
+ * per class so that the walk happens once per class rather than once per
+ * tag/rep/stringRep call.
+ *
+ * A resolved entry is stamped with the class's generation, which JRuby
+ * bumps whenever the class or one of its ancestors changes (include,
+ * method definition, etc.), so a stale entry is re-resolved on next use.
+ * The cache belongs to the handler table it was built from; re-registering
+ * handlers builds a new table and therefore starts with an empty cache.
+ * The table can live as long as the process, so the cache holds at most
+ * MAX_CLASSES classes and starts over when it is full, rather than keep
+ * every anonymous class ever written from being collected.
+ */
+public class DispatchingWriteHandler implements WriteHandler<Object, Object> {
+    static final int MAX_CLASSES = 512;
+
+    private final Map<RubyModule, WriteHandler<Object, Object>> handlers;
+    private volatile Map<RubyClass, Resolved> resolved = new IdentityHashMap<RubyClass, Resolved>();
+
+    private static final class Resolved {
+        final int generation;
+        final WriteHandler<Object, Object> handler;
+
+        Resolved(int generation, WriteHandler<Object, Object> handler) {
+            this.generation = generation;
+            this.handler = handler;
+        }
+    }
+
+    public DispatchingWriteHandler(Map<RubyModule, WriteHandler<Object, Object>> handlers) {
+        this.handlers = handlers;
+    }
+
+    @Override
+    public <V> WriteHandler<Object, V> getVerboseHandler() {
+        return null;
+    }
+
+    public WriteHandler<Object, Object> findHandler(Object o) {
+        if (!(o instanceof RubyObject)) return null;
+        RubyClass klass = ((RubyObject)o).getMetaClass();
+        // singleton classes are per object; caching them would only grow the table
+        if (klass.isSingleton()) return lookup(klass);
+
+        Resolved entry = resolved.get(klass);
+        int generation = klass.getGeneration();
+        if (entry != null && entry.generation == generation) return entry.handler;
+
+        WriteHandler<Object, Object> handler = lookup(klass);
+        synchronized (this) {
+            Map<RubyClass, Resolved> updated = resolved.size() < MAX_CLASSES || resolved.containsKey(klass)
+                    ? new IdentityHashMap<RubyClass, Resolved>(resolved)
+                    : new IdentityHashMap<RubyClass, Resolved>();
+            updated.put(klass, new Resolved(generation, handler));
+            resolved = updated;
+        }
+        return handler;
+    }
+
+    private WriteHandler<Object, Object> lookup(RubyClass klass) {
+        for (IRubyObject ancestor : klass.getAncestorList()) {
+            WriteHandler<Object, Object> handler = handlers.get(ancestor);
+            if (handler != null) return handler;
+        }
+        return null;
+    }
+
+    @Override
+    public Object rep(Object o) {
+        WriteHandler<Object, Object> handler = findHandler(o);
+        if (handler != null) return handler.rep(o);
+        return null;
+    }
+
+    @Override
+    public String stringRep(Object o) {
+        WriteHandler<Object, Object> handler = findHandler(o);
+        if (handler != null) return handler.stringRep(o);
+        return null;
+    }
+
+    @Override
+    public String tag(Object o) {
+        WriteHandler<Object, Object> handler = findHandler(o);
+        if (handler != null) return handler.tag(o);
+        return null;
+    }
+}
@@ -15,19 +15,14 @@
 
 package com.cognitect.transit.ruby.marshaler;
 
-import java.io.OutputStream;
-import java.util.Map;
-
 import org.jruby.Ruby;
 import org.jruby.RubyClass;
 import org.jruby.anno.JRubyClass;
 import org.jruby.anno.JRubyMethod;
+import org.jruby.exceptions.RaiseException;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
 
-import com.cognitect.transit.TransitFactory;
-import com.cognitect.transit.WriteHandler;
-
 @JRubyClass(name="Transit::Marshaler::Json")
 public class Json extends Base {
     private static final long serialVersionUID = 3453641906194326319L;
@@ -48,6 +43,8 @@ public class Json extends Base {
             json.callMethod(context, "initialize", args);
             json.init(context, args);
             return json;
+        } catch (RaiseException e) {
+            throw e;
         } catch (Throwable t) {
             t.printStackTrace();
             throw context.getRuntime().newRuntimeError(t.getMessage());
@@ -55,13 +52,85 @@ public class Json extends Base {
     }
 
     private void init(ThreadContext context, IRubyObject[] args) {
-        OutputStream output = convertRubyIOToOutputStream(context, args[0]);
-        Map<Class, WriteHandler<?, ?>> handlers = convertRubyHandlersToJavaHandler(context, args[1]);
-        writer = TransitFactory.writer(TransitFactory.Format.JSON, output, handlers);
+        output = convertRubyIOToOutputStream(context, args[0]);
+        writer = new RubyWriters.JsonWriterImpl(output, handlerSet(context, args[1], false));
+        setFlushPolicy();
+        setSessionPolicy();
+        setMetrics(context, args[1]);
     }
 
     @JRubyMethod
     public IRubyObject write(ThreadContext context, IRubyObject arg) {
         return super.write(context, arg);
     }
+
+    @JRubyMethod
+    public IRubyObject write_all(ThreadContext context, IRubyObject values) {
+        return super.writeAll(context, values);
+    }
+
+    @JRubyMethod
+    public IRubyObject write_all_parallel(ThreadContext context, IRubyObject values, IRubyObject threads) {
+        return super.writeAllParallel(context, values, threads);
+    }
+
+    @JRubyMethod
+    public IRubyObject encode_all(ThreadContext context, IRubyObject values, IRubyObject threads) {
+        return super.encodeAll(context, values, threads);
+    }
+
+    @JRubyMethod
+    public IRubyObject begin_array(ThreadContext context, IRubyObject size) {
+        return super.beginArray(context, size);
+    }
+
+    @JRubyMethod
+    public IRubyObject end_array(ThreadContext context) {
+        return super.endArray(context);
+    }
+
+    @JRubyMethod
+    public IRubyObject begin_map(ThreadContext context, IRubyObject size) {
+        return super.beginMap(context, size);
+    }
+
+    @JRubyMethod
+    public IRubyObject end_map(ThreadContext context) {
+        return super.endMap(context);
+    }
+
+    @JRubyMethod
+    public IRubyObject write_element(ThreadContext context, IRubyObject value) {
+        return super.writeElement(context, value);
+    }
+
+    @JRubyMethod
+    public IRubyObject write_entry(ThreadContext context, IRubyObject key, IRubyObject value) {
+        return super.writeEntry(context, key, value);
+    }
+
+    @JRubyMethod
+    public IRubyObject reset_session(ThreadContext context) {
+        return super.resetSession(context);
+    }
+
+    @JRubyMethod
+    public IRubyObject flush(ThreadContext context) {
+        return super.flush(context);
+    }
+
+    @JRubyMethod
+    public IRubyObject reset(ThreadContext context, IRubyObject io) {
+        return super.reset(context, io);
+    }
+
+    @JRubyMethod
+    public IRubyObject encode(ThreadContext context, IRubyObject arg) {
+        return super.encode(context, arg);
+    }
+
+    @Override
+    protected boolean separatesValues() {
+        return true;
+    }
 }
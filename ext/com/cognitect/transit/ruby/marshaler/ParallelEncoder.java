@@ -0,0 +1,151 @@
+// Copyright 2014 Cognitect. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS-IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cognitect.transit.ruby.marshaler;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes a batch of independent top-level values on a pool of threads.
+ * Each worker has a writer, write cache and buffer of its own, and the
+ * encoded values are handed to the sink in the order they were added.
+ * At most twice as many values as there are threads are in flight at
+ * once.
+ *
+ * A marshaler keeps its encoder, with its threads and workers, from one
+ * batch to the next. Threads left idle for a minute exit, so an encoder
+ * that is dropped leaves none behind.
+ */
+class ParallelEncoder {
+    interface Sink {
+        void accept(byte[] encoded);
+    }
+
+    private final RubyWriters.WriterImpl writer;
+    private final boolean trimSpace;
+    private final ThreadPoolExecutor pool;
+    private final int window;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    private final ThreadLocal<Worker> workers = new ThreadLocal<Worker>();
+    private Sink sink;
+
+    /**
+     * trimSpace is true for formats that write a space before each
+     * top-level value after the first, which is left out of each value.
+     */
+    ParallelEncoder(RubyWriters.WriterImpl writer, int threads, boolean trimSpace) {
+        this.writer = writer;
+        this.trimSpace = trimSpace;
+        this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "transit-writer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.pool.allowCoreThreadTimeOut(true);
+        this.window = threads * 2;
+    }
+
+    int threads() {
+        return pool.getMaximumPoolSize();
+    }
+
+    /**
+     * Starts a batch whose values are handed to sink.
+     */
+    void begin(Sink sink) {
+        this.sink = sink;
+    }
+
+    void add(final Object value) {
+        pending.add(pool.submit(new Callable<byte[]>() {
+            public byte[] call() {
+                return worker().encode(value);
+            }
+        }));
+        if (pending.size() >= window) take();
+    }
+
+    /**
+     * Waits for the values still in flight and hands them to the sink.
+     */
+    void finish() {
+        while (!pending.isEmpty()) take();
+        sink = null;
+    }
+
+    /**
+     * Drops the values still in flight after a batch fails.
+     */
+    void cancel() {
+        for (Future<byte[]> f : pending) f.cancel(true);
+        pending.clear();
+        sink = null;
+    }
+
+    private void take() {
+        try {
+            sink.accept(pending.poll().get());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+            if (cause instanceof Error) throw (Error)cause;
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Worker worker() {
+        Worker w = workers.get();
+        if (w == null) {
+            w = new Worker(writer, trimSpace);
+            workers.set(w);
+        }
+        return w;
+    }
+
+    void close() {
+        pool.shutdownNow();
+    }
+
+    private static class Worker {
+        private final RubyOutputStreams.BufferOutputStream buffer = new RubyOutputStreams.BufferOutputStream();
+        private final RubyWriters.WriterImpl writer;
+        private final boolean trimSpace;
+
+        Worker(RubyWriters.WriterImpl writer, boolean trimSpace) {
+            this.writer = writer.newWorker(buffer);
+            this.trimSpace = trimSpace;
+        }
+
+        byte[] encode(Object value) {
+            buffer.reset();
+            writer.write(value);
+            return buffer.toByteArray(trimSpace);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+// Copyright 2014 Cognitect. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS-IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cognitect.transit.ruby.marshaler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.jruby.Ruby;
+import org.jruby.RubyString;
+import org.jruby.ext.stringio.StringIO;
+import org.jruby.util.ByteList;
+
+/**
+ * OutputStreams the marshalers write to in place of the generic adapter
+ * returned by to_outputstream, which makes a ruby call (and a new String)
+ * for every chunk the emitter writes. Each of these buffers a top-level
+ * value and hands it on when the writer flushes after writing it.
+ */
+public final class RubyOutputStreams {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private RubyOutputStreams() {}
+
+    /**
+     * Growable in-memory buffer. Used as is by Transit.encode, which resets it
+     * before each value and copies the result out.
+     */
+    public static class BufferOutputStream extends OutputStream {
+        protected byte[] bytes = new byte[INITIAL_CAPACITY];
+        protected int size = 0;
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(size + 1);
+            bytes[size++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(size + len);
+            System.arraycopy(b, off, bytes, size, len);
+            size += len;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > bytes.length) {
+                byte[] grown = new byte[Math.max(capacity, bytes.length << 1)];
+                System.arraycopy(bytes, 0, grown, 0, size);
+                bytes = grown;
+            }
+        }
+
+        public void reset() {
+            size = 0;
+        }
+
+        /**
+         * Drops the last count bytes written.
+         */
+        public void discard(int count) {
+            size -= Math.min(count, size);
+        }
+
+        /**
+         * Returns a binary String with a copy of the buffered bytes, less a
+         * leading space when trimSpace is true.
+         */
+        public RubyString toRubyString(Ruby runtime, boolean trimSpace) {
+            int from = trimSpace && size > 0 && bytes[0] == ' ' ? 1 : 0;
+            return RubyString.newString(runtime, new ByteList(bytes, from, size - from, true));
+        }
+
+        /**
+         * Returns a copy of the buffered bytes, less a leading space when
+         * trimSpace is true.
+         */
+        public byte[] toByteArray(boolean trimSpace) {
+            int from = trimSpace && size > 0 && bytes[0] == ' ' ? 1 : 0;
+            return Arrays.copyOfRange(bytes, from, size);
+        }
+    }
+
+    /**
+     * Appends each flushed value to the StringIO's string with a single
+     * StringIO#write, which copies the bytes straight into its ByteList.
+     */
+    public static class StringIOOutputStream extends BufferOutputStream {
+        private final Ruby runtime;
+        private StringIO io;
+
+        public StringIOOutputStream(Ruby runtime, StringIO io) {
+            this.runtime = runtime;
+            this.io = io;
+        }
+
+        public void setTarget(StringIO io) {
+            this.io = io;
+        }
+
+        @Override
+        public void flush() {
+            if (size == 0) return;
+            io.write(runtime.getCurrentContext(),
+                    RubyString.newStringNoCopy(runtime, bytes, 0, size));
+            size = 0;
+        }
+    }
+
+    /**
+     * Writes each flushed value to the IO's underlying stream in one call.
+     */
+    public static class IOOutputStream extends BufferOutputStream {
+        private OutputStream out;
+
+        public IOOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        public void setTarget(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (size > 0) {
+                out.write(bytes, 0, size);
+                size = 0;
+            }
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,377 @@
+// Copyright 2014 Cognitect. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS-IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cognitect.transit.ruby.marshaler;
+
+import java.math.BigInteger;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.jruby.RubyArray;
+import org.jruby.RubyBignum;
+import org.jruby.RubyClass;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyFloat;
+import org.jruby.RubyHash;
+import org.jruby.RubyString;
+import org.jruby.RubySymbol;
+import org.jruby.RubyTime;
+import org.jruby.ext.bigdecimal.RubyBigDecimal;
+import org.jruby.java.proxies.JavaProxy;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import com.cognitect.transit.WriteHandler;
+import com.cognitect.transit.impl.TagProvider;
+import com.cognitect.transit.impl.TagProviderAware;
+
+/**
+ * Java counterparts of the stock handlers in Transit::WriteHandlers for the
+ * core Ruby types. Each one produces the same tag and representation as its
+ * Ruby counterpart, but only for instances of exactly the class it was built
+ * for; instances of subclasses, and objects with singleton classes, are
+ * handed to the fallback, which resolves them through the Ruby handlers.
+ *
+ * Base registers these only when the Ruby handler in effect for the type is
+ * the stock one, so custom handlers for core types keep working.
+ */
+public final class RubyWriteHandlers {
+    private static final BigInteger MAX_INT = BigInteger.valueOf(Long.MAX_VALUE);
+    private static final BigInteger MIN_INT = BigInteger.valueOf(Long.MIN_VALUE);
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(DateTimeZone.UTC);
+
+    private RubyWriteHandlers() {}
+
+    static Object unwrap(IRubyObject o) {
+        return o instanceof JavaProxy ? ((JavaProxy)o).getObject() : o;
+    }
+
+    static abstract class CoreWriteHandler implements WriteHandler<Object, Object> {
+        private final RubyClass type;
+        private final WriteHandler<Object, Object> fallback;
+
+        CoreWriteHandler(RubyClass type, WriteHandler<Object, Object> fallback) {
+            this.type = type;
+            this.fallback = fallback;
+        }
+
+        protected boolean handles(IRubyObject o) {
+            return o.getMetaClass() == type;
+        }
+
+        protected abstract String coreTag(IRubyObject o);
+        protected abstract Object coreRep(IRubyObject o);
+        protected abstract String coreStringRep(IRubyObject o);
+
+        @Override
+        public <V> WriteHandler<Object, V> getVerboseHandler() {
+            return null;
+        }
+
+        @Override
+        public String tag(Object o) {
+            IRubyObject obj = (IRubyObject)o;
+            return handles(obj) ? coreTag(obj) : fallback.tag(o);
+        }
+
+        @Override
+        public Object rep(Object o) {
+            IRubyObject obj = (IRubyObject)o;
+            return handles(obj) ? coreRep(obj) : fallback.rep(o);
+        }
+
+        @Override
+        public String stringRep(Object o) {
+            IRubyObject obj = (IRubyObject)o;
+            return handles(obj) ? coreStringRep(obj) : fallback.stringRep(o);
+        }
+    }
+
+    public static class NilWriteHandler extends CoreWriteHandler {
+        public NilWriteHandler(RubyClass type, WriteHandler<Object, Object> fallback) {
+            super(type, fallback);
+        }
+
+        protected String coreTag(IRubyObject o) { return "_"; }
+        protected Object coreRep(IRubyObject o) { return null; }
+        protected String coreStringRep(IRubyObject o) { return null; }
+    }
+
+    public static class KeywordWriteHandler extends CoreWriteHandler {
+        public KeywordWriteHandler(RubyClass type, WriteHandler<Object, Object> fallback) {
+            super(type, fallback);
+        }
+
+        protected String coreTag(IRubyObject o) { return ":"; }
+        protected Object coreRep(IRubyObject o) { return ((RubySymbol)o).asJavaString(); }
+        protected String coreStringRep(IRubyObject o) { return ((RubySymbol)o).asJavaString(); }
+    }
+
+    public static class StringWriteHandler extends CoreWriteHandler {
+        public StringWriteHandler(RubyClass type, WriteHandler<Object, Object> fallback) {
+            super(type, fallback);
+        }
+
+        protected String coreTag(IRubyObject o) { return "s"; }
+        protected Object coreRep(IRubyObject o) { return ((RubyString)o).asJavaString(); }
+        protected String coreStringRep(IRubyObject o) { return ((RubyString)o).asJavaString(); }
+    }
+
+    /**
+     * true and false share a java class, so this one handler checks for both
+     * TrueClass and FalseClass.
+     */
+    public static class BooleanWriteHandler extends CoreWriteHandler {
+        private final RubyClass falseType;
+
+        public BooleanWriteHandler(RubyClass trueType, RubyClass falseType, WriteHandler<Object, Object> fallback) {
+            super(trueType, fallback);
+            this.falseType = falseType;
+        }
+
+        @Override
+        protected boolean handles(IRubyObject o) {
+            return super.handles(o) || o.getMetaClass() == falseType;
+        }
+
+        protected String coreTag(IRubyObject o) { return "?"; }
+        protected Object coreRep(IRubyObject o) { return o.isTrue(); }
+        protected String coreStringRep(IRubyObject o) { return o.isTrue() ? "t" : "f"; }
+    }
+
+    public static class FixnumWriteHandler extends CoreWriteHandler {
+        public FixnumWriteHandler(RubyClass type, WriteHandler<Object, Object> fallback) {
+            super(type, fallback);
+        }
+
+        protected String coreTag(IRubyObject o) { return "i"; }
+        protected Object coreRep(IRubyObject o) { return ((RubyFixnum)o).getLongValue(); }
+        protected String coreStringRep(IRubyObject o) { return String.valueOf(((RubyFixnum)o).getLongValue()); }
+    }
+
+    public static class BignumWriteHandler extends CoreWriteHandler {
+        public BignumWriteHandler(RubyClass type, WriteHandler<Object, Object> fallback) {
+            super(type, fallback);
+        }
+
+        private static boolean fitsInLong(BigInteger i) {
+            return i.compareTo(MAX_INT) <= 0 && i.compareTo(MIN_INT) >= 0;
+        }
+
+        protected String coreTag(IRubyObject o) {
+            return fitsInLong(((RubyBignum)o).getValue()) ? "i" : "n";
+        }
+
+        protected Object coreRep(IRubyObject o) {
+            BigInteger i = ((RubyBignum)o).getValue();
+            return fitsInLong(i) ? (Object)i.longValue() : i.toString();
+        }
+
+        protected String coreStringRep(IRubyObject o) { return ((RubyBignum)o).getValue().toString(); }
+    }
+
+    public static class FloatWriteHandler extends CoreWriteHandler {
+        public FloatWriteHandler(RubyClass type, WriteHandler<Object, Object> fallback) {
+            super(type, fallback);
+        }
+
+        private static String special(double d) {
+            if (Double.isNaN(d)) return "NaN";
+            if (d == Double.POSITIVE_INFINITY) return "INF";
+            if (d == Double.NEGATIVE_INFINITY) return "-INF";
+            return null;
+        }
+
+        protected String coreTag(IRubyObject o) {
+            return special(((RubyFloat)o).getDoubleValue()) != null ? "z" : "d";
+        }
+
+        protected Object coreRep(IRubyObject o) {
+            double d = ((RubyFloat)o).getDoubleValue();
+            String s = special(d);
+            return s != null ? s : (Object)d;
+        }
+
+        protected String coreStringRep(IRubyObject o) {
+            String s = special(((RubyFloat)o).getDoubleValue());
+            return s != null ? s : ((RubyFloat)o).to_s().toString();
+        }
+    }
+
+    public static class BigDecimalWriteHandler extends CoreWriteHandler {
+        public BigDecimalWriteHandler(RubyClass type, WriteHandler<Object, Object> fallback) {
+            super(type, fallback);
+        }
+
+        protected String coreTag(IRubyObject o) { return "f"; }
+
+        protected Object coreRep(IRubyObject o) {
+            return ((RubyBigDecimal)o).to_s(new IRubyObject[]{o.getRuntime().newString("F")}).toString();
+        }
+
+        protected String coreStringRep(IRubyObject o) { return (String)coreRep(o); }
+    }
+
+    public static class TimeWriteHandler extends CoreWriteHandler {
+        public TimeWriteHandler(RubyClass type, WriteHandler<Object, Object> fallback) {
+            super(type, fallback);
+        }
+
+        // same as DateTimeUtil.to_millis: sub-millisecond usecs are rounded
+        private static long millis(RubyTime t) {
+            return t.getDateTime().getMillis() + (t.getUSec() >= 500 ? 1 : 0);
+        }
+
+        protected String coreTag(IRubyObject o) { return "m"; }
+        protected Object coreRep(IRubyObject o) { return millis((RubyTime)o); }
+        protected String coreStringRep(IRubyObject o) { return String.valueOf(millis((RubyTime)o)); }
+    }
+
+    public static class VerboseTimeWriteHandler extends CoreWriteHandler {
+        public VerboseTimeWriteHandler(RubyClass type, WriteHandler<Object, Object> fallback) {
+            super(type, fallback);
+        }
+
+        // millis are truncated, as Time#strftime does with Transit::TIME_FORMAT
+        private static String format(RubyTime t) {
+            return TIME_FORMAT.print(t.getDateTime().getMillis());
+        }
+
+        protected String coreTag(IRubyObject o) { return "t"; }
+        protected Object coreRep(IRubyObject o) { return format((RubyTime)o); }
+        protected String coreStringRep(IRubyObject o) { return format((RubyTime)o); }
+    }
+
+    public static class ArrayWriteHandler extends CoreWriteHandler {
+        public ArrayWriteHandler(RubyClass type, WriteHandler<Object, Object> fallback) {
+            super(type, fallback);
+        }
+
+        protected String coreTag(IRubyObject o) { return "array"; }
+        protected Object coreRep(IRubyObject o) { return new ArrayView((RubyArray)o); }
+        protected String coreStringRep(IRubyObject o) { return null; }
+    }
+
+    /**
+     * Leaves the elements as ruby objects so that nested values are written
+     * by the same handlers as top level values.
+     */
+    private static final class ArrayView extends AbstractList<Object> implements RandomAccess {
+        private final RubyArray array;
+
+        ArrayView(RubyArray array) {
+            this.array = array;
+        }
+
+        @Override
+        public Object get(int i) {
+            return unwrap(array.eltInternal(i));
+        }
+
+        @Override
+        public int size() {
+            return array.getLength();
+        }
+    }
+
+    public static class MapWriteHandler extends CoreWriteHandler implements TagProviderAware {
+        private TagProvider tagProvider;
+
+        public MapWriteHandler(RubyClass type, WriteHandler<Object, Object> fallback) {
+            super(type, fallback);
+        }
+
+        @Override
+        public void setTagProvider(TagProvider tagProvider) {
+            this.tagProvider = tagProvider;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Set<Map.Entry<IRubyObject, IRubyObject>> entries(IRubyObject o) {
+            return (Set<Map.Entry<IRubyObject, IRubyObject>>)((RubyHash)o).directEntrySet();
+        }
+
+        private boolean stringableKeys(IRubyObject o) {
+            for (Map.Entry<IRubyObject, IRubyObject> e : entries(o)) {
+                String tag = tagProvider.getTag(unwrap(e.getKey()));
+                if (tag == null || tag.length() != 1) return false;
+            }
+            return true;
+        }
+
+        protected String coreTag(IRubyObject o) {
+            return stringableKeys(o) ? "map" : "cmap";
+        }
+
+        protected Object coreRep(IRubyObject o) {
+            if (stringableKeys(o)) return new EntrySetView(entries(o));
+            List<Object> l = new ArrayList<Object>(2 * ((RubyHash)o).size());
+            for (Map.Entry<IRubyObject, IRubyObject> e : entries(o)) {
+                l.add(unwrap(e.getKey()));
+                l.add(unwrap(e.getValue()));
+            }
+            return l;
+        }
+
+        protected String coreStringRep(IRubyObject o) { return null; }
+    }
+
+    private static final class EntrySetView extends AbstractSet<Map.Entry<Object, Object>> {
+        private final Set<Map.Entry<IRubyObject, IRubyObject>> entries;
+
+        EntrySetView(Set<Map.Entry<IRubyObject, IRubyObject>> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public int size() {
+            return entries.size();
+        }
+
+        @Override
+        public Iterator<Map.Entry<Object, Object>> iterator() {
+            final Iterator<Map.Entry<IRubyObject, IRubyObject>> i = entries.iterator();
+            return new Iterator<Map.Entry<Object, Object>>() {
+                public boolean hasNext() {
+                    return i.hasNext();
+                }
+
+                @SuppressWarnings("unchecked")
+                public Map.Entry<Object, Object> next() {
+                    Map.Entry<IRubyObject, IRubyObject> e = i.next();
+                    Object k = e.getKey(), v = e.getValue();
+                    if (k instanceof JavaProxy || v instanceof JavaProxy) {
+                        return new AbstractMap.SimpleImmutableEntry<Object, Object>(unwrap(e.getKey()), unwrap(e.getValue()));
+                    }
+                    return (Map.Entry<Object, Object>)(Map.Entry<?, ?>)e;
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,673 @@
+// Copyright 2014 Cognitect. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS-IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cognitect.transit.ruby.marshaler;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jruby.runtime.builtin.IRubyObject;
+import org.msgpack.MessagePack;
+import org.msgpack.packer.Packer;
+
+import com.cognitect.transit.WriteHandler;
+import com.cognitect.transit.Writer;
+import com.cognitect.transit.impl.Constants;
+import com.cognitect.transit.impl.Emitter;
+import com.cognitect.transit.impl.JsonEmitter;
+import com.cognitect.transit.impl.JsonVerboseEmitter;
+import com.cognitect.transit.impl.MsgpackEmitter;
+import com.cognitect.transit.impl.WriteCache;
+import com.cognitect.transit.impl.WriteHandlerSet;
+import com.cognitect.transit.impl.WriterFactory;
+import com.cognitect.transit.ruby.Metrics;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Writers that can be pointed at a new stream with reset, keeping their
+ * handler set and write cache. Generators and packers come from factories
+ * shared by all writers, and handler sets are shared by all writers built
+ * from the same ruby handlers (see Base#handlerSet).
+ */
+public class RubyWriters {
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final MessagePack MESSAGE_PACK = new MessagePack();
+
+    /**
+     * Builds the handler set for customHandlers on top of the defaults, as
+     * TransitFactory.writer does, but without going through WriterFactory's
+     * static cache, which never drops an entry. The set may be shared by
+     * writers on different threads, so its map is safe for concurrent use.
+     */
+    @SuppressWarnings("rawtypes")
+    static WriteHandlerSet handlerSet(Map<Class, WriteHandler<?, ?>> customHandlers) {
+        Map<Class, WriteHandler<?, ?>> handlers = WriterFactory.defaultHandlers();
+        handlers.putAll(customHandlers);
+        return new WriteHandlerSet(new ConcurrentHandlerMap(handlers));
+    }
+
+    /**
+     * Same as handlerSet(customHandlers).getVerboseHandlerSet(), which would
+     * copy the handlers back into a plain HashMap.
+     */
+    @SuppressWarnings("rawtypes")
+    static WriteHandlerSet verboseHandlerSet(Map<Class, WriteHandler<?, ?>> customHandlers) {
+        Map<Class, WriteHandler<?, ?>> handlers = WriterFactory.defaultHandlers();
+        handlers.putAll(customHandlers);
+        Map<Class, WriteHandler<?, ?>> verboseHandlers = new HashMap<Class, WriteHandler<?, ?>>(handlers.size());
+        for (Map.Entry<Class, WriteHandler<?, ?>> entry : handlers.entrySet()) {
+            WriteHandler<?, ?> verboseHandler = entry.getValue().getVerboseHandler();
+            verboseHandlers.put(entry.getKey(), verboseHandler != null ? verboseHandler : entry.getValue());
+        }
+        return new WriteHandlerSet(new ConcurrentHandlerMap(verboseHandlers));
+    }
+
+    /**
+     * WriteHandlerSet adds the handler it finds for a subclass to its map,
+     * so a shared set needs a concurrent map. ConcurrentHashMap does not
+     * take the null key the default handler for null is registered under.
+     */
+    @SuppressWarnings("rawtypes")
+    static class ConcurrentHandlerMap extends AbstractMap<Class, WriteHandler<?, ?>> {
+        private static final Class NULL_KEY = ConcurrentHandlerMap.class;
+        private final ConcurrentHashMap<Class, WriteHandler<?, ?>> handlers;
+
+        ConcurrentHandlerMap(Map<Class, WriteHandler<?, ?>> handlers) {
+            this.handlers = new ConcurrentHashMap<Class, WriteHandler<?, ?>>(handlers.size());
+            for (Map.Entry<Class, WriteHandler<?, ?>> entry : handlers.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        private static Class mask(Object key) {
+            return key == null ? NULL_KEY : (Class)key;
+        }
+
+        @Override
+        public WriteHandler<?, ?> get(Object key) {
+            return handlers.get(mask(key));
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return handlers.containsKey(mask(key));
+        }
+
+        @Override
+        public WriteHandler<?, ?> put(Class key, WriteHandler<?, ?> value) {
+            return handlers.put(mask(key), value);
+        }
+
+        @Override
+        public int size() {
+            return handlers.size();
+        }
+
+        @Override
+        public Collection<WriteHandler<?, ?>> values() {
+            return handlers.values();
+        }
+
+        @Override
+        public Set<Map.Entry<Class, WriteHandler<?, ?>>> entrySet() {
+            Map<Class, WriteHandler<?, ?>> copy = new HashMap<Class, WriteHandler<?, ?>>(handlers.size());
+            for (Map.Entry<Class, WriteHandler<?, ?>> entry : handlers.entrySet()) {
+                copy.put(entry.getKey() == NULL_KEY ? null : entry.getKey(), entry.getValue());
+            }
+            return copy.entrySet();
+        }
+    }
+
+    /**
+     * Counts the bytes written since the last flush and ignores the flushes
+     * the emitters make after every value, so the writer alone decides when
+     * its output is flushed.
+     */
+    static class PendingOutputStream extends FilterOutputStream {
+        int size = 0;
+
+        PendingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            size += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+
+    /**
+     * A write cache that counts its hits and misses into metrics, when
+     * there are any.
+     */
+    static class MeteredWriteCache extends WriteCache {
+        private final boolean enabled;
+        Metrics.Side metrics;
+
+        MeteredWriteCache(boolean enabled) {
+            super(enabled);
+            this.enabled = enabled;
+        }
+
+        @Override
+        public String cacheWrite(String s, boolean asMapKey) {
+            String written = super.cacheWrite(s, asMapKey);
+            if (metrics != null && enabled && isCacheable(s, asMapKey)) {
+                if (written != s) metrics.cacheHit();
+                else metrics.cacheMiss();
+            }
+            return written;
+        }
+    }
+
+    /**
+     * Emitters that can marshal a value below the top level, for the
+     * elements and entries of streamed arrays and maps.
+     */
+    interface StreamingEmitter extends Emitter {
+        void marshalElement(Object o, boolean asMapKey, WriteCache cache) throws Exception;
+
+        /**
+         * Counts each value marshaled into metrics, or stops when it is null.
+         */
+        void setMetrics(Metrics.Side metrics);
+
+        /**
+         * Called before a top-level value encoded elsewhere is written to
+         * the stream, so whatever separates top-level values comes first.
+         */
+        void beginEncoded() throws IOException;
+    }
+
+    static class StreamingJsonEmitter extends JsonEmitter implements StreamingEmitter {
+        private Metrics.Side metrics;
+
+        StreamingJsonEmitter(JsonGenerator gen, WriteHandlerSet handlers) {
+            super(gen, handlers);
+        }
+
+        @Override
+        protected void marshal(Object o, boolean asMapKey, WriteCache cache) throws Exception {
+            if (metrics != null) metrics.type(o);
+            super.marshal(o, asMapKey, cache);
+        }
+
+        public void setMetrics(Metrics.Side metrics) {
+            this.metrics = metrics;
+        }
+
+        public void marshalElement(Object o, boolean asMapKey, WriteCache cache) throws Exception {
+            marshal(o, asMapKey, cache);
+        }
+
+        public void beginEncoded() throws IOException {
+            // an empty raw value makes the generator write its root separator
+            gen.writeRawValue("");
+        }
+    }
+
+    static class StreamingJsonVerboseEmitter extends JsonVerboseEmitter implements StreamingEmitter {
+        private Metrics.Side metrics;
+
+        StreamingJsonVerboseEmitter(JsonGenerator gen, WriteHandlerSet handlers) {
+            super(gen, handlers);
+        }
+
+        @Override
+        protected void marshal(Object o, boolean asMapKey, WriteCache cache) throws Exception {
+            if (metrics != null) metrics.type(o);
+            super.marshal(o, asMapKey, cache);
+        }
+
+        public void setMetrics(Metrics.Side metrics) {
+            this.metrics = metrics;
+        }
+
+        public void marshalElement(Object o, boolean asMapKey, WriteCache cache) throws Exception {
+            marshal(o, asMapKey, cache);
+        }
+
+        public void beginEncoded() throws IOException {
+            gen.writeRawValue("");
+        }
+    }
+
+    static class StreamingMsgpackEmitter extends MsgpackEmitter implements StreamingEmitter {
+        private Metrics.Side metrics;
+
+        StreamingMsgpackEmitter(Packer packer, WriteHandlerSet handlers) {
+            super(packer, handlers);
+        }
+
+        @Override
+        protected void marshal(Object o, boolean asMapKey, WriteCache cache) throws Exception {
+            if (metrics != null) metrics.type(o);
+            super.marshal(o, asMapKey, cache);
+        }
+
+        public void setMetrics(Metrics.Side metrics) {
+            this.metrics = metrics;
+        }
+
+        public void marshalElement(Object o, boolean asMapKey, WriteCache cache) throws Exception {
+            marshal(o, asMapKey, cache);
+        }
+
+        public void beginEncoded() {
+        }
+    }
+
+    public abstract static class WriterImpl implements Writer<Object> {
+        protected final WriteHandlerSet handlers;
+        private final MeteredWriteCache cache;
+        private OutputStream out;
+        private PendingOutputStream pending;
+        protected StreamingEmitter emitter;
+        private int flushEvery = 1;
+        private int bufferSize = Integer.MAX_VALUE;
+        private int unflushed = 0;
+        private boolean wroteValue = false;
+        // open streamed arrays and maps, and the cache their values share
+        private int depth = 0;
+        private WriteCache streamCache;
+        // values written between session reset markers, 0 for only when
+        // asked, or -1 when each value has a cache of its own
+        private int session = -1;
+        private int sessionValues = 0;
+        // null unless counting into metrics, and the side timing a value
+        // on this thread when this writer started timing one
+        Metrics.Side metrics;
+        private boolean countsBytes = true;
+        private Metrics.Side outerMetrics;
+        private long started;
+
+        WriterImpl(OutputStream out, WriteHandlerSet handlers, boolean cacheEnabled) {
+            this.handlers = handlers;
+            this.cache = new MeteredWriteCache(cacheEnabled);
+            reset(out);
+        }
+
+        public void setMetrics(Metrics.Side metrics) {
+            this.metrics = metrics;
+            this.cache.metrics = metrics;
+            emitter.setMetrics(metrics);
+        }
+
+        private void startTiming() {
+            if (metrics == null) return;
+            outerMetrics = metrics.enter();
+            started = System.nanoTime();
+        }
+
+        private void stopTiming() {
+            if (metrics != null) metrics.exit(outerMetrics, started);
+        }
+
+        /**
+         * Flushes after every flushEvery values, or only on flush when it is 0,
+         * and in either case once bufferSize bytes are waiting.
+         */
+        public void setFlushPolicy(int flushEvery, int bufferSize) {
+            this.flushEvery = flushEvery;
+            this.bufferSize = bufferSize;
+        }
+
+        /**
+         * Keeps one write cache across top-level values, writing a reset
+         * marker every resetEvery values, or only on resetSession when it is
+         * 0. The marker is a bare nil at the top level, which is otherwise
+         * never written.
+         */
+        public void setSession(int resetEvery) {
+            this.session = resetEvery;
+        }
+
+        public void resetSession() {
+            try {
+                emitter.emitNil(false, cache);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            cache.init();
+            sessionValues = 0;
+        }
+
+        private WriteCache topCache() {
+            if (session < 0) return cache.init();
+            if (session > 0 && sessionValues == session) resetSession();
+            sessionValues++;
+            return cache;
+        }
+
+        @Override
+        public void write(Object o) {
+            write(o, flushEvery);
+        }
+
+        /**
+         * Writes o as one value of a batch, which is flushed at its end by
+         * endBatch rather than after every value.
+         */
+        public void writeBatched(Object o) {
+            write(o, flushEvery == 1 ? 0 : flushEvery);
+        }
+
+        /**
+         * Writes bytes, a top-level value encoded by a writer of the same
+         * format, as one value of a batch.
+         */
+        public void writeEncoded(byte[] bytes) {
+            try {
+                emitter.beginEncoded();
+                emitter.flushWriter();
+                pending.write(bytes, 0, bytes.length);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            written(flushEvery == 1 ? 0 : flushEvery);
+        }
+
+        public void endBatch() {
+            if (flushEvery != 0) flush();
+        }
+
+        private void write(Object o, int every) {
+            startTiming();
+            try {
+                emitter.flushWriter();
+                int mark = pending.size;
+                try {
+                    emitter.emit(o, false, topCache());
+                } catch (Throwable e) {
+                    discard(mark);
+                    throw e;
+                }
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            } finally {
+                stopTiming();
+            }
+            if (metrics != null) metrics.value();
+            written(every);
+        }
+
+        /**
+         * Drops what a top-level value that failed part way wrote after mark,
+         * which is all still buffered, and starts a new emitter in place of
+         * the old one, which may be left inside an array or map. A session
+         * starts over, as its cache may hold strings from the dropped value.
+         */
+        private void discard(int mark) throws IOException {
+            this.emitter = createEmitter(pending);
+            this.emitter.setMetrics(metrics);
+            if (out instanceof RubyOutputStreams.BufferOutputStream) {
+                ((RubyOutputStreams.BufferOutputStream)out).discard(pending.size - mark);
+                pending.size = mark;
+            }
+            if (wroteValue) emitter.beginEncoded();
+            if (session >= 0) resetSession();
+        }
+
+        private void written(int every) {
+            wroteValue = true;
+            unflushed++;
+            if ((every > 0 && unflushed >= every) || pending.size >= bufferSize) flush();
+        }
+
+        /**
+         * Starts an array whose elements are written one at a time by
+         * writeElement. A streamed array or map is one value, so all of its
+         * elements share one write cache, as they would if written whole.
+         */
+        public void beginArray(Long size) {
+            try {
+                begin();
+                emitter.emitArrayStart(size);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public void endArray() {
+            try {
+                emitter.emitArrayEnd();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            end();
+        }
+
+        /**
+         * Starts a map whose entries are written one at a time by writeEntry.
+         */
+        public void beginMap(Long size) {
+            try {
+                begin();
+                emitMapStart(size, streamCache);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public void endMap() {
+            try {
+                emitMapEnd();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+            end();
+        }
+
+        public void writeElement(Object o) {
+            startTiming();
+            try {
+                emitter.marshalElement(o, false, streamCache);
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            } finally {
+                stopTiming();
+            }
+            elementWritten();
+        }
+
+        /**
+         * Writes one entry of a streamed map. Its key must be one a map
+         * written whole would write as a string: a map with any other keys
+         * is written as a cmap, which needs all of them up front.
+         */
+        public void writeEntry(Object key, Object value) {
+            String tag = handlers.getTag(key);
+            if (tag != null && tag.length() != 1) {
+                String shown = key instanceof IRubyObject ? ((IRubyObject)key).inspect().toString() : String.valueOf(key);
+                throw new IllegalArgumentException("Can not stream " + shown +
+                        " as a map key; write the map whole to write it as a cmap");
+            }
+            startTiming();
+            try {
+                emitter.marshalElement(key, true, streamCache);
+                emitter.marshalElement(value, false, streamCache);
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            } finally {
+                stopTiming();
+            }
+            elementWritten();
+        }
+
+        /**
+         * Moves what the emitter has buffered into pending, so a large array
+         * or map is flushed in pieces of about bufferSize bytes.
+         */
+        private void elementWritten() {
+            try {
+                emitter.flushWriter();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if (pending.size >= bufferSize) flush();
+        }
+
+        private void begin() {
+            if (depth++ == 0) streamCache = topCache();
+        }
+
+        private void end() {
+            if (--depth == 0) {
+                if (metrics != null) metrics.value();
+                written(flushEvery);
+            }
+        }
+
+        protected void emitMapStart(Long size, WriteCache cache) throws Exception {
+            emitter.emitMapStart(size);
+        }
+
+        protected void emitMapEnd() throws Exception {
+            emitter.emitMapEnd();
+        }
+
+        public void flush() {
+            try {
+                emitter.flushWriter();
+                out.flush();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if (metrics != null && countsBytes) metrics.bytes(pending.size);
+            unflushed = 0;
+            pending.size = 0;
+        }
+
+        public void reset(OutputStream out) {
+            try {
+                this.pending = new PendingOutputStream(out);
+                this.emitter = createEmitter(pending);
+                this.emitter.setMetrics(metrics);
+                this.out = out;
+                this.unflushed = 0;
+                this.wroteValue = false;
+                this.depth = 0;
+                this.sessionValues = 0;
+                cache.init();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        protected abstract StreamingEmitter createEmitter(OutputStream out) throws IOException;
+
+        /**
+         * Returns a writer of the same format and handlers, with a write
+         * cache of its own, writing to out.
+         */
+        protected abstract WriterImpl newWriter(OutputStream out);
+
+        /**
+         * Returns a writer for a ParallelEncoder worker, counting into the
+         * same metrics, but for the bytes, which are counted once they are
+         * written here.
+         */
+        WriterImpl newWorker(OutputStream out) {
+            WriterImpl worker = newWriter(out);
+            worker.setMetrics(metrics);
+            worker.countsBytes = false;
+            return worker;
+        }
+    }
+
+    static class JsonWriterImpl extends WriterImpl {
+
+        public JsonWriterImpl(OutputStream out, WriteHandlerSet handlers) {
+            super(out, handlers, true);
+        }
+
+        @Override
+        protected WriterImpl newWriter(OutputStream out) {
+            return new JsonWriterImpl(out, handlers);
+        }
+
+        @Override
+        protected StreamingEmitter createEmitter(OutputStream out) throws IOException {
+            return new StreamingJsonEmitter(JSON_FACTORY.createGenerator(out), handlers);
+        }
+
+        /**
+         * Maps are written as arrays tagged with "^ ", as JsonEmitter does.
+         */
+        @Override
+        protected void emitMapStart(Long size, WriteCache cache) throws Exception {
+            emitter.emitArrayStart(size);
+            emitter.emitString(null, null, Constants.MAP_AS_ARRAY, false, cache);
+        }
+
+        @Override
+        protected void emitMapEnd() throws Exception {
+            emitter.emitArrayEnd();
+        }
+    }
+
+    static class VerboseJsonWriterImpl extends WriterImpl {
+
+        public VerboseJsonWriterImpl(OutputStream out, WriteHandlerSet handlers) {
+            super(out, handlers, false);
+        }
+
+        @Override
+        protected WriterImpl newWriter(OutputStream out) {
+            return new VerboseJsonWriterImpl(out, handlers);
+        }
+
+        @Override
+        protected StreamingEmitter createEmitter(OutputStream out) throws IOException {
+            return new StreamingJsonVerboseEmitter(JSON_FACTORY.createGenerator(out), handlers);
+        }
+    }
+
+    static class MsgPackWriterImpl extends WriterImpl {
+
+        public MsgPackWriterImpl(OutputStream out, WriteHandlerSet handlers) {
+            super(out, handlers, true);
+        }
+
+        @Override
+        protected WriterImpl newWriter(OutputStream out) {
+            return new MsgPackWriterImpl(out, handlers);
+        }
+
+        @Override
+        protected StreamingEmitter createEmitter(OutputStream out) throws IOException {
+            return new StreamingMsgpackEmitter(MESSAGE_PACK.createPacker(out), handlers);
+        }
+    }
+}
@@ -22,21 +22,22 @@ import java.util.Map;
 import org.jruby.Ruby;
 import org.jruby.RubyClass;
 import org.jruby.RubyHash;
+import org.jruby.RubyNumeric;
 import org.jruby.RubyObject;
-import org.jruby.RubyString;
-import org.jruby.javasupport.JavaUtil;
 import org.jruby.runtime.Block;
 import org.jruby.runtime.ThreadContext;
 import org.jruby.runtime.builtin.IRubyObject;
 
 import com.cognitect.transit.DefaultReadHandler;
 import com.cognitect.transit.ReadHandler;
-import com.cognitect.transit.Reader;
 import com.cognitect.transit.impl.ReaderFactory;
+import com.cognitect.transit.ruby.CompiledHandlers;
+import com.cognitect.transit.ruby.Metrics;
+import com.cognitect.transit.ruby.TransitTypeConverter;
 
 public abstract class Base extends RubyObject {
     private static final long serialVersionUID = -2693178195157618851L;
-    protected Reader reader;
+    protected RubyReaders.ReaderImpl reader;
 
     @Override
     public Object clone() throws CloneNotSupportedException {
@@ -52,6 +53,15 @@ public abstract class Base extends RubyObject {
         return decoderClass.callMethod(context, "new", opts);
     }
 
+    /**
+     * True when the reader options hash has a truthy value for the symbol name.
+     */
+    protected static boolean isOptionSet(ThreadContext context, IRubyObject opts, String name) {
+        if (!(opts instanceof RubyHash)) return false;
+        IRubyObject value = ((RubyHash)opts).fastARef(context.getRuntime().newSymbol(name));
+        return value != null && value.isTrue();
+    }
+
     protected InputStream convertRubyIOToInputStream(ThreadContext context, IRubyObject rubyObject) {
         if (rubyObject.respondsTo("to_inputstream")) {
             return (InputStream) rubyObject.callMethod(context, "to_inputstream").toJava(InputStream.class);
@@ -60,53 +70,222 @@ public abstract class Base extends RubyObject {
         }
     }
 
-    protected Map<String, ReadHandler<?, ?>> convertRubyHandlersToJavaHandlers(
-            final ThreadContext context) {
+    private IRubyObject decoderVariable(String name) {
         IRubyObject decoder = this.getInstanceVariable("@decoder");
-        IRubyObject ivar = decoder.callMethod(context.getRuntime().getCurrentContext(), "instance_variable_get", context.getRuntime().newString("@handlers"));
-        final RubyHash handlers = (RubyHash)ivar;
+        return decoder.getInstanceVariables().getInstanceVariable(name);
+    }
+
+    /**
+     * The java handler table is compiled once per handlers Hash and shared by
+     * every reader the decoder cache hands that Hash to. The wrappers for
+     * custom handlers call from_rep through the context of the thread that
+     * reads, so they can be shared across threads, and time the call when
+     * that thread is timing a value for metrics.
+     */
+    protected Map<String, ReadHandler<?, ?>> convertRubyHandlersToJavaHandlers(
+            ThreadContext context) {
+        final Ruby runtime = context.getRuntime();
+        final RubyHash handlers = (RubyHash)decoderVariable("@handlers");
+        return CompiledHandlers.get(handlers, "read_handlers",
+                new CompiledHandlers.Compiler<Map<String, ReadHandler<?, ?>>>() {
+                    public Map<String, ReadHandler<?, ?>> compile() {
+                        return compileHandlers(runtime, handlers);
+                    }
+                });
+    }
+
+    private static Map<String, ReadHandler<?, ?>> compileHandlers(final Ruby runtime, RubyHash handlers) {
         Map<String, ReadHandler<?, ?>> javaHandlers = new HashMap<String, ReadHandler<?, ?>>();
         for (Object key : handlers.keySet()) {
             final IRubyObject handler = (IRubyObject)handlers.get(key);
-            javaHandlers.put((String)key, new ReadHandler<IRubyObject, Object>() {
-                public IRubyObject fromRep(Object o) {
-                    return handler.callMethod(context, "from_rep",
-                            JavaUtil.convertJavaToUsableRubyObject(context.getRuntime(), o));
-                }
-            });
-        }
-        // replaces TimeStringHandler to cover JRuby's bug in DateTime.iso8601() method
-        if (((RubyObject)handlers.get("t")).getMetaClass().getName().
-                equals("Transit::ReadHandlers::TimeStringHandler")) {
-            javaHandlers.put("t", new ReadHandler<IRubyObject, Object>() {
+            ReadHandler<IRubyObject, Object> stock =
+                    RubyReadHandlers.stockHandler(runtime, handler.getMetaClass().getName());
+            if (stock != null) {
+                javaHandlers.put((String)key, stock);
+                continue;
+            }
+            final String tag = (String)key;
+            javaHandlers.put(tag, new ReadHandler<IRubyObject, Object>() {
                 public IRubyObject fromRep(Object o) {
-                    RubyClass klazz = (RubyClass) context.getRuntime().getClassFromPath("DateTime");
-                    RubyString string = context.getRuntime().newString((String)o);
-                    RubyString format = context.getRuntime().newString("%Y-%m-%dT%H:%M:%S.%N%z");
-                    return klazz.callMethod(context, "strptime", new IRubyObject[]{string, format});
+                    IRubyObject rep = TransitTypeConverter.convertJavaToRuby(runtime, o);
+                    Metrics.Side metrics = Metrics.current();
+                    if (metrics == null) return handler.callMethod(runtime.getCurrentContext(), "from_rep", rep);
+                    long start = System.nanoTime();
+                    try {
+                        return handler.callMethod(runtime.getCurrentContext(), "from_rep", rep);
+                    } finally {
+                        metrics.handlerCall(tag, System.nanoTime() - start);
+                    }
                 }
             });
         }
         return javaHandlers;
     }
 
+    /**
+     * The projection the decoder built from the :select option, or null when
+     * values are read whole.
+     */
+    protected Projection convertRubyProjection(ThreadContext context) {
+        IRubyObject tree = decoderVariable("@projection");
+        if (!(tree instanceof RubyHash)) return null;
+        return Projection.fromRuby(context.getRuntime(), (RubyHash)tree);
+    }
+
+    /**
+     * True when the reader was created with :lazy.
+     */
+    protected boolean isLazy() {
+        IRubyObject lazy = decoderVariable("@lazy");
+        return lazy != null && lazy.isTrue();
+    }
+
+    /**
+     * True when the reader was created with :session.
+     */
+    protected boolean isSession() {
+        IRubyObject session = decoderVariable("@session");
+        return session != null && session.isTrue();
+    }
+
+    /**
+     * Counts into the Transit::Metrics given as :metrics, if any.
+     */
+    protected void setMetrics(ThreadContext context, IRubyObject opts) {
+        Metrics metrics = Metrics.fromOptions(context, opts);
+        if (metrics != null) reader.setMetrics(metrics.read);
+    }
+
     protected DefaultReadHandler<IRubyObject> convertRubyDefaultHandlerToJavaDefaultHandler(
-            final ThreadContext context) {
-        IRubyObject decoder = this.getInstanceVariable("@decoder");
-        IRubyObject ivar = decoder.callMethod(context.getRuntime().getCurrentContext(),
-                    "instance_variable_get",
-                    context.getRuntime().newString("@default_handler"));
-        final RubyObject handler = (RubyObject)ivar;
+            ThreadContext context) {
+        final Ruby runtime = context.getRuntime();
+        final IRubyObject handler = decoderVariable("@default_handler");
         DefaultReadHandler<IRubyObject> javaHandler = new DefaultReadHandler<IRubyObject>() {
             public IRubyObject fromRep(String tag, Object rep) {
-                return handler.callMethod("from_rep",
-                        context.getRuntime().newString(tag),
-                        JavaUtil.convertJavaToUsableRubyObject(context.getRuntime(), rep));
+                IRubyObject[] args = new IRubyObject[] {
+                        runtime.newString(tag),
+                        TransitTypeConverter.convertJavaToRuby(runtime, rep)};
+                Metrics.Side metrics = Metrics.current();
+                if (metrics == null) return handler.callMethod(runtime.getCurrentContext(), "from_rep", args);
+                long start = System.nanoTime();
+                try {
+                    return handler.callMethod(runtime.getCurrentContext(), "from_rep", args);
+                } finally {
+                    metrics.handlerCall(tag, System.nanoTime() - start);
+                }
             }
         };
         return javaHandler;
     }
 
+    /**
+     * Points the reader at a new io, keeping its handlers, builders and cache.
+     */
+    protected IRubyObject reset(ThreadContext context, IRubyObject io) {
+        reader.reset(convertRubyIOToInputStream(context, io));
+        return this;
+    }
+
+    /**
+     * Yields each value to the block until the end of the input, which ends
+     * the loop rather than raising. The block is called outside the error
+     * handling, so break and exceptions from it pass through unchanged.
+     */
+    protected IRubyObject each(ThreadContext context, Block block) {
+        Ruby runtime = context.getRuntime();
+        while (true) {
+            Object o;
+            try {
+                o = reader.readNext();
+            } catch (Throwable t) {
+                throw runtime.newRuntimeError(t.getMessage());
+            }
+            if (o == RubyParsers.END) return runtime.getNil();
+            block.yield(context, TransitTypeConverter.convertJavaToRuby(runtime, o));
+        }
+    }
+
+    /**
+     * Like each, parsing the values on a pool of threads, or one per
+     * processor when threads is not positive.
+     */
+    protected IRubyObject eachParallel(ThreadContext context, IRubyObject threads, Block block) {
+        Ruby runtime = context.getRuntime();
+        if (reader.lazy) throw runtime.newArgumentError(":parallel can not be combined with :lazy");
+        if (reader.inSession()) throw runtime.newArgumentError(":parallel can not be combined with :session");
+        int n = RubyNumeric.num2int(threads);
+        if (n < 1) n = Runtime.getRuntime().availableProcessors();
+        ParallelReader parallel;
+        try {
+            parallel = reader.parallel(n);
+        } catch (IllegalStateException e) {
+            throw runtime.newRuntimeError(e.getMessage());
+        }
+        try {
+            while (true) {
+                Object o;
+                try {
+                    o = parallel.next();
+                } catch (Throwable t) {
+                    throw runtime.newRuntimeError(t.getMessage());
+                }
+                if (o == RubyParsers.END) return runtime.getNil();
+                block.yield(context, TransitTypeConverter.convertJavaToRuby(runtime, o));
+            }
+        } finally {
+            parallel.end();
+        }
+    }
+
+    /**
+     * Like each, or eachElement with elements, reading up to size values
+     * ahead of the block on a background thread.
+     */
+    protected IRubyObject eachReadAhead(ThreadContext context, IRubyObject size, IRubyObject elements, Block block) {
+        Ruby runtime = context.getRuntime();
+        if (reader.lazy) throw runtime.newArgumentError(":read_ahead can not be combined with :lazy");
+        ReadAhead ahead = reader.readAhead(RubyNumeric.num2int(size), elements.isTrue());
+        try {
+            while (true) {
+                Object o;
+                try {
+                    o = ahead.next();
+                } catch (Throwable t) {
+                    throw runtime.newRuntimeError(t.getMessage());
+                }
+                if (o == RubyParsers.END) return runtime.getNil();
+                block.yield(context, TransitTypeConverter.convertJavaToRuby(runtime, o));
+            }
+        } finally {
+            ahead.close();
+        }
+    }
+
+    /**
+     * Yields each element of each top-level array as it is parsed, so the
+     * arrays themselves are never built.
+     */
+    protected IRubyObject eachElement(ThreadContext context, Block block) {
+        Ruby runtime = context.getRuntime();
+        while (true) {
+            try {
+                if (!reader.beginElements()) return runtime.getNil();
+            } catch (Throwable t) {
+                throw runtime.newRuntimeError(t.getMessage());
+            }
+            while (true) {
+                Object o;
+                try {
+                    o = reader.readElement();
+                } catch (Throwable t) {
+                    throw runtime.newRuntimeError(t.getMessage());
+                }
+                if (o == RubyParsers.END) break;
+                block.yield(context, TransitTypeConverter.convertJavaToRuby(runtime, o));
+            }
+        }
+    }
+
     /**
        read method accepts a block
      **/
@@ -114,12 +293,7 @@ public abstract class Base extends RubyObject {
         try {
             Object o;
             while ((o = reader.read()) != null) {
-                IRubyObject value;
-                if (o instanceof IRubyObject) {
-                    value = (IRubyObject)o;
-                } else {
-                    value = JavaUtil.convertJavaToUsableRubyObject(context.getRuntime(), o);
-                }
+                IRubyObject value = TransitTypeConverter.convertJavaToRuby(context.getRuntime(), o);
                 if ((value != null) && block.isGiven()) {
                     block.yield(context, value);
                 } else {
@@ -0,0 +1,147 @@
+// Copyright 2014 Cognitect. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS-IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cognitect.transit.ruby.unmarshaler;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.chrono.GJChronology;
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyKernel;
+import org.jruby.javasupport.JavaUtil;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+/**
+ * Builds the DateTimes for the "t" and "m" tags in java. JRuby 1.7's
+ * date.rb keeps a Joda DateTime in each DateTime, so these make that
+ * directly, from epoch millis or from the ISO-8601 strings transit
+ * writes, and hand it to DateTime.new!, as DateTime.civil does, without
+ * DateTime.strptime or Transit::DateTimeUtil.from_millis.
+ *
+ * Where DateTime is not built on Joda, or the string is not in a form
+ * scanned here, these return null and the handlers fall back to ruby.
+ */
+final class DateTimes {
+    private static final GJChronology UTC = GJChronology.getInstance(DateTimeZone.UTC);
+
+    private final Ruby runtime;
+    private final RubyClass dateTimeClass;
+    private final boolean joda;
+    private final IRubyObject italy;
+
+    DateTimes(Ruby runtime) {
+        this.runtime = runtime;
+        this.dateTimeClass = (RubyClass)runtime.getClassFromPath("DateTime");
+        this.joda = dateTimeClass.getConstantNoConstMissing("JODA") != null;
+        this.italy = joda ? dateTimeClass.getConstant("ITALY") : null;
+    }
+
+    /**
+     * Reads millis as DateTimeUtil.from_millis does, less its float
+     * rounding, from the Gregorian cutover on. Before it, from_millis
+     * reads the date in Gregorian days and ruby dates are Julian.
+     */
+    IRubyObject fromMillis(long millis) {
+        if (!joda || millis < UTC.getGregorianCutover().getMillis()) return null;
+        return newDateTime(new DateTime(millis, UTC), 0);
+    }
+
+    /**
+     * Reads yyyy-MM-ddTHH:mm:ss, with up to three digits of fractional
+     * seconds, and Z or an offset of +HH:mm or +HHmm.
+     */
+    IRubyObject fromString(String s) {
+        if (!joda) return null;
+        int n = s.length();
+        if (n < 20 || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T' ||
+                s.charAt(13) != ':' || s.charAt(16) != ':') return null;
+        int year = digits(s, 0, 4);
+        int month = digits(s, 5, 2);
+        int day = digits(s, 8, 2);
+        int hour = digits(s, 11, 2);
+        int minute = digits(s, 14, 2);
+        int second = digits(s, 17, 2);
+        if (year < 1 || month < 0 || day < 0 || hour < 0 || minute < 0 || second < 0) return null;
+
+        int i = 19;
+        int millis = 0;
+        if (s.charAt(i) == '.') {
+            int start = ++i;
+            while (i < n && Character.isDigit(s.charAt(i))) i++;
+            int length = i - start;
+            if (length == 0 || length > 3) return null;
+            millis = digits(s, start, length);
+            for (int k = length; k < 3; k++) millis *= 10;
+        }
+
+        if (i >= n) return null;
+        int offset = offsetMinutes(s, i);
+        if (offset == Integer.MIN_VALUE) return null;
+        try {
+            GJChronology chronology = offset == 0 ? UTC :
+                    GJChronology.getInstance(DateTimeZone.forOffsetMillis(offset * 60000));
+            return newDateTime(new DateTime(year, month, day, hour, minute, second, millis, chronology), offset);
+        } catch (IllegalArgumentException e) {
+            // out of range fields, for strptime to reject
+            return null;
+        }
+    }
+
+    private IRubyObject newDateTime(DateTime dt, int offsetMinutes) {
+        ThreadContext context = runtime.getCurrentContext();
+        IRubyObject offset = offsetMinutes == 0 ? runtime.newFixnum(0) :
+                // Kernel#Rational, as date.rb has it
+                RubyKernel.new_rational(context, runtime.getKernel(),
+                        runtime.newFixnum(offsetMinutes * 60), runtime.newFixnum(86400));
+        return dateTimeClass.callMethod(context, "new!", new IRubyObject[] {
+                JavaUtil.convertJavaToUsableRubyObject(runtime, dt),
+                offset,
+                italy});
+    }
+
+    /**
+     * The offset at i, to the end of s, in minutes, or Integer.MIN_VALUE.
+     */
+    private static int offsetMinutes(String s, int i) {
+        int n = s.length();
+        char c = s.charAt(i);
+        if (c == 'Z') return i + 1 == n ? 0 : Integer.MIN_VALUE;
+        if (c != '+' && c != '-') return Integer.MIN_VALUE;
+        int hours = digits(s, i + 1, 2);
+        int minutes;
+        if (n - i == 6 && s.charAt(i + 3) == ':') minutes = digits(s, i + 4, 2);
+        else if (n - i == 5) minutes = digits(s, i + 3, 2);
+        else return Integer.MIN_VALUE;
+        if (hours < 0 || minutes < 0 || minutes > 59) return Integer.MIN_VALUE;
+        int offset = hours * 60 + minutes;
+        return c == '-' ? -offset : offset;
+    }
+
+    /**
+     * The number in the length digits at start, or -1.
+     */
+    private static int digits(String s, int start, int length) {
+        if (start + length > s.length()) return -1;
+        int value = 0;
+        for (int i = start; i < start + length; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
@@ -57,8 +57,13 @@ public class Json extends Base {
         InputStream input = convertRubyIOToInputStream(context, args[0]);
         Map<String, ReadHandler<?, ?>> handlers = convertRubyHandlersToJavaHandlers(context);
         DefaultReadHandler<IRubyObject> defaultHandler = convertRubyDefaultHandlerToJavaDefaultHandler(context);
-        reader = new RubyReaders.JsonReaderImpl(input, handlers, defaultHandler);
-        ((ReaderSPI)reader).setBuilders((MapReader)(new RubyMapReader(context.getRuntime())),
+        reader = new RubyReaders.JsonReaderImpl(context.getRuntime(), input, handlers, defaultHandler);
+        reader.projection = convertRubyProjection(context);
+        reader.lazy = isLazy();
+        if (isSession()) reader.startSession();
+        setMetrics(context, args[1]);
+        ((ReaderSPI)reader).setBuilders((MapReader)(new RubyMapReader(context.getRuntime(),
+                                                isOptionSet(context, args[1], "intern_keys"))),
                                         (ArrayReader)(new RubyArrayReader(context.getRuntime())));
     }
 
@@ -69,4 +74,29 @@ public class Json extends Base {
     public IRubyObject read(ThreadContext context, Block block) {
         return super.read(context, block);
     }
+
+    @JRubyMethod
+    public IRubyObject each(ThreadContext context, Block block) {
+        return super.each(context, block);
+    }
+
+    @JRubyMethod
+    public IRubyObject each_parallel(ThreadContext context, IRubyObject threads, Block block) {
+        return super.eachParallel(context, threads, block);
+    }
+
+    @JRubyMethod
+    public IRubyObject each_read_ahead(ThreadContext context, IRubyObject size, IRubyObject elements, Block block) {
+        return super.eachReadAhead(context, size, elements, block);
+    }
+
+    @JRubyMethod
+    public IRubyObject each_element(ThreadContext context, Block block) {
+        return super.eachElement(context, block);
+    }
+
+    @JRubyMethod
+    public IRubyObject reset(ThreadContext context, IRubyObject io) {
+        return super.reset(context, io);
+    }
 }
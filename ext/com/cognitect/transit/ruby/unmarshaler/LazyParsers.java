@@ -0,0 +1,546 @@
+// Copyright 2014 Cognitect. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS-IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cognitect.transit.ruby.unmarshaler;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jruby.Ruby;
+import org.jruby.RubyClass;
+import org.jruby.RubyObject;
+import org.jruby.anno.JRubyClass;
+import org.jruby.anno.JRubyMethod;
+import org.jruby.runtime.Block;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+import org.msgpack.type.ValueType;
+
+import com.cognitect.transit.ArrayReader;
+import com.cognitect.transit.DefaultReadHandler;
+import com.cognitect.transit.MapReader;
+import com.cognitect.transit.ReadHandler;
+import com.cognitect.transit.impl.AbstractParser;
+import com.cognitect.transit.impl.Constants;
+import com.cognitect.transit.impl.ReadCache;
+import com.cognitect.transit.impl.Tag;
+import com.cognitect.transit.ruby.TransitTypeConverter;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Parsers for readers created with :lazy. The input is read into one
+ * buffer, and each top-level map or array in it is only walked once, to
+ * feed the read cache and to note what each cache code in it stands for,
+ * by offset. The reader returns a Transit::LazyMap or Transit::LazyArray,
+ * which parses one level of the value from the buffer when it is first
+ * used, its own maps and arrays being lazy in turn. Tagged values are
+ * decoded whole, since their handlers need the whole representation.
+ */
+public class LazyParsers {
+
+    interface LazyParser {
+        /**
+         * The offset in the buffer of the string being read.
+         */
+        int offset();
+
+        Object parseRaw(String s);
+
+        /**
+         * Decodes one level of the map or array at offset start, resolving
+         * cache codes from codes.
+         */
+        Object decodeLevel(int start, boolean map, Map<Integer, Object> codes) throws IOException;
+    }
+
+    static boolean isCacheCode(String s) {
+        return s.length() > 1 && s.charAt(0) == Constants.SUB && !s.equals(Constants.MAP_AS_ARRAY);
+    }
+
+    /**
+     * While a top-level value is walked, the reader's rolling cache, noting
+     * the value each cache code stands for. While a level is decoded, it
+     * looks codes up among those noted, and caches nothing.
+     */
+    static class LazyCache extends ReadCache {
+        private final LazyParser parser;
+        private final boolean resolving;
+        Map<Integer, Object> codes;
+
+        LazyCache(LazyParser parser, Map<Integer, Object> codes) {
+            this.parser = parser;
+            this.resolving = codes != null;
+            this.codes = codes;
+        }
+
+        /**
+         * Starts noting codes for the next top-level value.
+         */
+        Map<Integer, Object> index() {
+            codes = new HashMap<Integer, Object>();
+            return codes;
+        }
+
+        @Override
+        public Object cacheRead(String s, boolean asMapKey, AbstractParser p) {
+            boolean code = isCacheCode(s);
+            if (resolving) return code ? codes.get(parser.offset()) : parser.parseRaw(s);
+            Object value = super.cacheRead(s, asMapKey, p);
+            if (code) codes.put(parser.offset(), value);
+            return value;
+        }
+    }
+
+    /**
+     * The Ruby side of a lazy map or array, which decodes its level when the
+     * proxy is first used.
+     */
+    @JRubyClass(name="Transit::Unmarshaler::LazySource")
+    public static class LazySource extends RubyObject {
+        private static final long serialVersionUID = 3316512471226306915L;
+        private final LazyParser root;
+        private final int start;
+        private final boolean map;
+        private final Map<Integer, Object> codes;
+
+        LazySource(Ruby runtime, RubyClass rubyClass, LazyParser root, int start, boolean map, Map<Integer, Object> codes) {
+            super(runtime, rubyClass);
+            this.root = root;
+            this.start = start;
+            this.map = map;
+            this.codes = codes;
+        }
+
+        @JRubyMethod
+        public IRubyObject decode(ThreadContext context) {
+            Object level;
+            try {
+                level = root.decodeLevel(start, map, codes);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+            return TransitTypeConverter.convertJavaToRuby(context.getRuntime(), level);
+        }
+    }
+
+    /**
+     * The classes lazy values are made of, looked up once per reader.
+     */
+    static class Proxies {
+        private final Ruby runtime;
+        private final RubyClass source;
+        private final RubyClass lazyMap;
+        private final RubyClass lazyArray;
+
+        Proxies(Ruby runtime) {
+            this.runtime = runtime;
+            this.source = (RubyClass)runtime.getClassFromPath("Transit::Unmarshaler::LazySource");
+            this.lazyMap = (RubyClass)runtime.getClassFromPath("Transit::LazyMap");
+            this.lazyArray = (RubyClass)runtime.getClassFromPath("Transit::LazyArray");
+        }
+
+        IRubyObject proxy(LazyParser root, int start, boolean map, Map<Integer, Object> codes) {
+            LazySource s = new LazySource(runtime, source, root, start, map, codes);
+            return (map ? lazyMap : lazyArray).newInstance(runtime.getCurrentContext(), s, Block.NULL_BLOCK);
+        }
+    }
+
+    public static class LazyJsonParser extends RubyParsers.RubyJsonParser implements LazyParser {
+        private final Ruby runtime;
+        private final byte[] buffer;
+        private final int base;
+        private final LazyJsonParser root;
+        private final LazyCache cache;
+        private final Map<String, ReadHandler<?, ?>> handlers;
+        private final DefaultReadHandler<?> defaultHandler;
+        private final Proxies proxies;
+
+        public LazyJsonParser(Ruby runtime,
+                              byte[] buffer,
+                              Map<String, ReadHandler<?, ?>> handlers,
+                              DefaultReadHandler<?> defaultHandler,
+                              MapReader<?, Map<Object, Object>, Object, Object> mapBuilder,
+                              ArrayReader<?, List<Object>, Object> listBuilder) throws IOException {
+            this(runtime, buffer, 0, null, handlers, defaultHandler, mapBuilder, listBuilder, null);
+        }
+
+        private LazyJsonParser(Ruby runtime,
+                               byte[] buffer,
+                               int base,
+                               LazyJsonParser root,
+                               Map<String, ReadHandler<?, ?>> handlers,
+                               DefaultReadHandler<?> defaultHandler,
+                               MapReader<?, Map<Object, Object>, Object, Object> mapBuilder,
+                               ArrayReader<?, List<Object>, Object> listBuilder,
+                               Map<Integer, Object> codes) throws IOException {
+            super(runtime, RubyReaders.JSON_FACTORY.createParser(buffer, base, buffer.length - base),
+                  handlers, defaultHandler, mapBuilder, listBuilder, null);
+            this.runtime = runtime;
+            this.buffer = buffer;
+            this.base = base;
+            this.root = root == null ? this : root;
+            this.cache = new LazyCache(this, codes);
+            this.handlers = handlers;
+            this.defaultHandler = defaultHandler;
+            this.proxies = root == null ? new Proxies(runtime) : root.proxies;
+        }
+
+        public int offset() {
+            return base + (int)jp.getTokenLocation().getByteOffset();
+        }
+
+        public Object parseRaw(String s) {
+            return parseString(s);
+        }
+
+        // The reader's cache is not used: this parser's own cache notes the
+        // cache codes as well.
+
+        @Override
+        public Object parse(ReadCache readerCache) throws IOException {
+            if (jp.nextToken() == null) throw new java.io.EOFException();
+            return value(cache.init());
+        }
+
+        @Override
+        public Object next(ReadCache readerCache) throws IOException {
+            return super.next(cache.init());
+        }
+
+        @Override
+        public boolean beginArray(ReadCache readerCache) throws IOException {
+            return super.beginArray(cache.init());
+        }
+
+        @Override
+        public Object nextElement(ReadCache readerCache) throws IOException {
+            return super.nextElement(cache);
+        }
+
+        /**
+         * Walks a map or array to the end, noting its cache codes, and
+         * returns it lazily.
+         */
+        @Override
+        Object value(ReadCache cache) throws IOException {
+            JsonToken token = jp.getCurrentToken();
+            if (token != JsonToken.START_ARRAY && token != JsonToken.START_OBJECT) {
+                return parseVal(false, cache);
+            }
+            int start = containerStart();
+            Map<Integer, Object> codes = this.cache.index();
+            skip(cache);
+            LazyJsonParser level = level(start, codes);
+            level.jp.nextToken();
+            return level.child();
+        }
+
+        // Values the writer could have cached or replaced by a code start with
+        // ESC or SUB, so the others are passed over without Jackson
+        // decoding their text.
+        @Override
+        void skipString(ReadCache cache, boolean asMapKey) throws IOException {
+            if (!asMapKey) {
+                int quote = base + (int)jp.getTokenLocation().getByteOffset();
+                while (buffer[quote] != '"') quote++;
+                byte first = buffer[quote + 1];
+                if (first != Constants.ESC && first != Constants.SUB) return;
+            }
+            int length = jp.getTextLength();
+            if (length == 2 || length == 3) {
+                char[] chars = jp.getTextCharacters();
+                int offset = jp.getTextOffset();
+                if (chars[offset] == Constants.SUB && chars[offset + 1] != ' ') {
+                    cache.cacheRead(jp.getText(), asMapKey, this);
+                    return;
+                }
+            }
+            super.skipString(cache, asMapKey);
+        }
+
+        // Jackson reports the offset of a token that follows a comma as the
+        // comma's
+        private int containerStart() throws IOException {
+            int start = base + (int)jp.getTokenLocation().getByteOffset();
+            while (buffer[start] != '[' && buffer[start] != '{') start++;
+            return start;
+        }
+
+        private LazyJsonParser level(int start, Map<Integer, Object> codes) throws IOException {
+            return new LazyJsonParser(runtime, buffer, start, root, handlers, defaultHandler,
+                                      mapBuilder, listBuilder, codes);
+        }
+
+        public Object decodeLevel(int start, boolean map, Map<Integer, Object> codes) throws IOException {
+            return level(start, codes).decodeLevel(map);
+        }
+
+        private Object decodeLevel(boolean map) throws IOException {
+            if (jp.nextToken() == JsonToken.START_OBJECT) {
+                Object m = mapBuilder.init();
+                while (jp.nextToken() != JsonToken.END_OBJECT) {
+                    Object key = parseVal(true, cache);
+                    jp.nextToken();
+                    m = mapBuilder.add(m, key, child());
+                }
+                return mapBuilder.complete(m);
+            }
+            if (map) {
+                jp.nextToken();
+                Object m = mapBuilder.init();
+                while (jp.nextToken() != JsonToken.END_ARRAY) {
+                    Object key = parseVal(true, cache);
+                    jp.nextToken();
+                    m = mapBuilder.add(m, key, child());
+                }
+                return mapBuilder.complete(m);
+            }
+            Object l = listBuilder.init();
+            while (jp.nextToken() != JsonToken.END_ARRAY) {
+                l = listBuilder.add(l, child());
+            }
+            return listBuilder.complete(l);
+        }
+
+        /**
+         * Reads the value at the current token, returning maps and arrays
+         * lazily.
+         */
+        private Object child() throws IOException {
+            switch (jp.getCurrentToken()) {
+                case START_ARRAY: {
+                    int start = containerStart();
+                    if (jp.nextToken() == JsonToken.END_ARRAY) return listBuilder.complete(listBuilder.init());
+                    boolean map = false;
+                    if (jp.getCurrentToken() == JsonToken.VALUE_STRING) {
+                        map = isMapMarker();
+                        if (!map) {
+                            Object first = parseVal(false, cache);
+                            if (first instanceof Tag) return tagged((Tag)first);
+                        }
+                    } else {
+                        jp.skipChildren();
+                    }
+                    while (jp.nextToken() != JsonToken.END_ARRAY) jp.skipChildren();
+                    return proxies.proxy(root, start, map, cache.codes);
+                }
+                case START_OBJECT: {
+                    int start = containerStart();
+                    if (jp.nextToken() == JsonToken.END_OBJECT) return mapBuilder.complete(mapBuilder.init());
+                    Object key = parseVal(true, cache);
+                    if (key instanceof Tag) return tagged((Tag)key);
+                    do {
+                        jp.nextToken();
+                        jp.skipChildren();
+                    } while (jp.nextToken() != JsonToken.END_OBJECT);
+                    return proxies.proxy(root, start, true, cache.codes);
+                }
+                default:
+                    return parseVal(false, cache);
+            }
+        }
+
+        private Object tagged(Tag tag) throws IOException {
+            jp.nextToken();
+            Object rep = parseVal(false, cache);
+            jp.nextToken();
+            return decode(tag.getValue(), rep);
+        }
+    }
+
+    public static class LazyMsgpackParser extends RubyParsers.RubyMsgpackParser implements LazyParser {
+        private final Ruby runtime;
+        private final byte[] buffer;
+        private final int base;
+        private final LazyMsgpackParser root;
+        private final LazyCache cache;
+        private final Map<String, ReadHandler<?, ?>> handlers;
+        private final DefaultReadHandler<?> defaultHandler;
+        private final Proxies proxies;
+
+        public LazyMsgpackParser(Ruby runtime,
+                                 byte[] buffer,
+                                 Map<String, ReadHandler<?, ?>> handlers,
+                                 DefaultReadHandler<?> defaultHandler,
+                                 MapReader<?, Map<Object, Object>, Object, Object> mapBuilder,
+                                 ArrayReader<?, List<Object>, Object> listBuilder) {
+            this(runtime, buffer, 0, null, handlers, defaultHandler, mapBuilder, listBuilder, null);
+        }
+
+        private LazyMsgpackParser(Ruby runtime,
+                                  byte[] buffer,
+                                  int base,
+                                  LazyMsgpackParser root,
+                                  Map<String, ReadHandler<?, ?>> handlers,
+                                  DefaultReadHandler<?> defaultHandler,
+                                  MapReader<?, Map<Object, Object>, Object, Object> mapBuilder,
+                                  ArrayReader<?, List<Object>, Object> listBuilder,
+                                  Map<Integer, Object> codes) {
+            super(runtime, RubyReaders.MESSAGE_PACK.createBufferUnpacker(buffer, base, buffer.length - base),
+                  handlers, defaultHandler, mapBuilder, listBuilder, null);
+            this.runtime = runtime;
+            this.buffer = buffer;
+            this.base = base;
+            this.root = root == null ? this : root;
+            this.cache = new LazyCache(this, codes);
+            this.handlers = handlers;
+            this.defaultHandler = defaultHandler;
+            this.proxies = root == null ? new Proxies(runtime) : root.proxies;
+        }
+
+        // strings are looked up by the offset just past them
+        public int offset() {
+            return base + mp.getReadByteCount();
+        }
+
+        public Object parseRaw(String s) {
+            return parseString(s);
+        }
+
+        @Override
+        public Object parse(ReadCache readerCache) throws IOException {
+            return value(cache.init());
+        }
+
+        @Override
+        public Object next(ReadCache readerCache) throws IOException {
+            return super.next(cache.init());
+        }
+
+        @Override
+        public boolean beginArray(ReadCache readerCache) throws IOException {
+            return super.beginArray(cache.init());
+        }
+
+        @Override
+        public Object nextElement(ReadCache readerCache) throws IOException {
+            return super.nextElement(cache);
+        }
+
+        /**
+         * Walks a map or array to the end, noting its cache codes, and
+         * returns it lazily.
+         */
+        @Override
+        Object value(ReadCache cache) throws IOException {
+            ValueType type = mp.getNextType();
+            if (type != ValueType.ARRAY && type != ValueType.MAP) {
+                return parseVal(false, cache);
+            }
+            int start = valueStart();
+            Map<Integer, Object> codes = this.cache.index();
+            skip(cache, false);
+            return level(start, codes).child();
+        }
+
+        @Override
+        void skipString(ReadCache cache, byte[] bytes, boolean asMapKey) throws IOException {
+            if ((bytes.length == 2 || bytes.length == 3) && bytes[0] == Constants.SUB && bytes[1] != ' ') {
+                cache.cacheRead(new String(bytes, "UTF-8"), asMapKey, this);
+                return;
+            }
+            super.skipString(cache, bytes, asMapKey);
+        }
+
+        // once getNextType has read the value's first byte
+        private int valueStart() {
+            return base + mp.getReadByteCount() - 1;
+        }
+
+        private LazyMsgpackParser level(int start, Map<Integer, Object> codes) {
+            return new LazyMsgpackParser(runtime, buffer, start, root, handlers, defaultHandler,
+                                         mapBuilder, listBuilder, codes);
+        }
+
+        public Object decodeLevel(int start, boolean map, Map<Integer, Object> codes) throws IOException {
+            return level(start, codes).decodeLevel(map);
+        }
+
+        private Object decodeLevel(boolean map) throws IOException {
+            if (mp.getNextType() == ValueType.MAP) {
+                int size = mp.readMapBegin();
+                Object m = mapBuilder.init(size);
+                for (int i = 0; i < size; i++) {
+                    Object key = parseVal(true, cache);
+                    m = mapBuilder.add(m, key, child());
+                }
+                mp.readMapEnd();
+                return mapBuilder.complete(m);
+            }
+            int size = mp.readArrayBegin();
+            Object value;
+            if (map) {
+                mp.skip();
+                Object m = mapBuilder.init(size / 2);
+                for (int i = 1; i < size; i += 2) {
+                    Object key = parseVal(true, cache);
+                    m = mapBuilder.add(m, key, child());
+                }
+                value = mapBuilder.complete(m);
+            } else {
+                Object l = listBuilder.init(size);
+                for (int i = 0; i < size; i++) {
+                    l = listBuilder.add(l, child());
+                }
+                value = listBuilder.complete(l);
+            }
+            mp.readArrayEnd();
+            return value;
+        }
+
+        /**
+         * Reads the next value, returning maps and arrays lazily.
+         */
+        private Object child() throws IOException {
+            switch (mp.getNextType()) {
+                case ARRAY: {
+                    int start = valueStart();
+                    int size = mp.readArrayBegin();
+                    if (size == 0) {
+                        mp.readArrayEnd();
+                        return listBuilder.complete(listBuilder.init(0));
+                    }
+                    boolean map = false;
+                    if (mp.getNextType() == ValueType.RAW) {
+                        byte[] bytes = mp.readByteArray();
+                        map = isMapMarker(bytes);
+                        Object first = map ? null : parseRaw(bytes, cache);
+                        if (first instanceof Tag) {
+                            Object rep = parseVal(false, cache);
+                            mp.readArrayEnd();
+                            return decode(((Tag)first).getValue(), rep);
+                        }
+                    } else {
+                        mp.skip();
+                    }
+                    for (int i = 1; i < size; i++) mp.skip();
+                    mp.readArrayEnd();
+                    return proxies.proxy(root, start, map, cache.codes);
+                }
+                case MAP: {
+                    int start = valueStart();
+                    mp.skip();
+                    return proxies.proxy(root, start, true, cache.codes);
+                }
+                default:
+                    return parseVal(false, cache);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+// Copyright 2014 Cognitect. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS-IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cognitect.transit.ruby.unmarshaler;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a stream of top-level values on a pool of threads. The input is
+ * read into one buffer and split at value boundaries on the calling
+ * thread. Each value is then parsed by a worker, with a parser and read
+ * cache of its own, and the results are handed back in input order. At
+ * most twice as many values as there are threads are in flight at once.
+ *
+ * A reader keeps its ParallelReader, with its threads and workers, from
+ * one read to the next. Threads left idle for a minute exit, so one that
+ * is dropped leaves none behind.
+ */
+class ParallelReader {
+    private final RubyReaders.ReaderImpl reader;
+    private final ThreadPoolExecutor pool;
+    private final int window;
+    private final Deque<Future<Object>> pending = new ArrayDeque<Future<Object>>();
+    private final ThreadLocal<RubyReaders.ReaderImpl> workers = new ThreadLocal<RubyReaders.ReaderImpl>();
+    private byte[] buffer;
+    private RubyReaders.Splitter splitter;
+    private int start;
+
+    ParallelReader(RubyReaders.ReaderImpl reader, int threads) {
+        this.reader = reader;
+        this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "transit-reader");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.pool.allowCoreThreadTimeOut(true);
+        this.window = threads * 2;
+    }
+
+    int threads() {
+        return pool.getMaximumPoolSize();
+    }
+
+    /**
+     * Returns the next value, or RubyParsers.END at the end of the input.
+     */
+    Object next() throws Throwable {
+        if (buffer == null) {
+            buffer = reader.readRemaining();
+            splitter = reader.splitter(buffer);
+        }
+        while (splitter != null && pending.size() < window) {
+            int end = splitter.next();
+            if (end < 0) {
+                splitter = null;
+                break;
+            }
+            final int offset = start;
+            final int length = end - start;
+            start = end;
+            pending.add(pool.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    return worker().parseAt(buffer, offset, length);
+                }
+            }));
+        }
+        Future<Object> head = pending.poll();
+        if (head == null) return RubyParsers.END;
+        try {
+            return head.get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Each worker thread parses with builders of its own, as the builders
+     * keep state such as interned keys.
+     */
+    private RubyReaders.ReaderImpl worker() {
+        RubyReaders.ReaderImpl w = workers.get();
+        if (w == null) {
+            w = reader.copy();
+            workers.set(w);
+        }
+        return w;
+    }
+
+    /**
+     * Ends a read, dropping the values still in flight and the input, so
+     * the next read starts from the reader's input again.
+     */
+    void end() {
+        for (Future<Object> f : pending) f.cancel(true);
+        pending.clear();
+        buffer = null;
+        splitter = null;
+        start = 0;
+    }
+
+    void close() {
+        pool.shutdownNow();
+    }
+}
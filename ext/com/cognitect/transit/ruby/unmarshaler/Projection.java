@@ -0,0 +1,69 @@
+// Copyright 2014 Cognitect. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS-IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cognitect.transit.ruby.unmarshaler;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jruby.Ruby;
+import org.jruby.RubyHash;
+import org.jruby.RubyString;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import com.cognitect.transit.ruby.TransitTypeConverter;
+
+/**
+ * The map entries a projected read keeps, built from the tree made by
+ * Transit::Decoder.projection: each selected key leads to the projection
+ * for its value, or to ALL when the value is kept whole.
+ */
+final class Projection {
+    static final Projection ALL = new Projection(null, Collections.<Object, Projection>emptyMap());
+
+    private final Ruby runtime;
+    // String keys are held as java Strings, which is what the parsers
+    // return for them, and other keys as ruby objects
+    private final Map<Object, Projection> children;
+
+    private Projection(Ruby runtime, Map<Object, Projection> children) {
+        this.runtime = runtime;
+        this.children = children;
+    }
+
+    static Projection fromRuby(Ruby runtime, RubyHash tree) {
+        Map<Object, Projection> children = new HashMap<Object, Projection>(tree.size());
+        for (Object o : tree.directEntrySet()) {
+            Map.Entry<?, ?> entry = (Map.Entry<?, ?>)o;
+            IRubyObject key = (IRubyObject)entry.getKey();
+            Object value = entry.getValue();
+            children.put(key instanceof RubyString ? key.asJavaString() : key,
+                    value instanceof RubyHash ? fromRuby(runtime, (RubyHash)value) : ALL);
+        }
+        return new Projection(runtime, children);
+    }
+
+    /**
+     * Returns the projection for the value under key, or null when the
+     * entry is not selected.
+     */
+    Projection child(Object key) {
+        if (key instanceof String || key instanceof IRubyObject) {
+            return children.get(key);
+        }
+        return children.get(TransitTypeConverter.convertJavaToRuby(runtime, key));
+    }
+}
@@ -0,0 +1,103 @@
+// Copyright 2014 Cognitect. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS-IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cognitect.transit.ruby.unmarshaler;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads values on a background thread into a bounded queue, so waiting
+ * on the input and parsing overlap with whatever the caller does with
+ * the values already read. The thread waits while the queue is full,
+ * and an error reading ends the queue and is thrown by next.
+ */
+class ReadAhead {
+    interface Source {
+        /**
+         * Returns the next value, or RubyParsers.END at the end of the input.
+         */
+        Object next() throws Throwable;
+    }
+
+    private static final class Failure {
+        final Throwable cause;
+
+        Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+    private final BlockingQueue<Object> queue;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    ReadAhead(final Source source, int size) {
+        this.queue = new ArrayBlockingQueue<Object>(size);
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                Object o;
+                do {
+                    try {
+                        o = source.next();
+                    } catch (Throwable t) {
+                        o = new Failure(t);
+                    }
+                } while (put(o) && o != RubyParsers.END && !(o instanceof Failure));
+            }
+        }, "transit-read-ahead");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * The thread is never interrupted, as that would close an interruptible
+     * channel under the caller's io, so it polls for close while waiting.
+     */
+    private boolean put(Object o) {
+        try {
+            while (!closed) {
+                if (queue.offer(o, 50, TimeUnit.MILLISECONDS)) return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Returns the next value, or RubyParsers.END at the end of the input.
+     */
+    Object next() throws Throwable {
+        Object o = queue.take();
+        if (o instanceof Failure) throw ((Failure)o).cause;
+        return o;
+    }
+
+    /**
+     * Stops reading ahead, dropping the values not yet taken, and waits for
+     * the value being read, so the reader is not in use once this returns.
+     */
+    void close() {
+        closed = true;
+        queue.clear();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
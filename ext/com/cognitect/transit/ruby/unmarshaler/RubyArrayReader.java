@@ -17,7 +17,6 @@ package com.cognitect.transit.ruby.unmarshaler;
 
 import org.jruby.Ruby;
 import org.jruby.RubyArray;
-import org.jruby.javasupport.JavaUtil;
 import org.jruby.runtime.builtin.IRubyObject;
 
 import com.cognitect.transit.ArrayReader;
@@ -32,13 +31,7 @@ public class RubyArrayReader implements ArrayReader<RubyArray, IRubyObject, Obje
 
     @Override
     public RubyArray add(RubyArray array, Object item) {
-        IRubyObject value;
-        if (TransitTypeConverter.needsCostomConverter(item)) {
-            value = TransitTypeConverter.convertStringToFloat(runtime, item);
-        } else {
-            value = JavaUtil.convertJavaToUsableRubyObject(runtime, item);
-        }
-        array.callMethod(array.getRuntime().getCurrentContext(), "<<", value);
+        array.append(TransitTypeConverter.convertElementToRuby(runtime, item));
         return array;
     }
 
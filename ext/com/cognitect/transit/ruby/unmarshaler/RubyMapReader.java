@@ -15,9 +15,12 @@
 
 package com.cognitect.transit.ruby.unmarshaler;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import org.jruby.Ruby;
 import org.jruby.RubyHash;
-import org.jruby.javasupport.JavaUtil;
+import org.jruby.RubyString;
 import org.jruby.runtime.builtin.IRubyObject;
 
 import com.cognitect.transit.MapReader;
@@ -25,26 +28,65 @@ import com.cognitect.transit.ruby.TransitTypeConverter;
 
 public class RubyMapReader implements MapReader<RubyHash, RubyHash, Object, Object> {
     private Ruby runtime;
+    // null unless the reader was created with :intern_keys
+    private final Map<String, IRubyObject> internedKeys;
+
+    // RubyHash resizes once it holds more than 5 entries per bucket
+    private static final int ENTRIES_PER_BUCKET = 5;
+    private static final int MIN_BUCKETS = 11;
+    // same bound as Transit::Decoder::INTERNED_KEYS_SIZE
+    private static final int INTERNED_KEYS_SIZE = 4096;
 
     public RubyMapReader(Ruby runtime) {
+        this(runtime, false);
+    }
+
+    public RubyMapReader(Ruby runtime, boolean internKeys) {
         this.runtime = runtime;
+        this.internedKeys = internKeys ? new HashMap<String, IRubyObject>() : null;
     }
 
+    /**
+     * A reader with the same settings and a table of interned keys of its
+     * own, for use on another thread.
+     */
+    public RubyMapReader copy() {
+        return new RubyMapReader(runtime, internedKeys != null);
+    }
+
+    /**
+     * Same as Hash#[]=, without the dynamic dispatch. String keys made here
+     * are fresh, so they are frozen in place rather than dup'd by the hash.
+     */
     @Override
     public RubyHash add(RubyHash hash, Object key, Object value) {
-        IRubyObject ruby_key = convertJavaToRuby(key);
-        IRubyObject ruby_value = convertJavaToRuby(value);
-        IRubyObject[] args = new IRubyObject[]{ruby_key, ruby_value};
-        hash.callMethod(runtime.getCurrentContext(), "[]=", args);
+        IRubyObject ruby_key = key instanceof String ? stringKey((String)key) : convertJavaToRuby(key);
+        hash.fastASetCheckString(runtime, ruby_key, convertJavaToRuby(value));
         return hash;
     }
 
-    private IRubyObject convertJavaToRuby(Object o) {
-        if (TransitTypeConverter.needsCostomConverter(o)) {
-            return TransitTypeConverter.convertStringToFloat(runtime, o);
-        } else {
-            return JavaUtil.convertJavaToUsableRubyObject(runtime, o);
+    /**
+     * With interning on, equal keys share one frozen string. Like the
+     * rolling cache, the table is cleared when it fills up.
+     */
+    private IRubyObject stringKey(String key) {
+        if (internedKeys != null) {
+            IRubyObject interned = internedKeys.get(key);
+            if (interned != null) return interned;
+        }
+        IRubyObject ruby_key = convertJavaToRuby(key);
+        if (ruby_key instanceof RubyString) {
+            ruby_key.setFrozen(true);
+            if (internedKeys != null) {
+                if (internedKeys.size() >= INTERNED_KEYS_SIZE) internedKeys.clear();
+                internedKeys.put(key, ruby_key);
+            }
         }
+        return ruby_key;
+    }
+
+    private IRubyObject convertJavaToRuby(Object o) {
+        return TransitTypeConverter.convertElementToRuby(runtime, o);
     }
 
     @Override
@@ -59,6 +101,7 @@ public class RubyMapReader implements MapReader<RubyHash, RubyHash, Object, Obje
 
     @Override
     public RubyHash init(int size) {
-        return RubyHash.newHash(runtime);
+        if (size <= MIN_BUCKETS * ENTRIES_PER_BUCKET) return RubyHash.newHash(runtime);
+        return new RubyHash(runtime, (size / ENTRIES_PER_BUCKET) | 1);
     }
 }
@@ -0,0 +1,663 @@
+// Copyright 2014 Cognitect. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS-IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cognitect.transit.ruby.unmarshaler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Map;
+
+import org.jcodings.specific.UTF8Encoding;
+import org.jruby.Ruby;
+import org.jruby.RubyString;
+import org.jruby.util.ByteList;
+import org.jruby.util.StringSupport;
+import org.msgpack.MessageTypeException;
+import org.msgpack.type.ValueType;
+import org.msgpack.unpacker.Unpacker;
+
+import com.cognitect.transit.ArrayReader;
+import com.cognitect.transit.DefaultReadHandler;
+import com.cognitect.transit.MapReader;
+import com.cognitect.transit.ReadHandler;
+import com.cognitect.transit.impl.AbstractParser;
+import com.cognitect.transit.impl.JsonParser;
+import com.cognitect.transit.impl.MsgpackParser;
+import com.cognitect.transit.impl.Parser;
+import com.cognitect.transit.impl.ReadCache;
+import com.cognitect.transit.impl.Tag;
+import com.cognitect.transit.impl.WriteCache;
+import com.cognitect.transit.ruby.Metrics;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Parsers that build RubyStrings for plain string values directly from the
+ * parser's buffers, skipping the intermediate java.lang.String. Strings the
+ * transit protocol has to look at (escapes, tags, cache codes), map keys
+ * (which may have to go into the read cache), and strings the array/map
+ * builders read as special floats still go through the stock parse path.
+ */
+public class RubyParsers {
+
+    /**
+     * True unless the string, given its first character (or byte) and
+     * length, needs the stock parse path.
+     */
+    static boolean isPlain(int first, int length) {
+        switch (first) {
+            case '~':
+            case '^':
+                return false;
+            case 'N':
+                return length != 3;   // NaN
+            case 'I':
+                return length != 8;   // Infinity
+            case '-':
+                return length != 9;   // -Infinity
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Encodes the chars as UTF-8 straight into the new string's ByteList.
+     * Unpaired surrogates become '?', as they do with String.getBytes.
+     */
+    static RubyString newUTF8String(Ruby runtime, char[] chars, int offset, int length) {
+        int end = offset + length;
+        int size = 0;
+        for (int i = offset; i < end; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                size += 1;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+                size += 4;
+                i++;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                size += 1;
+            } else {
+                size += 3;
+            }
+        }
+
+        byte[] bytes = new byte[size];
+        int b = 0;
+        for (int i = offset; i < end; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                bytes[b++] = (byte)c;
+            } else if (c < 0x800) {
+                bytes[b++] = (byte)(0xC0 | (c >> 6));
+                bytes[b++] = (byte)(0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(chars[i + 1])) {
+                int cp = Character.toCodePoint(c, chars[++i]);
+                bytes[b++] = (byte)(0xF0 | (cp >> 18));
+                bytes[b++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+                bytes[b++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+                bytes[b++] = (byte)(0x80 | (cp & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                bytes[b++] = (byte)'?';
+            } else {
+                bytes[b++] = (byte)(0xE0 | (c >> 12));
+                bytes[b++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+                bytes[b++] = (byte)(0x80 | (c & 0x3F));
+            }
+        }
+        return RubyString.newString(runtime, new ByteList(bytes, UTF8Encoding.INSTANCE, false));
+    }
+
+    /**
+     * Returned by StreamParser at the end of the input or of an array.
+     */
+    static final Object END = new Object();
+
+    /**
+     * A read cache that counts its hits and misses into metrics, when
+     * there are any.
+     */
+    static class MeteredCache extends ReadCache {
+        Metrics.Side metrics;
+
+        @Override
+        public Object cacheRead(String s, boolean asMapKey, AbstractParser p) {
+            if (metrics != null) {
+                if (LazyParsers.isCacheCode(s)) {
+                    metrics.cacheHit();
+                } else if (s.length() >= WriteCache.MIN_SIZE_CACHEABLE
+                           && isCacheable(s.charAt(0), s.charAt(1), s.length(), asMapKey)) {
+                    metrics.cacheMiss();
+                }
+            }
+            return super.cacheRead(s, asMapKey, p);
+        }
+    }
+
+    /**
+     * The read cache of a session, kept across top-level values. Parsers
+     * given one skip the bare top-level nils the writer sends as reset
+     * markers, and start the cache over at each.
+     */
+    static final class SessionCache extends MeteredCache {
+    }
+
+    /**
+     * Parsers that can tell the end of the input from a truncated value,
+     * and read the elements of a top-level array one at a time.
+     */
+    interface StreamParser extends Parser {
+        /**
+         * Returns the next top-level value, or END at the end of the input.
+         */
+        Object next(ReadCache cache) throws IOException;
+
+        /**
+         * Starts reading the next top-level value, which must be an array,
+         * and returns false at the end of the input.
+         */
+        boolean beginArray(ReadCache cache) throws IOException;
+
+        /**
+         * Returns the next element of the array started by beginArray, or END
+         * once it has none left. The elements share cache, as they would if
+         * the array were parsed whole.
+         */
+        Object nextElement(ReadCache cache) throws IOException;
+
+        /**
+         * Counts each value parsed into metrics, or stops when it is null.
+         */
+        void setMetrics(Metrics.Side metrics);
+    }
+
+    /**
+     * A top-level array whose first element is a tag, or the map marker, is
+     * a transit value written as an array, not an array. The parsers look
+     * for the marker in the element as written, as the string "^ " is
+     * written escaped and reads back the same as the marker.
+     */
+    static Object checkFirstElement(Object first) {
+        if (first instanceof Tag) throw notAnArray();
+        return first;
+    }
+
+    static IllegalStateException notAnArray() {
+        return new IllegalStateException("The top-level value is not an array");
+    }
+
+    /**
+     * True if the string, given its first two characters (or bytes) and
+     * length, is one the writer would have put in its cache.
+     */
+    static boolean isCacheable(int first, int second, int length, boolean asMapKey) {
+        if (length < WriteCache.MIN_SIZE_CACHEABLE) return false;
+        if (asMapKey) return true;
+        return first == '~' && (second == ':' || second == '$' || second == '#');
+    }
+
+    /**
+     * Jackson has already decoded the input into its char buffer, so plain
+     * strings are encoded from that buffer without creating a String.
+     */
+    public static class RubyJsonParser extends JsonParser implements StreamParser {
+        private final Ruby runtime;
+        final com.fasterxml.jackson.core.JsonParser jp;
+        private final Projection projection;
+        private boolean first;
+        private Metrics.Side metrics;
+
+        public RubyJsonParser(Ruby runtime,
+                              com.fasterxml.jackson.core.JsonParser jp,
+                              Map<String, ReadHandler<?, ?>> handlers,
+                              DefaultReadHandler<?> defaultHandler,
+                              MapReader<?, Map<Object, Object>, Object, Object> mapBuilder,
+                              ArrayReader<?, List<Object>, Object> listBuilder,
+                              Projection projection) {
+            super(jp, handlers, defaultHandler, mapBuilder, listBuilder);
+            this.runtime = runtime;
+            this.jp = jp;
+            this.projection = projection;
+        }
+
+        public void setMetrics(Metrics.Side metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Object parseVal(boolean asMapKey, ReadCache cache) throws IOException {
+            Object o = parseValue(asMapKey, cache);
+            if (metrics != null) metrics.type(o);
+            return o;
+        }
+
+        private Object parseValue(boolean asMapKey, ReadCache cache) throws IOException {
+            if (!asMapKey && jp.getCurrentToken() == JsonToken.VALUE_STRING) {
+                char[] chars = jp.getTextCharacters();
+                int offset = jp.getTextOffset();
+                int length = jp.getTextLength();
+                if (isPlain(length == 0 ? 0 : chars[offset], length)) {
+                    return newUTF8String(runtime, chars, offset, length);
+                }
+            }
+            return super.parseVal(asMapKey, cache);
+        }
+
+        @Override
+        public Object parse(ReadCache cache) throws IOException {
+            if (!nextValue(cache)) throw new EOFException();
+            return value(cache);
+        }
+
+        public Object next(ReadCache cache) throws IOException {
+            if (!nextValue(cache)) return END;
+            return value(cache);
+        }
+
+        /**
+         * Moves to the next top-level value, past any session reset markers,
+         * and returns false at the end of the input.
+         */
+        private boolean nextValue(ReadCache cache) throws IOException {
+            JsonToken token = jp.nextToken();
+            while (token == JsonToken.VALUE_NULL && cache instanceof SessionCache) {
+                cache.init();
+                token = jp.nextToken();
+            }
+            return token != null;
+        }
+
+        public boolean beginArray(ReadCache cache) throws IOException {
+            if (!nextValue(cache)) return false;
+            JsonToken token = jp.getCurrentToken();
+            if (token != JsonToken.START_ARRAY) throw notAnArray();
+            first = true;
+            return true;
+        }
+
+        public Object nextElement(ReadCache cache) throws IOException {
+            if (jp.nextToken() == JsonToken.END_ARRAY) return END;
+            if (first) {
+                first = false;
+                if (jp.getCurrentToken() == JsonToken.VALUE_STRING && isMapMarker()) throw notAnArray();
+                return checkFirstElement(value(cache));
+            }
+            return value(cache);
+        }
+
+        Object value(ReadCache cache) throws IOException {
+            return projection == null ? parseVal(false, cache) : project(projection, cache);
+        }
+
+        /**
+         * Parses the value at the current token, building only the map entries
+         * the projection selects. Arrays pass the projection on to each of
+         * their elements, and tagged values are built whole.
+         */
+        private Object project(Projection projection, ReadCache cache) throws IOException {
+            if (projection == Projection.ALL) return parseVal(false, cache);
+            switch (jp.getCurrentToken()) {
+                case START_ARRAY: {
+                    if (jp.nextToken() == JsonToken.END_ARRAY) return listBuilder.complete(listBuilder.init());
+                    if (jp.getCurrentToken() == JsonToken.VALUE_STRING && isMapMarker()) {
+                        Object m = mapBuilder.init();
+                        while (jp.nextToken() != JsonToken.END_ARRAY) {
+                            Object key = parseVal(true, cache);
+                            jp.nextToken();
+                            m = projectEntry(projection, m, key, cache);
+                        }
+                        return mapBuilder.complete(m);
+                    }
+                    Object first = project(projection, cache);
+                    if (first instanceof Tag) {
+                        jp.nextToken();
+                        Object rep = parseVal(false, cache);
+                        jp.nextToken();
+                        return decode(((Tag)first).getValue(), rep);
+                    }
+                    Object l = listBuilder.add(listBuilder.init(), first);
+                    while (jp.nextToken() != JsonToken.END_ARRAY) {
+                        l = listBuilder.add(l, project(projection, cache));
+                    }
+                    return listBuilder.complete(l);
+                }
+                case START_OBJECT: {
+                    Object m = mapBuilder.init();
+                    while (jp.nextToken() != JsonToken.END_OBJECT) {
+                        Object key = parseVal(true, cache);
+                        jp.nextToken();
+                        if (key instanceof Tag) {
+                            Object rep = parseVal(false, cache);
+                            jp.nextToken();
+                            return decode(((Tag)key).getValue(), rep);
+                        }
+                        m = projectEntry(projection, m, key, cache);
+                    }
+                    return mapBuilder.complete(m);
+                }
+                default:
+                    return parseVal(false, cache);
+            }
+        }
+
+        private Object projectEntry(Projection projection, Object m, Object key, ReadCache cache) throws IOException {
+            Projection child = projection.child(key);
+            if (child == null) {
+                skip(cache);
+                return m;
+            }
+            return mapBuilder.add(m, key, project(child, cache));
+        }
+
+        /**
+         * Skips the value at the current token, reading only the strings the
+         * writer may have cached so that later cache codes still resolve.
+         * Objects only come from the verbose writer, which has no cache, so
+         * they are skipped whole.
+         */
+        void skip(ReadCache cache) throws IOException {
+            switch (jp.getCurrentToken()) {
+                case START_OBJECT:
+                    jp.skipChildren();
+                    break;
+                case START_ARRAY:
+                    boolean map = false;
+                    for (int i = 0; jp.nextToken() != JsonToken.END_ARRAY; i++) {
+                        if (jp.getCurrentToken() != JsonToken.VALUE_STRING) {
+                            skip(cache);
+                        } else if (i == 0 && isMapMarker()) {
+                            map = true;
+                        } else {
+                            skipString(cache, map && i % 2 == 1);
+                        }
+                    }
+                    break;
+                case VALUE_STRING:
+                    skipString(cache, false);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        boolean isMapMarker() throws IOException {
+            char[] chars = jp.getTextCharacters();
+            int offset = jp.getTextOffset();
+            return jp.getTextLength() == 2 && chars[offset] == '^' && chars[offset + 1] == ' ';
+        }
+
+        void skipString(ReadCache cache, boolean asMapKey) throws IOException {
+            int length = jp.getTextLength();
+            if (length < WriteCache.MIN_SIZE_CACHEABLE) return;
+            char[] chars = jp.getTextCharacters();
+            int offset = jp.getTextOffset();
+            if (isCacheable(chars[offset], chars[offset + 1], length, asMapKey)) {
+                cache.cacheRead(jp.getText(), asMapKey, this);
+            }
+        }
+    }
+
+    /**
+     * msgpack raw values are already UTF-8, so plain strings take the raw
+     * bytes as they are.
+     */
+    public static class RubyMsgpackParser extends MsgpackParser implements StreamParser {
+        private static final Charset UTF8 = Charset.forName("UTF-8");
+
+        private final Ruby runtime;
+        final Unpacker mp;
+        private final Projection projection;
+        private int remaining;
+        private boolean first;
+        private Metrics.Side metrics;
+
+        public RubyMsgpackParser(Ruby runtime,
+                                 Unpacker mp,
+                                 Map<String, ReadHandler<?, ?>> handlers,
+                                 DefaultReadHandler<?> defaultHandler,
+                                 MapReader<?, Map<Object, Object>, Object, Object> mapBuilder,
+                                 ArrayReader<?, List<Object>, Object> listBuilder,
+                                 Projection projection) {
+            super(mp, handlers, defaultHandler, mapBuilder, listBuilder);
+            this.runtime = runtime;
+            this.mp = mp;
+            this.projection = projection;
+        }
+
+        public void setMetrics(Metrics.Side metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Object parseVal(boolean asMapKey, ReadCache cache) throws IOException {
+            if (!asMapKey && mp.getNextType() == ValueType.RAW) return parseRaw(mp.readByteArray(), cache);
+            Object o = super.parseVal(asMapKey, cache);
+            if (metrics != null) metrics.type(o);
+            return o;
+        }
+
+        /**
+         * Parses a string value, not a map key, from the bytes already read.
+         */
+        Object parseRaw(byte[] bytes, ReadCache cache) throws IOException {
+            Object o = stringValue(bytes, cache);
+            if (metrics != null) metrics.type(o);
+            return o;
+        }
+
+        private Object stringValue(byte[] bytes, ReadCache cache) throws IOException {
+            int codeRange = StringSupport.codeRangeScan(UTF8Encoding.INSTANCE, bytes, 0, bytes.length);
+            if (codeRange == StringSupport.CR_BROKEN) throw malformed(bytes);
+            if (isPlain(bytes.length == 0 ? 0 : bytes[0], bytes.length)) {
+                RubyString s = RubyString.newString(runtime, new ByteList(bytes, UTF8Encoding.INSTANCE, false));
+                s.setCodeRange(codeRange);
+                return s;
+            }
+            return cache.cacheRead(new String(bytes, "UTF-8"), false, this);
+        }
+
+        static boolean isMapMarker(byte[] bytes) {
+            return bytes.length == 2 && bytes[0] == '^' && bytes[1] == ' ';
+        }
+
+        /**
+         * The error Unpacker.readString raises for bytes that are not UTF-8.
+         */
+        private static MessageTypeException malformed(byte[] bytes) {
+            try {
+                UTF8.newDecoder().decode(ByteBuffer.wrap(bytes));
+            } catch (CharacterCodingException e) {
+                return new MessageTypeException(e);
+            }
+            return new MessageTypeException("Malformed UTF-8");
+        }
+
+        @Override
+        public Object parse(ReadCache cache) throws IOException {
+            if (cache instanceof SessionCache) nextType(cache);
+            return value(cache);
+        }
+
+        public Object next(ReadCache cache) throws IOException {
+            try {
+                nextType(cache);
+            } catch (EOFException e) {
+                return END;
+            }
+            return value(cache);
+        }
+
+        /**
+         * Returns the type of the next top-level value, past any session
+         * reset markers, throwing EOFException at the end of the input.
+         */
+        private ValueType nextType(ReadCache cache) throws IOException {
+            ValueType type = mp.getNextType();
+            while (type == ValueType.NIL && cache instanceof SessionCache) {
+                mp.readNil();
+                cache.init();
+                type = mp.getNextType();
+            }
+            return type;
+        }
+
+        public boolean beginArray(ReadCache cache) throws IOException {
+            ValueType type;
+            try {
+                type = nextType(cache);
+            } catch (EOFException e) {
+                return false;
+            }
+            if (type != ValueType.ARRAY) throw notAnArray();
+            remaining = mp.readArrayBegin();
+            first = true;
+            return true;
+        }
+
+        public Object nextElement(ReadCache cache) throws IOException {
+            if (remaining == 0) {
+                mp.readArrayEnd();
+                return END;
+            }
+            remaining--;
+            if (first) {
+                first = false;
+                if (mp.getNextType() == ValueType.RAW) {
+                    byte[] bytes = mp.readByteArray();
+                    if (isMapMarker(bytes)) throw notAnArray();
+                    return checkFirstElement(parseRaw(bytes, cache));
+                }
+                return checkFirstElement(value(cache));
+            }
+            return value(cache);
+        }
+
+        Object value(ReadCache cache) throws IOException {
+            return projection == null ? parseVal(false, cache) : project(projection, cache);
+        }
+
+        /**
+         * Parses the next value, building only the map entries the projection
+         * selects. Arrays pass the projection on to each of their elements,
+         * and tagged values are built whole.
+         */
+        private Object project(Projection projection, ReadCache cache) throws IOException {
+            if (projection == Projection.ALL) return parseVal(false, cache);
+            switch (mp.getNextType()) {
+                case ARRAY: {
+                    int size = mp.readArrayBegin();
+                    if (size == 0) {
+                        mp.readArrayEnd();
+                        return listBuilder.complete(listBuilder.init(0));
+                    }
+                    byte[] bytes = mp.getNextType() == ValueType.RAW ? mp.readByteArray() : null;
+                    boolean map = bytes != null && isMapMarker(bytes);
+                    Object first = map ? null : bytes != null ? parseRaw(bytes, cache) : project(projection, cache);
+                    Object value;
+                    if (map) {
+                        Object m = mapBuilder.init();
+                        for (int i = 1; i < size; i += 2) {
+                            m = projectEntry(projection, m, parseVal(true, cache), cache);
+                        }
+                        value = mapBuilder.complete(m);
+                    } else if (first instanceof Tag) {
+                        value = decode(((Tag)first).getValue(), parseVal(false, cache));
+                    } else {
+                        Object l = listBuilder.add(listBuilder.init(size), first);
+                        for (int i = 1; i < size; i++) {
+                            l = listBuilder.add(l, project(projection, cache));
+                        }
+                        value = listBuilder.complete(l);
+                    }
+                    mp.readArrayEnd();
+                    return value;
+                }
+                case MAP: {
+                    int size = mp.readMapBegin();
+                    Object m = mapBuilder.init();
+                    for (int i = 0; i < size; i++) {
+                        m = projectEntry(projection, m, parseVal(true, cache), cache);
+                    }
+                    mp.readMapEnd();
+                    return mapBuilder.complete(m);
+                }
+                default:
+                    return parseVal(false, cache);
+            }
+        }
+
+        private Object projectEntry(Projection projection, Object m, Object key, ReadCache cache) throws IOException {
+            Projection child = projection.child(key);
+            if (child == null) {
+                skip(cache, false);
+                return m;
+            }
+            return mapBuilder.add(m, key, project(child, cache));
+        }
+
+        /**
+         * Skips the next value, reading only the strings the writer may have
+         * cached so that later cache codes still resolve.
+         */
+        void skip(ReadCache cache, boolean asMapKey) throws IOException {
+            switch (mp.getNextType()) {
+                case ARRAY: {
+                    int size = mp.readArrayBegin();
+                    boolean map = false;
+                    for (int i = 0; i < size; i++) {
+                        if (mp.getNextType() != ValueType.RAW) {
+                            skip(cache, false);
+                            continue;
+                        }
+                        byte[] bytes = mp.readByteArray();
+                        if (i == 0 && isMapMarker(bytes)) {
+                            map = true;
+                        } else {
+                            skipString(cache, bytes, map && i % 2 == 1);
+                        }
+                    }
+                    mp.readArrayEnd();
+                    break;
+                }
+                case MAP: {
+                    int size = mp.readMapBegin();
+                    for (int i = 0; i < size; i++) {
+                        skip(cache, true);
+                        skip(cache, false);
+                    }
+                    mp.readMapEnd();
+                    break;
+                }
+                case RAW:
+                    skipString(cache, mp.readByteArray(), asMapKey);
+                    break;
+                default:
+                    mp.skip();
+                    break;
+            }
+        }
+
+        void skipString(ReadCache cache, byte[] bytes, boolean asMapKey) throws IOException {
+            if (bytes.length >= WriteCache.MIN_SIZE_CACHEABLE
+                    && isCacheable(bytes[0], bytes[1], bytes.length, asMapKey)) {
+                cache.cacheRead(new String(bytes, "UTF-8"), asMapKey, this);
+            }
+        }
+    }
+}
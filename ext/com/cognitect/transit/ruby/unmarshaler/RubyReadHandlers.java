@@ -0,0 +1,262 @@
+// Copyright 2014 Cognitect. All Rights Reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS-IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+// implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.cognitect.transit.ruby.unmarshaler;
+
+import org.jruby.Ruby;
+import org.jruby.RubyArray;
+import org.jruby.RubyClass;
+import org.jruby.RubyFixnum;
+import org.jruby.RubyHash;
+import org.jruby.RubyKernel;
+import org.jruby.RubyModule;
+import org.jruby.RubyNumeric;
+import org.jruby.RubyString;
+import org.jruby.RubySymbol;
+import org.jruby.ext.bigdecimal.RubyBigDecimal;
+import org.jruby.runtime.ThreadContext;
+import org.jruby.runtime.builtin.IRubyObject;
+
+import com.cognitect.transit.ReadHandler;
+import com.cognitect.transit.ruby.TransitTypeConverter;
+
+/**
+ * Java counterparts of the stock handlers in Transit::ReadHandlers. Each one
+ * builds the same Ruby object as its Ruby counterpart without dispatching to
+ * from_rep. Base uses these only for entries whose handler is an instance of
+ * the stock class; custom handlers are still called through from_rep.
+ */
+public final class RubyReadHandlers {
+    private static final String PREFIX = "Transit::ReadHandlers::";
+
+    private RubyReadHandlers() {}
+
+    /**
+     * Returns the java handler for the stock ruby handler class named
+     * className, or null if there isn't one.
+     */
+    public static ReadHandler<IRubyObject, Object> stockHandler(Ruby runtime, String className) {
+        if (className == null || !className.startsWith(PREFIX)) return null;
+        String name = className.substring(PREFIX.length());
+
+        if (name.equals("NilHandler")) return new NilHandler(runtime);
+        if (name.equals("KeywordHandler")) return new KeywordHandler(runtime);
+        if (name.equals("BooleanHandler")) return new BooleanHandler(runtime);
+        if (name.equals("FloatHandler")) return new FloatHandler(runtime);
+        if (name.equals("IntegerHandler")) return new IntegerHandler(runtime);
+        if (name.equals("BigIntegerHandler")) return new IntegerHandler(runtime);
+        if (name.equals("BigDecimalHandler")) return new BigDecimalHandler(runtime);
+        if (name.equals("SpecialNumbersHandler")) return new SpecialNumbersHandler(runtime);
+        if (name.equals("IdentityHandler")) return new IdentityHandler(runtime);
+        if (name.equals("TimeStringHandler")) return new TimeStringHandler(runtime);
+        if (name.equals("TimeIntHandler")) return new TimeIntHandler(runtime);
+        if (name.equals("CmapHandler")) return new CmapHandler(runtime);
+        if (name.equals("RatioHandler")) return new RatioHandler(runtime);
+        if (name.equals("ByteArrayHandler")) return new ClassMethodHandler(runtime, "Transit::ByteArray", "from_base64");
+        if (name.equals("SymbolHandler")) return new ClassMethodHandler(runtime, "Transit::Symbol", "new");
+        if (name.equals("UuidHandler")) return new ClassMethodHandler(runtime, "Transit::UUID", "new");
+        if (name.equals("UriHandler")) return new ClassMethodHandler(runtime, "Addressable::URI", "parse");
+        if (name.equals("SetHandler")) return new ClassMethodHandler(runtime, "Set", "new");
+        if (name.equals("LinkHandler")) return new ClassMethodHandler(runtime, "Transit::Link", "new");
+        return null;
+    }
+
+    private static abstract class StockHandler implements ReadHandler<IRubyObject, Object> {
+        protected final Ruby runtime;
+
+        StockHandler(Ruby runtime) {
+            this.runtime = runtime;
+        }
+
+        protected IRubyObject rubyRep(Object o) {
+            return TransitTypeConverter.convertJavaToRuby(runtime, o);
+        }
+
+        protected RubyString stringRep(Object o) {
+            return o instanceof RubyString ? (RubyString)o : runtime.newString(o.toString());
+        }
+    }
+
+    static class NilHandler extends StockHandler {
+        NilHandler(Ruby runtime) { super(runtime); }
+
+        public IRubyObject fromRep(Object o) {
+            return runtime.getNil();
+        }
+    }
+
+    static class KeywordHandler extends StockHandler {
+        KeywordHandler(Ruby runtime) { super(runtime); }
+
+        public IRubyObject fromRep(Object o) {
+            return RubySymbol.newSymbol(runtime, o.toString());
+        }
+    }
+
+    static class BooleanHandler extends StockHandler {
+        BooleanHandler(Ruby runtime) { super(runtime); }
+
+        public IRubyObject fromRep(Object o) {
+            return runtime.newBoolean("t".equals(o.toString()));
+        }
+    }
+
+    static class FloatHandler extends StockHandler {
+        FloatHandler(Ruby runtime) { super(runtime); }
+
+        public IRubyObject fromRep(Object o) {
+            // Kernel#Float
+            return RubyKernel.new_float19(runtime.getKernel(), stringRep(o));
+        }
+    }
+
+    static class IntegerHandler extends StockHandler {
+        IntegerHandler(Ruby runtime) { super(runtime); }
+
+        public IRubyObject fromRep(Object o) {
+            if (o instanceof Long) return RubyFixnum.newFixnum(runtime, (Long)o);
+            // String#to_i
+            return RubyNumeric.str2inum(runtime, stringRep(o), 10);
+        }
+    }
+
+    static class BigDecimalHandler extends StockHandler {
+        private final RubyClass bigDecimalClass;
+
+        BigDecimalHandler(Ruby runtime) {
+            super(runtime);
+            this.bigDecimalClass = runtime.getClass("BigDecimal");
+        }
+
+        public IRubyObject fromRep(Object o) {
+            return RubyBigDecimal.newInstance(runtime.getCurrentContext(), bigDecimalClass, stringRep(o));
+        }
+    }
+
+    static class SpecialNumbersHandler extends StockHandler {
+        SpecialNumbersHandler(Ruby runtime) { super(runtime); }
+
+        public IRubyObject fromRep(Object o) {
+            String s = o.toString();
+            if (s.equals("NaN")) return runtime.newFloat(Double.NaN);
+            if (s.equals("INF")) return runtime.newFloat(Double.POSITIVE_INFINITY);
+            if (s.equals("-INF")) return runtime.newFloat(Double.NEGATIVE_INFINITY);
+            throw runtime.newArgumentError(
+                    "Don't know how to handle " + rubyRep(o).inspect() + " for the \"z\" tag");
+        }
+    }
+
+    static class IdentityHandler extends StockHandler {
+        IdentityHandler(Ruby runtime) { super(runtime); }
+
+        public IRubyObject fromRep(Object o) {
+            return rubyRep(o);
+        }
+    }
+
+    /**
+     * Replaces TimeStringHandler to cover JRuby's bug in DateTime.iso8601()
+     * method. Strings as transit writes them are read in java, others with
+     * DateTime.strptime.
+     */
+    static class TimeStringHandler extends StockHandler {
+        private final RubyClass dateTimeClass;
+        private final RubyString format;
+        private final DateTimes dateTimes;
+
+        TimeStringHandler(Ruby runtime) {
+            super(runtime);
+            this.dateTimeClass = (RubyClass) runtime.getClassFromPath("DateTime");
+            this.format = runtime.newString("%Y-%m-%dT%H:%M:%S.%N%z");
+            this.dateTimes = new DateTimes(runtime);
+        }
+
+        public IRubyObject fromRep(Object o) {
+            IRubyObject dateTime = dateTimes.fromString(o.toString());
+            if (dateTime != null) return dateTime;
+            return dateTimeClass.callMethod(runtime.getCurrentContext(), "strptime",
+                    new IRubyObject[]{stringRep(o), format});
+        }
+    }
+
+    static class TimeIntHandler extends StockHandler {
+        private final RubyModule dateTimeUtil;
+        private final DateTimes dateTimes;
+
+        TimeIntHandler(Ruby runtime) {
+            super(runtime);
+            this.dateTimeUtil = runtime.getClassFromPath("Transit::DateTimeUtil");
+            this.dateTimes = new DateTimes(runtime);
+        }
+
+        public IRubyObject fromRep(Object o) {
+            IRubyObject millis = o instanceof Long ?
+                    RubyFixnum.newFixnum(runtime, (Long)o) :
+                    RubyNumeric.str2inum(runtime, stringRep(o), 10);
+            if (millis instanceof RubyFixnum) {
+                IRubyObject dateTime = dateTimes.fromMillis(((RubyFixnum)millis).getLongValue());
+                if (dateTime != null) return dateTime;
+            }
+            return dateTimeUtil.callMethod(runtime.getCurrentContext(), "from_millis", millis);
+        }
+    }
+
+    static class CmapHandler extends StockHandler {
+        CmapHandler(Ruby runtime) { super(runtime); }
+
+        public IRubyObject fromRep(Object o) {
+            RubyArray kvs = (RubyArray)rubyRep(o);
+            if (kvs.getLength() % 2 != 0) {
+                throw runtime.newArgumentError("odd number of arguments for Hash");
+            }
+            ThreadContext context = runtime.getCurrentContext();
+            RubyHash hash = RubyHash.newHash(runtime);
+            for (int i = 0; i < kvs.getLength(); i += 2) {
+                hash.op_aset(context, kvs.eltInternal(i), kvs.eltInternal(i + 1));
+            }
+            return hash;
+        }
+    }
+
+    static class RatioHandler extends StockHandler {
+        RatioHandler(Ruby runtime) { super(runtime); }
+
+        public IRubyObject fromRep(Object o) {
+            RubyArray v = (RubyArray)rubyRep(o);
+            // Kernel#Rational
+            return RubyKernel.new_rational(runtime.getCurrentContext(), runtime.getKernel(),
+                    v.entry(0), v.entry(1));
+        }
+    }
+
+    /**
+     * For stock handlers whose from_rep is a single call to a class method,
+     * e.g. UUID.new(v).
+     */
+    static class ClassMethodHandler extends StockHandler {
+        private final RubyModule module;
+        private final String method;
+
+        ClassMethodHandler(Ruby runtime, String path, String method) {
+            super(runtime);
+            this.module = runtime.getClassFromPath(path);
+            this.method = method;
+        }
+
+        public IRubyObject fromRep(Object o) {
+            return module.callMethod(runtime.getCurrentContext(), method, rubyRep(o));
+        }
+    }
+}
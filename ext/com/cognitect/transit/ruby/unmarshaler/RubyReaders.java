@@ -1,10 +1,16 @@
 package com.cognitect.transit.ruby.unmarshaler;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
 
+import org.jruby.Ruby;
 import org.msgpack.MessagePack;
+import org.msgpack.unpacker.BufferUnpacker;
 
 import com.cognitect.transit.ArrayReader;
 import com.cognitect.transit.DefaultReadHandler;
@@ -12,41 +18,132 @@ import com.cognitect.transit.MapReader;
 import com.cognitect.transit.ReadHandler;
 import com.cognitect.transit.Reader;
 import com.cognitect.transit.SPI.ReaderSPI;
-import com.cognitect.transit.impl.AbstractParser;
-import com.cognitect.transit.impl.JsonParser;
 import com.cognitect.transit.impl.ListBuilderImpl;
 import com.cognitect.transit.impl.MapBuilderImpl;
-import com.cognitect.transit.impl.MsgpackParser;
 import com.cognitect.transit.impl.ReadCache;
+import com.cognitect.transit.ruby.Metrics;
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonToken;
 
 public class RubyReaders {
-    private abstract static class ReaderImpl implements Reader, ReaderSPI {
+    static final JsonFactory JSON_FACTORY =
+            new JsonFactory().enable(com.fasterxml.jackson.core.JsonParser.Feature.ALLOW_NON_NUMERIC_NUMBERS);
+    static final MessagePack MESSAGE_PACK = new MessagePack();
+
+    abstract static class ReaderImpl implements Reader, ReaderSPI {
         InputStream in;
         Map<String, ReadHandler<?,?>> handlers;
         DefaultReadHandler<?> defaultHandler;
         MapReader<?, Map<Object, Object>, Object, Object> mapBuilder;
         ArrayReader<?, List<Object>, Object> listBuilder;
-        ReadCache cache;
-        AbstractParser p;
+        RubyParsers.MeteredCache cache;
+        RubyParsers.StreamParser p;
+        Projection projection;
+        boolean lazy;
         boolean initialized;
+        // null unless counting into metrics, and the side timing a value
+        // on this thread when this reader started timing one
+        Metrics.Side metrics;
+        private Metrics.Side outerMetrics;
+        private long started;
+        // kept across each calls with :parallel, made on the first
+        private ParallelReader parallel;
 
         public ReaderImpl(InputStream in, Map<String, ReadHandler<?,?>> handlers, DefaultReadHandler<?> defaultHandler) {
             this.initialized = false;
             this.in = in;
             this.handlers = handlers;
             this.defaultHandler = defaultHandler;
-            this.cache = new ReadCache();
+            this.cache = new RubyParsers.MeteredCache();
+        }
+
+        /**
+         * Counts what this reader reads into metrics, from the bytes of its
+         * input on.
+         */
+        void setMetrics(Metrics.Side metrics) {
+            this.metrics = metrics;
+            this.cache.metrics = metrics;
+            if (in != null) in = new CountingInputStream(in, metrics);
+        }
+
+        private void startTiming() {
+            if (metrics == null) return;
+            outerMetrics = metrics.enter();
+            started = System.nanoTime();
+        }
+
+        private void stopTiming() {
+            if (metrics != null) metrics.exit(outerMetrics, started);
         }
 
         @Override
         @SuppressWarnings("unchecked")
         public <T> T read() {
             if (!initialized) initialize();
+            startTiming();
             try {
-                return (T) p.parse(cache.init());
+                T value = (T) p.parse(topCache());
+                if (metrics != null) metrics.value();
+                return value;
             } catch (Throwable e) {
                 throw new RuntimeException(e);
+            } finally {
+                stopTiming();
+            }
+        }
+
+        /**
+         * Returns the next value, or RubyParsers.END at the end of the input.
+         */
+        Object readNext() {
+            if (!initialized) initialize();
+            startTiming();
+            try {
+                Object value = p.next(topCache());
+                if (metrics != null && value != RubyParsers.END) metrics.value();
+                return value;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            } finally {
+                stopTiming();
+            }
+        }
+
+        /**
+         * Starts reading the elements of the next top-level value, which must
+         * be an array, and returns false at the end of the input.
+         */
+        boolean beginElements() {
+            if (!initialized) initialize();
+            startTiming();
+            try {
+                boolean begun = p.beginArray(topCache());
+                if (metrics != null && begun) metrics.value();
+                return begun;
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            } finally {
+                stopTiming();
+            }
+        }
+
+        /**
+         * Returns the next element of the array started by beginElements, or
+         * RubyParsers.END after its last.
+         */
+        Object readElement() {
+            startTiming();
+            try {
+                return p.nextElement(cache);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            } finally {
+                stopTiming();
             }
         }
 
@@ -64,46 +161,289 @@ public class RubyReaders {
             if (listBuilder == null) listBuilder = new ListBuilderImpl();
         }
 
+        /**
+         * Keeps one read cache across top-level values, for input from a
+         * writer in a session.
+         */
+        void startSession() {
+            cache = new RubyParsers.SessionCache();
+            cache.metrics = metrics;
+        }
+
+        boolean inSession() {
+            return cache instanceof RubyParsers.SessionCache;
+        }
+
+        private ReadCache topCache() {
+            return inSession() ? cache : cache.init();
+        }
+
+        /**
+         * Points the reader at a new stream, keeping its handlers, builders
+         * and cache. The parser is made on the next read, and a session
+         * starts over.
+         */
+        public void reset(InputStream in) {
+            this.in = metrics == null ? in : new CountingInputStream(in, metrics);
+            initialized = false;
+            if (inSession()) cache.init();
+        }
+
+        /**
+         * Returns a reader for the rest of the input that parses its values
+         * on the given number of threads. Parsers read ahead of the values
+         * they return, so it must come before any other read.
+         */
+        ParallelReader parallel(int threads) {
+            if (initialized) {
+                throw new IllegalStateException("A parallel read must come before any other read, or right after reset");
+            }
+            if (parallel == null || parallel.threads() != threads) {
+                if (parallel != null) parallel.close();
+                parallel = new ParallelReader(this, threads);
+            }
+            return parallel;
+        }
+
+        /**
+         * Returns a reader for the rest of the input that reads up to size
+         * values ahead on a thread of its own. With elements, it reads the
+         * elements of each top-level array, as readElement does.
+         */
+        ReadAhead readAhead(int size, final boolean elements) {
+            return new ReadAhead(new ReadAhead.Source() {
+                private boolean inArray;
+
+                public Object next() {
+                    if (!elements) return readNext();
+                    while (true) {
+                        if (!inArray) {
+                            if (!beginElements()) return RubyParsers.END;
+                            inArray = true;
+                        }
+                        Object o = readElement();
+                        if (o != RubyParsers.END) return o;
+                        inArray = false;
+                    }
+                }
+            }, size);
+        }
+
+        byte[] readRemaining() throws IOException {
+            return readAll(in);
+        }
+
+        /**
+         * A reader with the same configuration, for one worker thread.
+         */
+        @SuppressWarnings("unchecked")
+        ReaderImpl copy() {
+            ensureBuilders();
+            ReaderImpl copy = newReader();
+            copy.projection = projection;
+            copy.setMetrics(metrics);
+            Object maps = mapBuilder;
+            if (maps instanceof RubyMapReader) maps = ((RubyMapReader)maps).copy();
+            copy.setBuilders((MapReader)maps, listBuilder);
+            return copy;
+        }
+
+        /**
+         * Parses the one value in length bytes of buffer from offset.
+         */
+        Object parseAt(byte[] buffer, int offset, int length) throws IOException {
+            ensureBuilders();
+            RubyParsers.StreamParser parser = createParser(buffer, offset, length);
+            parser.setMetrics(metrics);
+            startTiming();
+            try {
+                Object value = parser.next(cache.init());
+                if (metrics != null) metrics.value();
+                return value;
+            } finally {
+                stopTiming();
+            }
+        }
+
         protected void initialize() {
             ensureBuilders();
             p = createParser();
+            p.setMetrics(metrics);
             initialized = true;
         }
 
-        protected abstract AbstractParser createParser();
+        protected abstract RubyParsers.StreamParser createParser();
+
+        protected abstract RubyParsers.StreamParser createParser(byte[] buffer, int offset, int length);
+
+        protected abstract Splitter splitter(byte[] buffer) throws IOException;
+
+        protected abstract ReaderImpl newReader();
+    }
+
+    /**
+     * Finds where each top-level value in a buffer ends.
+     */
+    interface Splitter {
+        /**
+         * Returns the offset just past the next value, or -1 at the end of
+         * the buffer.
+         */
+        int next() throws IOException;
+    }
+
+    /**
+     * Counts the bytes read from the input into metrics.
+     */
+    static class CountingInputStream extends FilterInputStream {
+        private final Metrics.Side metrics;
+
+        CountingInputStream(InputStream in, Metrics.Side metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) metrics.bytes(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) metrics.bytes(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            metrics.bytes(skipped);
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+
+    /**
+     * Lazy and parallel reads work on the whole input, so it is read up
+     * front.
+     */
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int n;
+        while ((n = in.read(chunk)) != -1) out.write(chunk, 0, n);
+        return out.toByteArray();
     }
 
     static class JsonReaderImpl extends ReaderImpl {
+        private final Ruby runtime;
 
-        public JsonReaderImpl(InputStream in, Map<String, ReadHandler<?,?>> handlers, DefaultReadHandler<?> defaultHandler) {
+        public JsonReaderImpl(Ruby runtime, InputStream in, Map<String, ReadHandler<?,?>> handlers, DefaultReadHandler<?> defaultHandler) {
             super(in, handlers, defaultHandler);
+            this.runtime = runtime;
         }
 
         @Override
-        protected AbstractParser createParser() {
+        protected RubyParsers.StreamParser createParser() {
             try {
-                JsonFactory jf = new JsonFactory();
-                com.fasterxml.jackson.core.JsonParser json_parser = jf.createParser(in);
-                json_parser.enable(com.fasterxml.jackson.core.JsonParser.Feature.ALLOW_NON_NUMERIC_NUMBERS);
-                return new JsonParser(json_parser, handlers, defaultHandler,
-                        mapBuilder, listBuilder);
+                if (lazy) {
+                    return new LazyParsers.LazyJsonParser(runtime, readAll(in), handlers, defaultHandler,
+                                                          mapBuilder, listBuilder);
+                }
+                com.fasterxml.jackson.core.JsonParser json_parser = JSON_FACTORY.createParser(in);
+                return new RubyParsers.RubyJsonParser(runtime, json_parser, handlers, defaultHandler,
+                                                      mapBuilder, listBuilder, projection);
             } catch (Throwable e) {
                 throw new RuntimeException(e);
             }
         }
+
+        @Override
+        protected RubyParsers.StreamParser createParser(byte[] buffer, int offset, int length) {
+            try {
+                return new RubyParsers.RubyJsonParser(runtime, JSON_FACTORY.createParser(buffer, offset, length),
+                                                      handlers, defaultHandler, mapBuilder, listBuilder, projection);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        protected Splitter splitter(final byte[] buffer) throws IOException {
+            final com.fasterxml.jackson.core.JsonParser jp = JSON_FACTORY.createParser(buffer);
+            return new Splitter() {
+                public int next() throws IOException {
+                    JsonToken token = jp.nextToken();
+                    if (token == null) return -1;
+                    // finishes the token, which Jackson otherwise reads lazily
+                    if (token == JsonToken.VALUE_STRING) jp.getTextLength();
+                    jp.skipChildren();
+                    // Jackson puts the end of a number that ends the input past it
+                    return (int)Math.min(jp.getCurrentLocation().getByteOffset(), buffer.length);
+                }
+            };
+        }
+
+        @Override
+        protected ReaderImpl newReader() {
+            return new JsonReaderImpl(runtime, null, handlers, defaultHandler);
+        }
     }
 
     static class MsgPackReaderImpl extends ReaderImpl {
+        private final Ruby runtime;
 
-        public MsgPackReaderImpl(InputStream in, Map<String, ReadHandler<?,?>> handlers, DefaultReadHandler<?> defaultHandler) {
+        public MsgPackReaderImpl(Ruby runtime, InputStream in, Map<String, ReadHandler<?,?>> handlers, DefaultReadHandler<?> defaultHandler) {
             super(in, handlers, defaultHandler);
+            this.runtime = runtime;
+        }
+
+        @Override
+        protected RubyParsers.StreamParser createParser() {
+            if (lazy) {
+                try {
+                    return new LazyParsers.LazyMsgpackParser(runtime, readAll(in), handlers, defaultHandler,
+                                                             mapBuilder, listBuilder);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return new RubyParsers.RubyMsgpackParser(runtime, MESSAGE_PACK.createUnpacker(in), handlers, defaultHandler,
+                                                     mapBuilder, listBuilder, projection);
+        }
+
+        @Override
+        protected RubyParsers.StreamParser createParser(byte[] buffer, int offset, int length) {
+            return new RubyParsers.RubyMsgpackParser(runtime, MESSAGE_PACK.createBufferUnpacker(buffer, offset, length),
+                                                     handlers, defaultHandler, mapBuilder, listBuilder, projection);
+        }
+
+        @Override
+        protected Splitter splitter(byte[] buffer) {
+            final BufferUnpacker mp = MESSAGE_PACK.createBufferUnpacker(buffer);
+            return new Splitter() {
+                public int next() throws IOException {
+                    try {
+                        mp.getNextType();
+                    } catch (EOFException e) {
+                        return -1;
+                    }
+                    mp.skip();
+                    return mp.getReadByteCount();
+                }
+            };
         }
 
         @Override
-        protected AbstractParser createParser() {
-            MessagePack mp = new MessagePack();
-            return new MsgpackParser(mp.createUnpacker(in), handlers, defaultHandler,
-                    mapBuilder, listBuilder);
+        protected ReaderImpl newReader() {
+            return new MsgPackReaderImpl(runtime, null, handlers, defaultHandler);
         }
     }
 }
@@ -76,6 +76,7 @@ end
 require 'set'
 require 'time'
 require 'uri'
+require 'stringio'
 require 'base64'
 require 'bigdecimal'
 require 'securerandom'
@@ -84,12 +85,15 @@ require 'addressable/uri'
 require 'transit/date_time_util'
 require 'transit/transit_types'
 require 'transit/rolling_cache'
+require 'transit/metrics'
 require 'transit/write_handlers'
 require 'transit/read_handlers'
 require 'transit/marshaler/base'
 require 'transit/writer'
 require 'transit/decoder'
+require 'transit/lazy'
 require 'transit/reader'
+require 'transit/pool'
 
 if Transit::jruby?
   require 'lock_jar'
@@ -103,6 +107,7 @@ if Transit::jruby?
 else
   require 'transit/marshaler/cruby/json'
   require 'transit/marshaler/cruby/messagepack'
+  require 'transit/unmarshaler/cruby/read_ahead'
   require 'transit/unmarshaler/cruby/json'
   require 'transit/unmarshaler/cruby/messagepack'
 end
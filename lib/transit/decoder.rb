@@ -17,28 +17,68 @@ module Transit
   # @api private
   class Decoder
     MUTEX = Mutex.new
+    # Decoders built with equal custom handlers share one merged handlers
+    # Hash, so the compiled handler table kept on it (on JRuby) is shared
+    # by all of their readers too.
     HANDLER_CACHE = {}
+    HANDLER_CACHE_SIZE = 64
 
     ESC_ESC  = "#{ESC}#{ESC}"
     ESC_SUB  = "#{ESC}#{SUB}"
     ESC_RES  = "#{ESC}#{RES}"
 
+    TAG_BYTE = TAG.getbyte(1)
+    ESCAPED_BYTES = [ESC, SUB, RES].map {|c| c.getbyte(0)}
+
     IDENTITY = ->(v){v}
 
     GROUND_TAGS = %w[_ s ? i d b ' array map]
 
+    INTERNED_KEYS_SIZE = 4096
+
     def initialize(options={})
       custom_handlers = options[:handlers] || {}
       custom_handlers.each {|k,v| validate_handler(k,v)}
       MUTEX.synchronize do
-        if HANDLER_CACHE.has_key?(custom_handlers)
-          @handlers = HANDLER_CACHE[custom_handlers]
-        else
-          @handlers = ReadHandlers::DEFAULT_READ_HANDLERS.merge(custom_handlers)
+        unless cached = HANDLER_CACHE[custom_handlers]
+          HANDLER_CACHE.clear if HANDLER_CACHE.size >= HANDLER_CACHE_SIZE
+          handlers = ReadHandlers::DEFAULT_READ_HANDLERS.merge(custom_handlers)
+          cached = HANDLER_CACHE[custom_handlers.dup.freeze] = [handlers, Decoder.by_byte(handlers)]
         end
-
+        @handlers, @handlers_by_byte = cached
       end
       @default_handler = options[:default_handler] || ReadHandlers::DEFAULT_READ_HANDLER
+      @interned_keys = {} if options[:intern_keys]
+      @projection = Decoder.projection(options[:select]) if options[:select]
+      @lazy = options[:lazy]
+      raise ArgumentError.new(":lazy can not be combined with :select") if @lazy && @projection
+      @session = options[:session]
+      raise ArgumentError.new(":lazy can not be combined with :session") if @lazy && @session
+      @session_cache = RollingCache.new if @session
+      @metrics = options[:metrics]
+    end
+
+    # The handlers for one character tags, as in "~i", by the byte of the
+    # character, for the ASCII ones.
+    def self.by_byte(handlers)
+      handlers.each_with_object(Array.new(128)) do |(tag, handler), table|
+        table[tag.getbyte(0)] = handler if String === tag && tag.bytesize == 1
+      end
+    end
+
+    # Turns the key paths given as :select into a tree of the selected
+    # keys, {key => subtree}, where true marks a value kept whole. A key
+    # that is not an Array is a path of one key.
+    def self.projection(paths)
+      paths.each_with_object({}) do |path, tree|
+        path = [path] unless Array === path
+        raise ArgumentError.new("Key paths in :select can not be empty") if path.empty?
+        parent = path[0..-2].reduce(tree) do |node, key|
+          break if node[key] == true
+          node[key] ||= {}
+        end
+        parent[path.last] = true if parent
+      end
     end
 
     # @api private
@@ -49,71 +89,348 @@ module Transit
       end
     end
 
+    # @api private
+    # Decodes one level of a LazyMap or LazyArray.
+    LazySource = Struct.new(:decoder, :node, :cache) do
+      def decode
+        decoder.decode_level(node, cache)
+      end
+    end
+
+    # @api private
+    # Stands in for the RollingCache while decoding a lazy value, whose
+    # cache codes were resolved when it was read.
+    class ResolvedCache
+      def initialize(codes)
+        @codes = codes
+      end
+
+      def has_key?(node)
+        @codes.has_key?(node)
+      end
+
+      def read(node)
+        @codes[node]
+      end
+
+      def cacheable?(*)
+        false
+      end
+    end
+
+    # @api private
+    # A map or array decode_tree has opened and not yet finished: what it
+    # waits for (:first element, until that says what it is, :array
+    # element, :tagged rep, map :key or :value), the node it comes from,
+    # the index of the element or entry, the value it is building, whether
+    # array elements are map keys, and for maps the keys of a Hash node and
+    # the key decoded last, or for tagged values the Tag.
+    Frame = Struct.new(:kind, :node, :index, :result, :as_map_key, :keys, :key)
+
     # Decodes a transit value to a corresponding object
     #
+    # Maps and arrays are decoded in one pass, with the ones still open
+    # kept on a stack rather than the call stack, so there is no limit on
+    # how deep they nest. node itself is left as it was.
+    #
     # @param node a transit value to be decoded
     # @param cache
     # @param as_map_key
     # @return decoded object
     def decode(node, cache=RollingCache.new, as_map_key=false)
       case node
-      when String
-        if cache.has_key?(node)
-          cache.read(node)
+      when String then decode_string(node, cache, as_map_key)
+      when Array, Hash then decode_tree(node, cache, as_map_key)
+      else node
+      end
+    end
+
+    def decode_string(node, cache, as_map_key)
+      return cache.read(node) if cache.has_key?(node)
+      parsed = if !node.start_with?(ESC)
+                 node
+               elsif (c = node.getbyte(1)) == TAG_BYTE
+                 Tag.new(node[2..-1])
+               elsif handler = (c && c < 128 ? @handlers_by_byte[c] : @handlers[node[1]])
+                 handler.from_rep(node[2..-1])
+               elsif ESCAPED_BYTES.include?(c)
+                 node[1..-1]
+               else
+                 @default_handler.from_rep(node[1], node[2..-1])
+               end
+      cache.write(parsed) if cache.cacheable?(node, as_map_key)
+      parsed
+    end
+
+    # Walks the tree depth first, in the order the writer cached its
+    # strings. Each turn decodes node, opening a frame for a map or array
+    # with elements, then hands each finished value to the frame on top,
+    # which either names its next element as node or finishes in turn.
+    def decode_tree(node, cache, as_map_key)
+      stack = []
+      while true
+        case node
+        when Array
+          unless node.empty?
+            stack << Frame.new(:first, node, 1, nil, as_map_key)
+            node, as_map_key = node[0], false
+            next
+          end
+          value = node
+        when Hash
+          unless node.empty?
+            keys = node.keys
+            stack << Frame.new(:key, node, 0, {}, false, keys)
+            node, as_map_key = keys[0], true
+            next
+          end
+          value = node
+        when String
+          value = decode_string(node, cache, as_map_key)
         else
-          parsed = if !node.start_with?(ESC)
-                     node
-                   elsif node.start_with?(TAG)
-                     Tag.new(node[2..-1])
-                   elsif handler = @handlers[node[1]]
-                     handler.from_rep(node[2..-1])
-                   elsif node.start_with?(ESC_ESC, ESC_SUB, ESC_RES)
-                     node[1..-1]
-                   else
-                     @default_handler.from_rep(node[1], node[2..-1])
-                   end
-          if cache.cacheable?(node, as_map_key)
-            cache.write(parsed)
+          value = node
+        end
+
+        while frame = stack.last
+          case frame.kind
+          when :first
+            if value == MAP_AS_ARRAY
+              raise ArgumentError.new("odd number of arguments for Hash") if frame.node.size.even?
+              frame.kind = :key
+              frame.index = 0
+              frame.result = {}
+              if frame.node.size > 1
+                node, as_map_key = map_key(frame), true
+                break
+              end
+            elsif Tag === value
+              frame.kind = :tagged
+              frame.key = value
+              node, as_map_key = frame.node[1], false
+              break
+            else
+              frame.kind = :array
+              frame.result = [value]
+              if frame.node.size > 1
+                node, as_map_key = frame.node[1], frame.as_map_key
+                break
+              end
+            end
+          when :array
+            frame.result << value
+            frame.index += 1
+            if frame.index < frame.node.size
+              node, as_map_key = frame.node[frame.index], frame.as_map_key
+              break
+            end
+          when :tagged
+            frame.result = from_tag(frame.key, value)
+          when :key
+            frame.kind = :value
+            frame.key = intern_key(value)
+            node, as_map_key = map_value(frame), false
+            break
+          when :value
+            if Tag === frame.key && map_size(frame) == 1
+              frame.result = from_tag(frame.key, value)
+            else
+              frame.result[frame.key] = value
+              frame.index += 1
+              if frame.index < map_size(frame)
+                frame.kind = :key
+                node, as_map_key = map_key(frame), true
+                break
+              end
+            end
           end
-          parsed
+          stack.pop
+          value = frame.result
         end
+        return value if stack.empty?
+      end
+    end
+
+    # The number of entries in the map frame is building, and the nodes
+    # of the key and value of the entry at its index.
+    def map_size(frame)
+      frame.keys ? frame.keys.size : (frame.node.size - 1) / 2
+    end
+
+    def map_key(frame)
+      frame.keys ? frame.keys[frame.index] : frame.node[frame.index * 2 + 1]
+    end
+
+    def map_value(frame)
+      frame.keys ? frame.node[frame.keys[frame.index]] : frame.node[frame.index * 2 + 2]
+    end
+
+    def from_tag(tag, v)
+      if handler = @handlers[tag.value]
+        handler.from_rep(v)
+      else
+        @default_handler.from_rep(tag.value, v)
+      end
+    end
+
+    # The cache for the next top-level value: a new one, or in a session
+    # the one the last value left.
+    def top_cache
+      @session ? @session_cache : RollingCache.new
+    end
+
+    # @api private
+    # True when node is a session reset marker, a bare nil at the top
+    # level, which starts the session cache over. Outside a session
+    # there are no markers.
+    def session_reset?(node)
+      return false unless @session && node.nil?
+      reset_session
+      true
+    end
+
+    # @api private
+    def reset_session
+      @session_cache = RollingCache.new if @session
+    end
+
+    # @api private
+    def session?
+      !!@session
+    end
+
+    # Decodes a top-level transit value, or an element of one read with
+    # :unwrap. With :select, only the selected map entries are decoded.
+    # @api private
+    def decode_value(node, cache=top_cache)
+      return decode_top(node, cache) unless @metrics
+      start = Metrics.now
+      value = decode_top(node, cache)
+      @metrics.value(:read, Metrics.now - start)
+      value
+    end
+
+    def decode_top(node, cache)
+      if @projection
+        project(node, cache, @projection)
+      elsif @lazy && (Array === node || Hash === node)
+        codes = {}.compare_by_identity
+        skip(node, cache, false, codes)
+        decode_child(node, ResolvedCache.new(codes))
+      else
+        decode(node, cache)
+      end
+    end
+
+    # Decodes one level of a lazily read map or array, returning the maps
+    # and arrays in it lazily.
+    def decode_level(node, cache)
+      if Hash === node
+        node.each_with_object({}) do |(k, v), h|
+          h[intern_key(decode(k, cache, true))] = decode_child(v, cache)
+        end
+      elsif node.first == MAP_AS_ARRAY
+        node.drop(1).each_slice(2).each_with_object({}) do |(k, v), h|
+          h[intern_key(decode(k, cache, true))] = decode_child(v, cache)
+        end
+      else
+        node.map {|e| decode_child(e, cache)}
+      end
+    end
+
+    def decode_child(node, cache)
+      case node
       when Array
         return node if node.empty?
-        e0 = decode(node.shift, cache, false)
-        if e0 == MAP_AS_ARRAY
-          decode(Hash[*node], cache)
-        elsif Tag === e0
-          v = decode(node.shift, cache)
-          if handler = @handlers[e0.value]
-            handler.from_rep(v)
-          else
-            @default_handler.from_rep(e0.value,v)
-          end
+        if node.first == MAP_AS_ARRAY
+          LazyMap.new(LazySource.new(self, node, cache))
+        elsif Tag === (e0 = decode(node.first, cache))
+          decode_tagged(e0, node[1], cache)
         else
-          [e0] + node.map {|e| decode(e, cache, as_map_key)}
+          LazyArray.new(LazySource.new(self, node, cache))
         end
       when Hash
-        if node.size == 1
-          k = decode(node.keys.first,   cache, true)
-          v = decode(node.values.first, cache, false)
-          if Tag === k
-            if handler = @handlers[k.value]
-              handler.from_rep(v)
-            else
-              @default_handler.from_rep(k.value,v)
-            end
-          else
-            {k => v}
-          end
+        return node if node.empty?
+        if node.size == 1 && Tag === (k = decode(node.keys.first, cache, true))
+          decode_tagged(k, node.values.first, cache)
         else
-          node.keys.each do |k|
-            node.store(decode(k, cache, true), decode(node.delete(k), cache))
+          LazyMap.new(LazySource.new(self, node, cache))
+        end
+      else
+        decode(node, cache)
+      end
+    end
+
+    # Decodes node like decode, keeping only the map entries in
+    # projection. Arrays pass the projection on to each of their
+    # elements, and tagged values are decoded whole.
+    def project(node, cache, projection)
+      case node
+      when Array
+        return node if node.empty?
+        if node.first == MAP_AS_ARRAY
+          project_entries(node.drop(1).each_slice(2), cache, projection)
+        else
+          e0 = project(node.first, cache, projection)
+          if Tag === e0
+            decode_tagged(e0, node[1], cache)
+          else
+            [e0] + node.drop(1).map {|e| project(e, cache, projection)}
           end
-          node
         end
+      when Hash
+        project_entries(node, cache, projection)
       else
-        node
+        decode(node, cache)
+      end
+    end
+
+    def project_entries(entries, cache, projection)
+      result = {}
+      entries.each_with_index do |(k, v), i|
+        key = intern_key(decode(k, cache, true))
+        return decode_tagged(key, v, cache) if i == 0 && Tag === key
+        if child = projection[key]
+          result[key] = child == true ? decode(v, cache) : project(v, cache, child)
+        else
+          skip(v, cache)
+        end
       end
+      result
+    end
+
+    def decode_tagged(tag, rep, cache)
+      from_tag(tag, decode(rep, cache))
+    end
+
+    # Walks a value that is not selected, decoding only the strings the
+    # writer may have cached so later cache codes still resolve. Given
+    # codes, notes what each cache code in it stands for.
+    def skip(node, cache, as_map_key=false, codes=nil)
+      case node
+      when String
+        if cache.has_key?(node)
+          codes[node] = cache.read(node) if codes
+        elsif cache.cacheable?(node, as_map_key)
+          decode(node, cache, as_map_key)
+        end
+      when Array
+        map = node.first == MAP_AS_ARRAY
+        node.each_with_index do |e, i|
+          skip(e, cache, map && i.odd?, codes) unless map && i == 0
+        end
+      when Hash
+        node.each {|k, v| skip(k, cache, true, codes); skip(v, cache, false, codes)}
+      end
+    end
+
+    # With :intern_keys, equal String keys share one frozen String. Like
+    # RollingCache, the table is cleared when it fills up.
+    def intern_key(key)
+      return key unless @interned_keys && String === key
+      @interned_keys[key] ||= begin
+                                @interned_keys.clear if @interned_keys.size >= INTERNED_KEYS_SIZE
+                                key.frozen? ? key : key.dup.freeze
+                              end
     end
 
     def validate_handler(key, handler)
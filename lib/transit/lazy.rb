@@ -0,0 +1,58 @@
+# Copyright 2014 Cognitect. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS-IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+require 'delegate'
+
+module Transit
+  # @api private
+  module Lazy
+    # @api private
+    def initialize(source)
+      @source = source
+    end
+
+    # @api private
+    def __getobj__
+      @value ||= begin
+                   value = @source.decode
+                   @source = nil
+                   value
+                 end
+    end
+
+    # @api private
+    def __setobj__(value)
+      @value = value
+    end
+
+    # True once the value has been decoded.
+    def decoded?
+      @source.nil?
+    end
+  end
+
+  # Stands in for a Hash read with <tt>:lazy => true</tt>. Its entries
+  # are decoded the first time it is used, and the maps and arrays among
+  # them are lazy in turn. It responds to everything a Hash does, but is
+  # not a Hash; use to_hash where one is needed.
+  class LazyMap < Delegator
+    include Lazy
+  end
+
+  # Stands in for an Array read with <tt>:lazy => true</tt>, like
+  # LazyMap; use to_ary where an Array is needed.
+  class LazyArray < Delegator
+    include Lazy
+  end
+end
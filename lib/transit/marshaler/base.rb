@@ -17,10 +17,61 @@ module Transit
   # @see https://github.com/cognitect/transit-format
   module Marshaler
 
+    # Writers built with equal custom handlers share one handlers Hash, so
+    # the compiled handler table kept on it (on JRuby) is shared by all of
+    # them too. Keys are frozen copies, so a caller changing its Hash later
+    # can't corrupt the cache.
     HANDLER_CACHE = {}
     VERBOSE_HANDLER_CACHE = {}
+    HANDLER_CACHE_SIZE = 64
     MUTEX = Mutex.new
 
+    # Bytes a writer that doesn't flush after every value lets wait
+    # before it flushes anyway.
+    DEFAULT_BUFFER_SIZE = 64 * 1024
+
+    # @api private
+    def self.cache_handlers(cache, custom_handlers, handlers)
+      cache.clear if cache.size >= HANDLER_CACHE_SIZE
+      cache[custom_handlers && custom_handlers.dup.freeze] = handlers
+    end
+
+    # @api private
+    # Returns [flush_every, buffer_size] for the :flush and :buffer_size
+    # writer options. flush_every is 1 for :value and 0 for :manual.
+    def self.flush_policy(opts)
+      flush_every = case flush = opts.fetch(:flush, :value)
+                    when :value  then 1
+                    when :manual then 0
+                    when Integer
+                      raise ArgumentError, ":flush must be positive, got #{flush}" unless flush > 0
+                      flush
+                    else
+                      raise ArgumentError, ":flush must be :value, :manual or an Integer, got #{flush.inspect}"
+                    end
+      buffer_size = opts.fetch(:buffer_size, DEFAULT_BUFFER_SIZE)
+      unless Integer === buffer_size && buffer_size > 0
+        raise ArgumentError, ":buffer_size must be a positive Integer, got #{buffer_size.inspect}"
+      end
+      [flush_every, buffer_size]
+    end
+
+    # @api private
+    # Returns how many values a :session writer writes between reset
+    # markers, 0 for only on Writer#reset_session, or nil when each
+    # value has a cache of its own.
+    def self.session_policy(opts)
+      case session = opts[:session]
+      when nil, false then nil
+      when true then 0
+      when Integer
+        raise ArgumentError, ":session must be positive, got #{session}" unless session > 0
+        session
+      else
+        raise ArgumentError, ":session must be true or an Integer, got #{session.inspect}"
+      end
+    end
+
     # @api private
     # Included in VerboseJson subclasses. Defined here to make it
     # available in CRuby and JRuby environments.
@@ -37,8 +88,7 @@ module Transit
             end
             h
           end
-          VERBOSE_HANDLER_CACHE[custom_handlers] = handlers
-          handlers
+          Marshaler.cache_handlers(VERBOSE_HANDLER_CACHE, custom_handlers, handlers)
         end
       end
     end
@@ -50,6 +100,11 @@ module Transit
           @handlers = build_handlers(opts[:handlers])
         end
         @handlers.values.each { |h| h.handlers=(@handlers) if h.respond_to?(:handlers=) }
+        @flush_every, @buffer_size = Marshaler.flush_policy(opts)
+        @session = Marshaler.session_policy(opts)
+        @metrics = opts[:metrics]
+        @unflushed = 0
+        @depth = 0
       end
 
       def build_handlers(custom_handlers)
@@ -58,8 +113,7 @@ module Transit
         else
           handlers = WriteHandlers::DEFAULT_WRITE_HANDLERS.dup
           handlers.merge!(custom_handlers) if custom_handlers
-          HANDLER_CACHE[custom_handlers] = handlers
-          handlers
+          Marshaler.cache_handlers(HANDLER_CACHE, custom_handlers, handlers)
         end
       end
 
@@ -172,15 +226,18 @@ module Transit
         end
       end
 
-      def marshal_top(obj, cache=RollingCache.new)
+      def marshal_top(obj, cache=top_cache, flush_every=@flush_every)
         if handler = find_handler(obj)
           if tag = handler.tag(obj)
+            start = Metrics.now if @metrics
             if tag.length == 1
               marshal(TaggedValue.new(QUOTE, obj), false, cache)
             else
               marshal(obj, false, cache)
             end
-            flush
+            @metrics.value(:write, Metrics.now - start) if @metrics
+            @unflushed += 1
+            flush if flush_every > 0 && @unflushed >= flush_every
           else
             raise "Handler must provide a non-nil tag: #{handler.inspect}"
           end
@@ -188,6 +245,88 @@ module Transit
           raise "Can not find a Write Handler for #{obj.inspect}."
         end
       end
+
+      # Marshals each value in values, flushing at the end of the batch
+      # rather than after every value, unless the policy is :manual.
+      def marshal_all(values)
+        flush_every = @flush_every == 1 ? 0 : @flush_every
+        values.each {|obj| marshal_top(obj, top_cache, flush_every)}
+        flush unless @flush_every == 0
+      end
+
+      # The methods below write one array or map a piece at a time.
+      # A streamed array or map is one value, so all of its elements
+      # share one cache, as they would if it were marshaled whole.
+      # Transit::Writer checks that they are called in a sensible order.
+      def begin_array(size)
+        begin_stream
+        emit_array_start(size || -1)
+      end
+
+      def end_array
+        emit_array_end
+        end_stream
+      end
+
+      def begin_map(size)
+        begin_stream
+        emit_map_start(size || -1)
+      end
+
+      def end_map
+        emit_map_end
+        end_stream
+      end
+
+      def write_element(obj)
+        marshal(obj, false, @stream_cache)
+      end
+
+      def write_entry(key, value)
+        handler = find_handler(key)
+        if handler && (tag = handler.tag(key)) && tag.length != 1
+          raise "Can not stream #{key.inspect} as a map key; write the map whole to write it as a cmap"
+        end
+        marshal(key, true, @stream_cache)
+        marshal(value, false, @stream_cache)
+      end
+
+      def begin_stream
+        @stream_cache = top_cache if (@depth += 1) == 1
+      end
+
+      def end_stream
+        if (@depth -= 1) == 0
+          @metrics.value(:write, 0) if @metrics
+          @unflushed += 1
+          flush if @flush_every > 0 && @unflushed >= @flush_every
+        end
+      end
+
+      def flush
+        @unflushed = 0
+        flush_output
+      end
+
+      # A session keeps one cache across top-level values, so keys and
+      # tags are sent in full only once. A bare nil at the top level,
+      # which is otherwise never written, tells the reader to start over.
+      def top_cache
+        return RollingCache.new unless @session
+        reset_session if @session > 0 && @session_values == @session
+        @session_values += 1
+        @session_cache
+      end
+
+      def start_session
+        @session_cache = RollingCache.new
+        @session_values = 0
+      end
+
+      def reset_session
+        emit_nil(false, nil)
+        start_session
+      end
     end
   end
 end
@@ -20,12 +20,22 @@ module Transit
       include Transit::Marshaler::Base
 
       def initialize(io, opts)
-        @oj = Oj::StreamWriter.new(io,opts.delete(:oj_opts) || {})
-        @state = []
+        @oj_opts = opts.delete(:oj_opts) || {}
+        parse_options(opts)
+        # Oj writes each value to io as it goes unless given a buffer
+        @oj_opts = @oj_opts.merge(:buffer_size => @buffer_size) unless @flush_every == 1
+        reset(io)
         @max_int = JSON_MAX_INT
         @min_int = JSON_MIN_INT
         @prefer_strings = true
-        parse_options(opts)
+      end
+
+      def reset(io)
+        flush if @oj
+        @io = io
+        @oj = Oj::StreamWriter.new(io,@oj_opts)
+        @state = []
+        start_session
       end
 
       def emit_array_start(size)
@@ -64,8 +74,9 @@ module Transit
         end
       end
 
-      def flush
-        # no-op
+      def flush_output
+        @oj.flush
+        @io.flush if @io.respond_to?(:flush)
       end
     end
 
@@ -80,6 +91,17 @@ module Transit
         end
         emit_array_end
       end
+
+      def begin_map(size)
+        begin_stream
+        emit_array_start(-1)
+        emit_value("^ ", false)
+      end
+
+      def end_map
+        emit_array_end
+        end_stream
+      end
     end
 
     # @api private
@@ -20,12 +20,18 @@ module Transit
       include Transit::Marshaler::Base
 
       def initialize(io, opts)
-        @io = io
-        @packer = ::MessagePack::Packer.new(io)
+        parse_options(opts)
+        reset(io)
         @max_int = MAX_INT
         @min_int = MIN_INT
         @prefer_strings = false
-        parse_options(opts)
+      end
+
+      def reset(io)
+        flush if @packer
+        @io = io
+        @packer = ::MessagePack::Packer.new(io, :io_buffer_size => @buffer_size)
+        start_session
       end
 
       def emit_array_start(size)
@@ -56,7 +62,7 @@ module Transit
         @packer.write(obj)
       end
 
-      def flush
+      def flush_output
         @packer.flush
         @io.flush
       end
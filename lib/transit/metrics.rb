@@ -0,0 +1,143 @@
+# Copyright 2014 Cognitect. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS-IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+module Transit
+  # Transit::Metrics counts what the readers and writers created with
+  # it as <tt>:metrics</tt> do, to show where the time goes. One
+  # Metrics can be shared by any number of readers and writers, on any
+  # thread. Readers and writers without one count nothing, and pay
+  # nothing for it.
+  #
+  # #snapshot returns the counts so far as a Hash, with the same keys
+  # under <tt>:read</tt> and <tt>:write</tt>:
+  #
+  # * <tt>:bytes</tt> read from or written to the io
+  # * <tt>:values</tt>, the top-level values (a streamed array or map is
+  #   one)
+  # * <tt>:types</tt>, the maps, arrays and scalars in them by the name of
+  #   their Ruby class, and tagged values by the class they decode to
+  # * <tt>:cache_hits</tt> and <tt>:cache_misses</tt> of the read or
+  #   write cache
+  # * <tt>:handlers</tt>, the <tt>:calls</tt> into each Ruby handler and
+  #   the <tt>:nanos</tt> spent in them, by tag when reading and by
+  #   handler class when writing
+  # * <tt>:nanos</tt> spent reading or writing values, of which
+  #   <tt>:handler_nanos</tt> were spent in Ruby handlers and
+  #   <tt>:native_nanos</tt> in the parser or emitter
+  #
+  # On CRuby, only values and time are counted.
+  #
+  # @example
+  #   metrics = Transit::Metrics.new
+  #   reader = Transit::Reader.new(:json, io, :metrics => metrics)
+  #   reader.each {|obj| do_something_with(obj)}
+  #   metrics.snapshot[:read][:handlers]
+  #   # => {"point" => {:calls => 1000, :nanos => 2314005}}
+  class Metrics
+    # @api private
+    # Returns the Metrics for the :metrics option: a new one for true.
+    def self.from_option(metrics)
+      case metrics
+      when nil, false then nil
+      when true then Metrics.new
+      when Metrics then metrics
+      else
+        raise ArgumentError, ":metrics must be true or a Transit::Metrics, got #{metrics.inspect}"
+      end
+    end
+
+    # @api private
+    def self.now
+      Process.clock_gettime(Process::CLOCK_MONOTONIC, :nanosecond)
+    end
+
+    if Transit::jruby?
+      def initialize
+        @counters = com.cognitect.transit.ruby.Metrics.new(JRuby.runtime)
+      end
+
+      # @api private
+      # The java counters the readers and writers count into.
+      attr_reader :counters
+
+      # Returns the counts so far as a Hash.
+      def snapshot
+        @counters.snapshot
+      end
+
+      # Sets every count back to zero.
+      def reset
+        @counters.reset
+        self
+      end
+
+      # Registers the counts as an MBean, under
+      # com.cognitect.transit:type=Metrics,name=<name>, so JMX tools
+      # can watch them. Returns the object name. JRuby only.
+      def register_mbean(name)
+        @counters.register(name)
+      end
+
+      # Removes the MBean registered under name.
+      def unregister_mbean(name)
+        @counters.unregister(name)
+        nil
+      end
+    else
+      def initialize
+        @mutex = Mutex.new
+        reset
+      end
+
+      # Returns the counts so far as a Hash.
+      def snapshot
+        @mutex.synchronize do
+          {:read => snapshot_side(@read), :write => snapshot_side(@write)}
+        end
+      end
+
+      # Sets every count back to zero.
+      def reset
+        @mutex.synchronize do
+          @read = {:values => 0, :nanos => 0}
+          @write = {:values => 0, :nanos => 0}
+        end
+        self
+      end
+
+      # JMX needs JRuby.
+      def register_mbean(name)
+        raise NotImplementedError, "register_mbean needs JRuby"
+      end
+
+      # @api private
+      # Counts one value read (side :read) or written (:write) in nanos.
+      def value(side, nanos)
+        counts = side == :read ? @read : @write
+        @mutex.synchronize do
+          counts[:values] += 1
+          counts[:nanos] += nanos
+        end
+      end
+
+      private
+
+      def snapshot_side(counts)
+        {:bytes => 0, :values => counts[:values], :types => {},
+         :cache_hits => 0, :cache_misses => 0, :handlers => {},
+         :nanos => counts[:nanos], :handler_nanos => 0, :native_nanos => counts[:nanos]}
+      end
+    end
+  end
+end
@@ -0,0 +1,167 @@
+# Copyright 2014 Cognitect. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS-IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+module Transit
+  # Transit::Pool holds one transit configuration (format, handlers and
+  # other options) for use by many threads at once.
+  #
+  # Readers and writers are not thread-safe, and building one converts
+  # all of its handlers. A Pool keeps what it builds per thread, so each
+  # thread pays that cost once and threads never share (or wait on) an
+  # instance. What a pool keeps is dropped once the pool is garbage
+  # collected, so pools need not live as long as their threads.
+  #
+  # @example
+  #   TRANSIT = Transit::Pool.new(:json,
+  #     :writer => {:handlers => {Point => PointWriteHandler.new}},
+  #     :reader => {:handlers => {"point" => PointReadHandler.new}})
+  #
+  #   # from any thread
+  #   string = TRANSIT.encode(Point.new(1,2))
+  #   point  = TRANSIT.decode(string)
+  #   strings = TRANSIT.encode_all(points, :parallel => true)
+  #   TRANSIT.writer(io).write(point)
+  class Pool
+    # @param [Symbol] format required :json, :json_verbose, or :msgpack
+    # @param [Hash]   opts optional
+    #
+    # Use <tt>:writer</tt> for the opts passed to Transit::Writer.new,
+    # and <tt>:reader</tt> for the opts passed to Transit::Reader.new.
+    def initialize(format, opts={})
+      @format = format
+      @writer_opts = copy_opts(opts[:writer])
+      @reader_opts = copy_opts(opts[:reader])
+      init_local
+    end
+
+    attr_reader :format
+
+    # Returns a new Writer for io. Like any Writer, it belongs to the
+    # thread that uses it.
+    def writer(io)
+      Writer.new(@format, io, @writer_opts)
+    end
+
+    # Returns a new Reader for io. Like any Reader, it belongs to the
+    # thread that uses it.
+    def reader(io)
+      Reader.new(@format, io, @reader_opts)
+    end
+
+    # Converts obj to a transit value and returns it as a binary String.
+    #
+    # On JRuby, each thread reuses its own marshaler and output buffer.
+    # Elsewhere, each thread resets its own Writer to a new StringIO.
+    if Transit::jruby?
+      def encode(obj)
+        local[:marshaler] ||= Writer.marshaler(@format, nil, @writer_opts)
+        local[:marshaler].encode(obj)
+      end
+    else
+      def encode(obj)
+        io = StringIO.new(''.force_encoding(Encoding::BINARY))
+        if local[:writer]
+          local[:writer].reset(io)
+        else
+          local[:writer] = writer(io)
+        end
+        local[:writer].write(obj)
+        io.string
+      end
+    end
+
+    # Converts each value in values (an Array or any Enumerable) to a
+    # transit value and returns an Array of binary Strings, in order.
+    #
+    # With <tt>:parallel => n</tt>, encodes them on n threads (one per
+    # processor with <tt>:parallel => true</tt>), each with a write cache
+    # and output buffer of its own. Custom handlers must be safe to call
+    # from several threads. On CRuby values are encoded one at a time.
+    #
+    # @example
+    #   strings = TRANSIT.encode_all(payloads, :parallel => true)
+    if Transit::jruby?
+      def encode_all(values, opts={})
+        if opts[:parallel]
+          local[:marshaler] ||= Writer.marshaler(@format, nil, @writer_opts)
+          local[:marshaler].encode_all(values, opts[:parallel] == true ? 0 : Integer(opts[:parallel]))
+        else
+          values.map {|obj| encode(obj)}
+        end
+      end
+    else
+      def encode_all(values, opts={})
+        values.map {|obj| encode(obj)}
+      end
+    end
+
+    # Reads the first transit value in string, resetting this thread's
+    # Reader to it.
+    def decode(string)
+      io = StringIO.new(string)
+      if local[:reader]
+        local[:reader].reset(io)
+      else
+        local[:reader] = reader(io)
+      end
+      local[:reader].read
+    end
+
+    private
+
+    def copy_opts(opts)
+      opts = (opts || {}).dup
+      opts[:handlers] = opts[:handlers].dup if opts[:handlers]
+      # every reader or writer in the pool counts into one Metrics
+      opts[:metrics] = Metrics.from_option(opts[:metrics]) if opts.has_key?(:metrics)
+      opts.freeze
+    end
+
+    if Transit::jruby?
+      # Each pool keeps its per-thread state in a java ThreadLocal of its
+      # own, which threads drop once the pool is garbage collected.
+      def init_local
+        @local = java.lang.ThreadLocal.new
+      end
+
+      def local
+        @local.get || (@local.set({}); @local.get)
+      end
+    else
+      # Each pool keeps its per-thread state under a key of its own, which
+      # a finalizer removes from every thread once the pool is garbage
+      # collected.
+      def init_local
+        @key = Pool.next_key
+        ObjectSpace.define_finalizer(self, Pool.release(@key))
+      end
+
+      def local
+        (Thread.current[:__transit_pools__] ||= {})[@key] ||= {}
+      end
+
+      KEYS = Mutex.new
+
+      # @api private
+      def self.next_key
+        KEYS.synchronize { @last_key = (@last_key || 0) + 1 }
+      end
+
+      # @api private
+      def self.release(key)
+        lambda {|_| Thread.list.each {|t| pools = t[:__transit_pools__] and pools.delete(key)} }
+      end
+    end
+  end
+end
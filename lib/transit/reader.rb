@@ -18,6 +18,10 @@ module Transit
   # @see https://github.com/cognitect/transit-format
   class Reader
     extend Forwardable
+    include Enumerable
+
+    # Values read ahead with <tt>:read_ahead => true</tt>.
+    READ_AHEAD = 16
 
     # @!method read
     #   Reads transit values from an IO (file, stream, etc), and
@@ -44,6 +48,33 @@ module Transit
     # Use opts to register custom read handlers, associating each one
     # with its tag.
     #
+    # Set <tt>:intern_keys => true</tt> to have equal String map keys
+    # share one frozen String, which saves memory when reading many
+    # records with the same keys.
+    #
+    # Set <tt>:select</tt> to a list of key paths to read only those map
+    # entries; the rest are skipped by the parser without being built.
+    # Each path is an Array of keys, or a single key. Arrays apply the
+    # selection to each of their elements, and tagged values are read
+    # whole.
+    #
+    # Set <tt>:lazy => true</tt> to read maps and arrays as Transit::LazyMap
+    # and Transit::LazyArray, which decode their entries only when first
+    # used, so the parts of a large value that are never looked at are
+    # never decoded. The whole io is read into memory up front, and is
+    # kept as long as any lazy value from it is. Can not be combined
+    # with <tt>:select</tt>.
+    #
+    # Use <tt>:session => true</tt> to read from a Writer created with
+    # <tt>:session</tt>, which keeps its cache across top-level values.
+    # The reader keeps its cache the same way and starts it over at each
+    # reset marker the writer sends, and on #reset. Can not be combined
+    # with <tt>:lazy</tt> or with <tt>each(:parallel)</tt>.
+    #
+    # Use <tt>:metrics => true</tt>, or a Transit::Metrics shared with
+    # other readers and writers, to count what this Reader reads and the
+    # time it takes (see #metrics).
+    #
     # @example
     #
     #   json_reader                 = Transit::Reader.new(:json, io)
@@ -51,9 +82,19 @@ module Transit
     #   msgpack_writer              = Transit::Reader.new(:msgpack, io)
     #   writer_with_custom_handlers = Transit::Reader.new(:json, io,
     #     :handlers => {"point" => PointReadHandler})
+    #   reader_with_interned_keys   = Transit::Reader.new(:json, io,
+    #     :intern_keys => true)
+    #   reader_with_selection       = Transit::Reader.new(:json, io,
+    #     :select => [["user", "name"], "ts"])
+    #   session_reader              = Transit::Reader.new(:json, io,
+    #     :session => true)
+    #   reader_with_metrics         = Transit::Reader.new(:json, io,
+    #     :metrics => true)
     #
     # @see Transit::ReadHandlers
     def initialize(format, io, opts={})
+      @metrics = Metrics.from_option(opts[:metrics])
+      opts = opts.merge(:metrics => @metrics) if opts.has_key?(:metrics)
       @reader = case format
                 when :json, :json_verbose
                   Unmarshaler::Json.new(io, opts)
@@ -61,5 +102,73 @@ module Transit
                   Unmarshaler::MessagePack.new(io, opts)
                 end
     end
+
+    # The Transit::Metrics given as <tt>:metrics</tt>, or nil.
+    attr_reader :metrics
+
+    # @param [Hash] opts optional
+    #
+    # Yields each transit value in the io, converted to a Ruby object,
+    # and stops at the end of the io.
+    #
+    # With <tt>:unwrap => true</tt>, each top-level value must be an
+    # array, and yields its elements one by one as they are parsed
+    # instead, so the array is never held in memory. Use this to process
+    # a file holding one very large array.
+    #
+    # With <tt>:parallel => n</tt>, parses the values on n threads (one
+    # per processor with <tt>:parallel => true</tt>) and yields them in
+    # order. The whole io is read up front and split into values, each
+    # parsed with a read cache of its own, so this suits streams of many
+    # independent values, such as logs. It must be the first read from
+    # the io, and custom handlers must be safe to call from several
+    # threads. On CRuby values are read one at a time.
+    #
+    # With <tt>:read_ahead => n</tt>, reads and parses up to n values
+    # (16 with <tt>:read_ahead => true</tt>) on a background
+    # thread while the block works on the current one, which helps when
+    # both the io and the block are slow. Values already read ahead when
+    # the block breaks are lost to later reads. Combines with
+    # <tt>:unwrap</tt>, reading ahead elements instead, and custom
+    # handlers are called on the background thread.
+    #
+    # Without a block, returns a lazy Enumerator, which reads values only
+    # as they are asked for.
+    #
+    # @example
+    #   reader.each {|obj| do_something_with(obj)}
+    #   reader.each(:unwrap => true).select {|row| row["ok"]}.first(10)
+    #   reader.each(:parallel => true) {|obj| do_something_with(obj)}
+    #   reader.each(:read_ahead => 100) {|obj| do_something_slow_with(obj)}
+    def each(opts={}, &block)
+      return enum_for(:each, opts).lazy unless block
+      if opts[:read_ahead]
+        raise ArgumentError.new(":read_ahead can not be combined with :parallel") if opts[:parallel]
+        size = opts[:read_ahead] == true ? READ_AHEAD : Integer(opts[:read_ahead])
+        raise ArgumentError.new(":read_ahead must be positive, got #{size}") unless size > 0
+        @reader.each_read_ahead(size, !!opts[:unwrap], &block)
+      elsif opts[:unwrap]
+        raise ArgumentError.new(":unwrap can not be combined with :parallel") if opts[:parallel]
+        @reader.each_element(&block)
+      elsif opts[:parallel]
+        @reader.each_parallel(opts[:parallel] == true ? 0 : Integer(opts[:parallel]), &block)
+      else
+        @reader.each(&block)
+      end
+      self
+    end
+
+    # @param [IO] io required
+    #
+    # Points this Reader at <tt>io</tt>, keeping its handlers and other
+    # configuration, which is cheaper than creating a new Reader.
+    #
+    # @example
+    #   reader.reset(next_io)
+    #   reader.read
+    def reset(io)
+      @reader.reset(io)
+      self
+    end
   end
 end
@@ -21,6 +21,8 @@ module Transit
 
     # @api private
     class Json
+      include ReadAhead
+
       class ParseHandler
         def each(&block) @yield_v = block end
         def add_value(v) @yield_v[v] if @yield_v end
@@ -35,21 +37,90 @@ module Transit
         end
       end
 
+      # Yields the elements of each top-level array as they are parsed,
+      # decoded with a cache shared by the array, instead of building the
+      # array.
+      class ElementParseHandler < ParseHandler
+        def initialize(decoder)
+          @decoder = decoder
+          @top = nil
+        end
+
+        def each(&block) @yield_e = block end
+
+        def add_value(v)
+          return if @top.nil? && @decoder.session_reset?(v)
+          raise "The top-level value is not an array" unless v.equal?(@top)
+          @top = nil
+        end
+
+        def hash_start
+          raise "The top-level value is not an array" unless @top
+          {}
+        end
+
+        def array_start
+          a = []
+          unless @top
+            @top = a
+            @cache = @decoder.top_cache
+            @first = true
+          end
+          a
+        end
+
+        def array_append(a,v)
+          return a << v unless a.equal?(@top)
+          if @first
+            @first = false
+            if v == MAP_AS_ARRAY || (String === v && v.start_with?(TAG))
+              raise "The top-level value is not an array"
+            end
+          end
+          @yield_e[@decoder.decode_value(v, @cache)]
+        end
+      end
+
       def initialize(io, opts)
         @io = io
         @decoder = Transit::Decoder.new(opts)
         @parse_handler = ParseHandler.new
       end
 
+      # @see Reader#reset
+      def reset(io)
+        @io = io
+        @decoder.reset_session
+      end
+
       # @see Reader#read
       def read
         if block_given?
-          @parse_handler.each {|v| yield @decoder.decode(v)}
+          @parse_handler.each {|v| yield @decoder.decode_value(v) unless @decoder.session_reset?(v)}
         else
-          @parse_handler.each {|v| return @decoder.decode(v)}
+          @parse_handler.each {|v| return @decoder.decode_value(v) unless @decoder.session_reset?(v)}
         end
         Oj.sc_parse(@parse_handler, @io) {|_stack|}
       end
+
+      # @see Reader#each
+      def each(&block)
+        read(&block)
+      end
+
+      # @see Reader#each
+      # Decoding is Ruby code, which would not run in parallel, so values
+      # are read one at a time.
+      def each_parallel(_threads, &block)
+        each(&block)
+      end
+
+      # @see Reader#each
+      def each_element(&block)
+        handler = (@element_parse_handler ||= ElementParseHandler.new(@decoder))
+        handler.each(&block)
+        Oj.sc_parse(handler, @io) {|_stack|}
+      end
     end
   end
 end
@@ -21,17 +21,59 @@ module Transit
 
     # @api private
     class MessagePack
+      include ReadAhead
+
       def initialize(io, opts)
         @decoder = Transit::Decoder.new(opts)
+        reset(io)
+      end
+
+      # @see Reader#reset
+      def reset(io)
         @unpacker = ::MessagePack::Unpacker.new(io)
+        @decoder.reset_session
       end
 
       # @see Reader#read
       def read
         if block_given?
-          @unpacker.each {|v| yield @decoder.decode(v)}
+          @unpacker.each {|v| yield @decoder.decode_value(v) unless @decoder.session_reset?(v)}
         else
-          @decoder.decode(@unpacker.read)
+          v = @unpacker.read
+          v = @unpacker.read while @decoder.session_reset?(v)
+          @decoder.decode_value(v)
+        end
+      end
+
+      # @see Reader#each
+      def each(&block)
+        read(&block)
+      end
+
+      # @see Reader#each
+      # Decoding is Ruby code, which would not run in parallel, so values
+      # are read one at a time.
+      def each_parallel(_threads, &block)
+        each(&block)
+      end
+
+      # @see Reader#each
+      def each_element
+        loop do
+          begin
+            @decoder.session_reset?(nil) while @decoder.session? && @unpacker.skip_nil
+            size = @unpacker.read_array_header
+          rescue EOFError
+            return
+          end
+          cache = @decoder.top_cache
+          size.times do |i|
+            v = @unpacker.read
+            if i == 0 && String === v && v.start_with?(TAG)
+              raise "The top-level value is not an array"
+            end
+            yield @decoder.decode_value(v, cache)
+          end
         end
       end
     end
@@ -0,0 +1,54 @@
+# Copyright 2014 Cognitect. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS-IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+module Transit
+  module Unmarshaler
+    # @api private
+    # Reads values on a background thread for Reader#each with
+    # :read_ahead. Waiting on the io releases the interpreter lock, so
+    # reading still overlaps with the block.
+    module ReadAhead
+      # @see Reader#each
+      def each_read_ahead(size, elements)
+        queue = SizedQueue.new(size)
+        stopped = false
+        producer = Thread.new do
+          begin
+            (elements ? method(:each_element) : method(:each)).call do |v|
+              break if stopped
+              queue << [:value, v]
+            end
+            queue << [:end]
+          rescue Exception => e
+            queue << [:error, e]
+          end
+        end
+        loop do
+          kind, v = queue.pop
+          case kind
+          when :value then yield v
+          when :end   then return
+          else raise v
+          end
+        end
+      ensure
+        if producer
+          stopped = true
+          # clearing makes room for a value the producer is waiting to add
+          queue.clear until producer.join(0.05)
+        end
+      end
+    end
+  end
+end
@@ -28,28 +28,71 @@ module Transit
     # Use opts to register custom write handlers, associating each one
     # with its type.
     #
+    # Use <tt>:flush</tt> to say when output is flushed to <tt>io</tt>:
+    # after every value (<tt>:value</tt>, the default), after every n
+    # values (an Integer), or only when #flush is called
+    # (<tt>:manual</tt>). Unless it is <tt>:value</tt>, output is also
+    # flushed once <tt>:buffer_size</tt> bytes (64KB by default) are
+    # waiting.
+    #
+    # Use <tt>:session => true</tt> to keep one cache across top-level
+    # values, so map keys, keywords and tags are written in full once per
+    # session rather than once per value. Only a Reader created with
+    # <tt>:session => true</tt> can read the output. Use
+    # <tt>:session => n</tt> to start a new session every n values, so a
+    # reader can join part way through. A session also starts over on
+    # #reset_session and #reset. The cache holds at most 1936 entries, as
+    # within one value.
+    #
+    # Use <tt>:metrics => true</tt>, or a Transit::Metrics shared with
+    # other readers and writers, to count what this Writer writes and the
+    # time it takes (see #metrics).
+    #
     # @example
     #   json_writer                 = Transit::Writer.new(:json, io)
     #   json_verbose_writer         = Transit::Writer.new(:json_verbose, io)
     #   msgpack_writer              = Transit::Writer.new(:msgpack, io)
     #   writer_with_custom_handlers = Transit::Writer.new(:json, io,
     #     :handlers => {Point => PointWriteHandler})
+    #   buffered_writer             = Transit::Writer.new(:json, io,
+    #     :flush => 1000, :buffer_size => 256 * 1024)
+    #   session_writer              = Transit::Writer.new(:json, io,
+    #     :session => 10_000)
+    #   writer_with_metrics         = Transit::Writer.new(:json, io,
+    #     :metrics => true)
     #
     # @see Transit::WriteHandlers
     def initialize(format, io, opts={})
-      @marshaler = case format
-                   when :json
-                     Marshaler::Json.new(io, {:handlers => {},
-                                              :oj_opts => {:indent => -1}}.merge(opts))
-                   when :json_verbose
-                     Marshaler::VerboseJson.new(io, {:handlers => {}}.merge(opts))
-                   else
-                     Marshaler::MessagePack.new(io, {:handlers => {}}.merge(opts))
-                   end
+      @metrics = Metrics.from_option(opts[:metrics])
+      opts = opts.merge(:metrics => @metrics) if opts.has_key?(:metrics)
+      @marshaler = Writer.marshaler(format, io, opts)
+      @sized = ![:json, :json_verbose].include?(format)
+      @session = opts[:session]
+      @streams = []
+    end
+
+    # The Transit::Metrics given as <tt>:metrics</tt>, or nil.
+    attr_reader :metrics
+
+    # @api private
+    def self.marshaler(format, io, opts)
+      if opts.has_key?(:metrics)
+        opts = opts.merge(:metrics => Metrics.from_option(opts[:metrics]))
+      end
+      case format
+      when :json
+        Marshaler::Json.new(io, {:handlers => {},
+                                 :oj_opts => {:indent => -1}}.merge(opts))
+      when :json_verbose
+        Marshaler::VerboseJson.new(io, {:handlers => {}}.merge(opts))
+      else
+        Marshaler::MessagePack.new(io, {:handlers => {}}.merge(opts))
+      end
     end
 
     # Converts a Ruby object to a transit value and writes it to this
-    # Writer's output stream.
+    # Writer's output stream. Between #begin_array and #end_array, writes
+    # it as the next element of the array instead.
     #
     # @param obj the value to write
     # @example
@@ -57,12 +100,242 @@ module Transit
     #   writer.write(Date.new(2014,7,22))
     if Transit::jruby?
       def write(obj)
-        @marshaler.write(obj)
+        @streams.empty? ? @marshaler.write(obj) : write_element(obj)
       end
     else
       def write(obj)
-        @marshaler.marshal_top(obj)
+        @streams.empty? ? @marshaler.marshal_top(obj) : write_element(obj)
+      end
+    end
+
+    # Writes each value in values (an Array or any Enumerable), then
+    # flushes once unless the flush policy is <tt>:manual</tt>. Values
+    # in the batch are not flushed one by one, even with the default
+    # policy, though output is still flushed whenever
+    # <tt>:buffer_size</tt> bytes are waiting.
+    #
+    # With <tt>:parallel => n</tt>, encodes the values on n threads (one
+    # per processor with <tt>:parallel => true</tt>), each with a write
+    # cache of its own, and writes them in order. The output is the same
+    # as without it. Custom handlers must be safe to call from several
+    # threads. On CRuby values are written one at a time.
+    #
+    # @param values the values to write
+    # @param [Hash] opts optional
+    # @example
+    #   writer = Transit::Writer.new(:json, io)
+    #   writer.write_all(records)
+    #   writer.write_all(payloads, :parallel => true)
+    if Transit::jruby?
+      def write_all(values, opts={})
+        if @streams.empty?
+          if opts[:parallel]
+            raise ArgumentError.new(":parallel can not be used in a :session") if @session
+            @marshaler.write_all_parallel(values, opts[:parallel] == true ? 0 : Integer(opts[:parallel]))
+          else
+            @marshaler.write_all(values)
+          end
+        else
+          raise ArgumentError.new(":parallel can not be used inside a streamed array or map") if opts[:parallel]
+          values.each {|v| write_element(v)}
+        end
+        nil
+      end
+    else
+      def write_all(values, opts={})
+        if @streams.empty?
+          @marshaler.marshal_all(values)
+        else
+          raise ArgumentError.new(":parallel can not be used inside a streamed array or map") if opts[:parallel]
+          values.each {|v| write_element(v)}
+        end
+        nil
+      end
+    end
+    alias_method :write_batch, :write_all
+
+    # @param [Integer] size the number of elements, required for
+    #   <tt>:msgpack</tt>, which writes it before the first element
+    #
+    # Starts writing an array one element at a time, for arrays too large
+    # to hold in memory. Each #write until the matching #end_array writes
+    # one element, and arrays and maps can be nested. The array is still
+    # one transit value: it is flushed (as the flush policy says) when it
+    # ends, and otherwise only once <tt>:buffer_size</tt> bytes are
+    # waiting.
+    #
+    # @example
+    #   writer.begin_array
+    #   rows.find_each {|row| writer.write(row.to_h)}
+    #   writer.end_array
+    def begin_array(size=nil)
+      begin_stream(:array, size)
+      @marshaler.begin_array(size)
+      self
+    end
+
+    # Ends the array started by the last #begin_array.
+    def end_array
+      end_stream(:array)
+      @marshaler.end_array
+      self
+    end
+
+    # @param [Integer] size the number of entries, required for
+    #   <tt>:msgpack</tt>
+    #
+    # Starts writing a map one entry at a time with #write_entry, as
+    # #begin_array does for arrays.
+    def begin_map(size=nil)
+      begin_stream(:map, size)
+      @marshaler.begin_map(size)
+      self
+    end
+
+    # Ends the map started by the last #begin_map.
+    def end_map
+      end_stream(:map)
+      @marshaler.end_map
+      self
+    end
+
+    # Writes one entry of the map started by #begin_map. Raises on a key
+    # that is written as an array or map, such as an Array or Hash, as a
+    # map with such keys is only written whole, as a cmap.
+    def write_entry(key, value)
+      stream = @streams.last
+      raise "write_entry is only allowed between begin_map and end_map" unless stream && stream[0] == :map
+      check_size(stream)
+      @marshaler.write_entry(key, value)
+      stream[2] += 1
+      self
+    end
+
+    # @param values an Enumerable, which may be lazy
+    # @param [Integer] size optional, as for #begin_array
+    #
+    # Writes values as one array, an element at a time.
+    #
+    # @example
+    #   writer.write_array(File.foreach(path).lazy.map {|line| parse(line)})
+    def write_array(values, size=nil)
+      size ||= values.size if values.respond_to?(:size)
+      begin_array(size)
+      values.each {|v| write_element(v)}
+      end_array
+    end
+
+    # @param pairs an Enumerable of key-value pairs, which may be lazy
+    # @param [Integer] size optional, as for #begin_map
+    #
+    # Writes pairs as one map, an entry at a time.
+    def write_map(pairs, size=nil)
+      size ||= pairs.size if pairs.respond_to?(:size)
+      begin_map(size)
+      pairs.each {|k,v| write_entry(k, v)}
+      end_map
+    end
+
+    # Flushes any values not yet flushed to this Writer's output stream.
+    def flush
+      @marshaler.flush
+      self
+    end
+
+    # Starts a new session: writes a marker telling the reader to start
+    # over, and clears this Writer's cache. Requires <tt>:session</tt>.
+    def reset_session
+      raise "reset_session requires a Writer created with :session" unless @session
+      raise "Can not reset the session in the middle of an array or map" unless @streams.empty?
+      @marshaler.reset_session
+      self
+    end
+
+    # @param [IO] io required
+    #
+    # Points this Writer at <tt>io</tt>, keeping its handlers and other
+    # configuration, which is cheaper than creating a new Writer. Values
+    # not yet flushed are flushed to the old io first.
+    #
+    # @example
+    #   writer.reset(next_io)
+    #   writer.write(obj)
+    def reset(io)
+      raise "Can not reset in the middle of an array or map" unless @streams.empty?
+      @marshaler.reset(io)
+      self
+    end
+
+    private
+
+    def write_element(obj)
+      stream = @streams.last
+      raise "Use write_entry between begin_map and end_map" if stream[0] == :map
+      check_size(stream)
+      @marshaler.write_element(obj)
+      stream[2] += 1
+    end
+
+    def begin_stream(kind, size)
+      if size.nil? && @sized
+        raise ArgumentError, "msgpack needs the size of an array or map before its first element"
+      end
+      unless @streams.empty?
+        raise "Arrays and maps can not be streamed as map keys or values" if @streams.last[0] == :map
+        check_size(@streams.last)
+        @streams.last[2] += 1
+      end
+      @streams << [kind, size, 0]
+    end
+
+    # Raises before writing one more element or entry of stream if that
+    # is more than its declared size.
+    def check_size(stream)
+      kind, size, written = stream
+      if size && written == size
+        raise "#{kind} declared #{size} #{kind == :map ? 'entries' : 'elements'} but got #{written + 1}"
+      end
+    end
+
+    def end_stream(kind)
+      stream = @streams.last
+      raise "end_#{kind} without begin_#{kind}" unless stream && stream[0] == kind
+      if stream[1] && stream[1] != stream[2]
+        raise "#{kind} declared #{stream[1]} #{kind == :map ? 'entries' : 'elements'} but got #{stream[2]}"
       end
+      @streams.pop
+    end
+  end
+
+  # @param obj the value to write
+  # @param [Symbol] format required :json, :json_verbose, or :msgpack
+  # @param [Hash]   opts optional, as for Transit::Writer.new
+  #
+  # Converts a Ruby object to a transit value and returns it as a binary
+  # String.
+  #
+  # On JRuby, calls without opts reuse a marshaler and its output buffer
+  # per thread and format.
+  #
+  # @example
+  #   Transit.encode([1, 2, 3], :json)
+  #   # => "[1,2,3]"
+  if Transit::jruby?
+    def encode(obj, format, opts={})
+      marshaler = if opts.empty?
+                    marshalers = (Thread.current[:__transit_marshalers__] ||= {})
+                    marshalers[format] ||= Writer.marshaler(format, nil, opts)
+                  else
+                    Writer.marshaler(format, nil, opts)
+                  end
+      marshaler.encode(obj)
+    end
+  else
+    def encode(obj, format, opts={})
+      io = StringIO.new(''.force_encoding(Encoding::BINARY))
+      Writer.new(format, io, opts).write(obj)
+      io.string
     end
   end
+  module_function :encode
 end
@@ -77,6 +77,20 @@ def hash_of_size(n)
   Hash[array_of_symbols(n).zip((0..n).to_a)]
 end
 
+# What a Transit::Writer for format writes for values, one write each.
+def written(format, *values)
+  written_with(format, {}, values)
+end
+
+# As written, from a Writer built with opts. Given a block, the block
+# writes each value instead.
+def written_with(format, opts, values)
+  io = StringIO.new('', 'w+')
+  writer = Transit::Writer.new(format, io, opts)
+  values.each {|v| block_given? ? yield(writer, v) : writer.write(v)}
+  io.string
+end
+
 Person = Struct.new("Person", :first_name, :last_name, :birthdate)
 
 class PersonHandler
@@ -30,6 +30,14 @@ module Transit
       end
     end
 
+    describe "interning map keys" do
+      it "shares one frozen String per distinct key with :intern_keys" do
+        decoded = Decoder.new(:intern_keys => true).decode([{"this" => "a", "that" => 1},{"^0" => "b", "^1" => 2}])
+        assert { decoded == [{"this" => "a", "that" => 1},{"this" => "b", "that" => 2}] }
+        assert { decoded[0].keys.zip(decoded[1].keys).all? {|a, b| a.equal?(b) && a.frozen?} }
+      end
+    end
+
     describe "formats" do
       describe "JSON_M" do
         it "converts an array starting with '^ ' to a map" do
@@ -57,6 +65,39 @@ module Transit
       end
     end
 
+    describe "nesting" do
+      it "decodes maps and arrays nested deeper than the call stack goes" do
+        node = (1..20_000).inject(["~:leaf"]) {|n, i| i.even? ? {"~:k" => n} : ["^ ", "~:k", n]}
+        decoded = decode(node)
+        20_000.times { decoded = decoded[:k] }
+        assert { decoded == [:leaf] }
+      end
+
+      it "decodes tagged values in maps and arrays in order" do
+        node = [["~#set", ["~:abc", "^1"]], {"~#point" => [1, 2]}, ["^ ", "~#list", ["^1"]]]
+        decoder = Decoder.new(:default_handler => Class.new { def from_rep(t, r) [t, r] end }.new)
+        assert { decoder.decode(node) == [Set.new([:abc]), ["point", [1, 2]], [:abc]] }
+      end
+
+      it "leaves the node it decodes as it was" do
+        node = ["^ ", "~:a", [1, "~:b"], "~:c", {"~:d" => ["~#list", [2]]}]
+        copy = Marshal.load(Marshal.dump(node))
+        assert { decode(node) == {:a => [1, :b], :c => {:d => [2]}} }
+        assert { node == copy }
+      end
+
+      it "raises on a map as array with a key and no value" do
+        assert { rescuing { decode(["^ ", "~:a"]) }.is_a?(ArgumentError) }
+      end
+    end
+
+    describe "handlers" do
+      it "finds handlers for multibyte tag characters" do
+        handler = Class.new { def from_rep(v) "tagged #{v}" end }.new
+        assert { Decoder.new(:handlers => {"\u00e9" => handler}).decode("~\u00e9x") == "tagged x" }
+      end
+    end
+
     describe "Tag" do
       # Regression example for https://github.com/cognitect/transit-ruby/pull/19
       it "is does not == its String value" do
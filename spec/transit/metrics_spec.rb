@@ -0,0 +1,183 @@
+# Copyright 2014 Cognitect. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS-IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+require 'spec_helper'
+
+module Transit
+  describe Metrics do
+    Spot = Struct.new(:x, :y)
+
+    class SpotWriteHandler
+      def tag(_) "spot" end
+      def rep(s) [s.x, s.y] end
+      def string_rep(_) nil end
+    end
+
+    class SpotReadHandler
+      def from_rep(rep) Spot.new(*rep) end
+    end
+
+    let(:values) { [{:id => 1, :spot => Spot.new(1, 2)}, {:id => 2, :spot => Spot.new(3, 4)}, "last"] }
+
+    def write(format, metrics, values)
+      io = StringIO.new('', 'w+')
+      writer = Writer.new(format, io, :metrics => metrics, :handlers => {Spot => SpotWriteHandler.new})
+      values.each {|v| writer.write(v)}
+      io.string
+    end
+
+    def read(format, metrics, string)
+      reader = Reader.new(format, StringIO.new(string), :metrics => metrics,
+                          :handlers => {"spot" => SpotReadHandler.new})
+      reader.each.to_a
+    end
+
+    it "makes a Metrics for :metrics => true" do
+      writer = Writer.new(:json, StringIO.new, :metrics => true)
+      expect(writer.metrics.class).to eq(Metrics)
+      expect(Reader.new(:json, StringIO.new, :metrics => true).metrics.class).to eq(Metrics)
+    end
+
+    it "has no Metrics by default" do
+      expect(Writer.new(:json, StringIO.new).metrics).to eq(nil)
+      expect(Reader.new(:json, StringIO.new).metrics).to eq(nil)
+    end
+
+    it "rejects anything else" do
+      expect { Writer.new(:json, StringIO.new, :metrics => 1) }.to raise_error(ArgumentError)
+    end
+
+    [:json, :json_verbose, :msgpack].each do |format|
+      describe "with #{format}" do
+        it "counts values and time on both sides" do
+          metrics = Metrics.new
+          expect(read(format, metrics, write(format, metrics, values))).to eq(values)
+          snapshot = metrics.snapshot
+          [:read, :write].each do |side|
+            expect(snapshot[side][:values]).to eq(3)
+            expect(snapshot[side][:nanos] > 0).to be true
+          end
+        end
+
+        it "counts a streamed array as one value" do
+          metrics = Metrics.new
+          io = StringIO.new('', 'w+')
+          writer = Writer.new(format, io, :metrics => metrics)
+          writer.write_array([1, 2, 3])
+          Reader.new(format, StringIO.new(io.string), :metrics => metrics).each(:unwrap => true).to_a
+          expect(metrics.snapshot[:write][:values]).to eq(1)
+          expect(metrics.snapshot[:read][:values]).to eq(1)
+        end
+
+        if Transit::jruby?
+          it "counts bytes in and out" do
+            metrics = Metrics.new
+            string = write(format, metrics, values)
+            read(format, metrics, string)
+            expect(metrics.snapshot[:write][:bytes]).to eq(string.bytesize)
+            expect(metrics.snapshot[:read][:bytes]).to eq(string.bytesize)
+          end
+
+          it "counts types by Ruby class" do
+            metrics = Metrics.new
+            read(format, metrics, write(format, metrics, values))
+            [:read, :write].each do |side|
+              types = metrics.snapshot[side][:types]
+              expect(types["Hash"]).to eq(2)
+              expect(types["Transit::Spot"]).to eq(2)
+              expect(types["Symbol"]).to eq(4)
+            end
+          end
+
+          it "counts calls into ruby handlers and the time they take" do
+            metrics = Metrics.new
+            read(format, metrics, write(format, metrics, values))
+            read_handlers = metrics.snapshot[:read][:handlers]
+            expect(read_handlers["spot"][:calls]).to eq(2)
+            expect(read_handlers["spot"][:nanos] > 0).to be true
+            write_side = metrics.snapshot[:write]
+            expect(write_side[:handlers]["Transit::SpotWriteHandler"][:calls] >= 4).to be true
+            expect(write_side[:handler_nanos] > 0).to be true
+            expect(write_side[:native_nanos]).to eq(write_side[:nanos] - write_side[:handler_nanos])
+          end
+
+          unless format == :json_verbose
+            it "counts cache hits and misses" do
+              metrics = Metrics.new
+              value = [{:key => 1}, {:key => 2}]
+              read(format, metrics, write(format, metrics, [value]))
+              [:read, :write].each do |side|
+                expect(metrics.snapshot[side][:cache_misses]).to eq(1)
+                expect(metrics.snapshot[side][:cache_hits]).to eq(1)
+              end
+            end
+          end
+        end
+      end
+    end
+
+    it "is shared by readers and writers" do
+      metrics = Metrics.new
+      2.times { write(:json, metrics, [1]) }
+      expect(metrics.snapshot[:write][:values]).to eq(2)
+    end
+
+    it "is shared by a pool's readers and writers" do
+      metrics = Metrics.new
+      pool = Pool.new(:json, :writer => {:metrics => metrics}, :reader => {:metrics => metrics})
+      expect(pool.decode(pool.encode([1, 2]))).to eq([1, 2])
+      expect(metrics.snapshot[:write][:values]).to eq(1)
+      expect(metrics.snapshot[:read][:values]).to eq(1)
+    end
+
+    it "starts over on reset" do
+      metrics = Metrics.new
+      write(:json, metrics, [1])
+      metrics.reset
+      expect(metrics.snapshot[:write][:values]).to eq(0)
+    end
+
+    if Transit::jruby?
+      it "counts the values written in parallel once" do
+        metrics = Metrics.new
+        io = StringIO.new('', 'w+')
+        Writer.new(:json, io, :metrics => metrics).write_all((1..20).map {|i| {:i => i}}, :parallel => 2)
+        expect(metrics.snapshot[:write][:values]).to eq(20)
+        expect(metrics.snapshot[:write][:bytes]).to eq(io.string.bytesize)
+      end
+
+      it "counts the values read in parallel" do
+        metrics = Metrics.new
+        string = write(:json, Metrics.new, values)
+        read = Reader.new(:json, StringIO.new(string), :metrics => metrics,
+                          :handlers => {"spot" => SpotReadHandler.new}).each(:parallel => 2).to_a
+        expect(read).to eq(values)
+        expect(metrics.snapshot[:read][:values]).to eq(3)
+        expect(metrics.snapshot[:read][:handlers]["spot"][:calls]).to eq(2)
+      end
+
+      it "registers as an MBean" do
+        metrics = Metrics.new
+        name = metrics.register_mbean("metrics_spec")
+        begin
+          write(:json, metrics, [1, 2])
+          server = java.lang.management.ManagementFactory.getPlatformMBeanServer
+          expect(server.getAttribute(javax.management.ObjectName.new(name), "ValuesWritten")).to eq(2)
+        ensure
+          metrics.unregister_mbean("metrics_spec")
+        end
+      end
+    end
+  end
+end
@@ -0,0 +1,114 @@
+# Copyright 2014 Cognitect. All Rights Reserved.
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS-IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+
+require 'spec_helper'
+
+module Transit
+  describe Pool do
+    Point = Struct.new(:x, :y)
+
+    class PointWriteHandler
+      def tag(_) "point" end
+      def rep(p) [p.x, p.y] end
+      def string_rep(_) nil end
+    end
+
+    class PointReadHandler
+      def from_rep(rep) Point.new(*rep) end
+    end
+
+    def pool(format)
+      Pool.new(format,
+               :writer => {:handlers => {Point => PointWriteHandler.new}},
+               :reader => {:handlers => {"point" => PointReadHandler.new}})
+    end
+
+    [:json, :json_verbose, :msgpack].each do |format|
+      describe format do
+        it "encodes what a Writer writes" do
+          value = {:a => [1, Point.new(2, 3)]}
+          io = StringIO.new('', 'w+')
+          Writer.new(format, io, :handlers => {Point => PointWriteHandler.new}).write(value)
+          assert { pool(format).encode(value).bytes.to_a == io.string.bytes.to_a }
+        end
+
+        it "round trips through encode and decode" do
+          p = pool(format)
+          value = [Point.new(1, 2), {"point" => Point.new(3, 4)}]
+          assert { p.decode(p.encode(value)) == value }
+        end
+
+        it "hands out writers and readers" do
+          p = pool(format)
+          io = StringIO.new('', 'w+')
+          p.writer(io).write(Point.new(5, 6))
+          assert { p.reader(StringIO.new(io.string)).read == Point.new(5, 6) }
+        end
+
+        it "can be shared by many threads" do
+          p = pool(format)
+          results = (1..8).map do |t|
+            Thread.new do
+              (1..50).map do |i|
+                value = {"thread" => t, "points" => [Point.new(t, i), Point.new(i, t)]}
+                p.decode(p.encode(value)) == value
+              end
+            end
+          end.map(&:value)
+          assert { results.flatten.all? }
+        end
+
+        it "encodes a batch in order, in parallel or not" do
+          p = pool(format)
+          values = (1..40).map {|i| {"abcd" => [Point.new(i, 1), "abcd"]}}
+          encoded = values.map {|v| p.encode(v)}
+          assert { p.encode_all(values) == encoded }
+          assert { p.encode_all(values, :parallel => 3) == encoded }
+          assert { p.encode_all(values.each, :parallel => true) == encoded }
+        end
+      end
+    end
+
+    it "keeps what it builds apart from other pools on the same thread" do
+      other = Class.new(PointWriteHandler) { def tag(_) "other" end }
+      first = pool(:json)
+      second = Pool.new(:json, :writer => {:handlers => {Point => other.new}})
+      assert { JSON.parse(first.encode(Point.new(1, 2))) == ["~#point", [1, 2]] }
+      assert { JSON.parse(second.encode(Point.new(1, 2))) == ["~#other", [1, 2]] }
+      assert { JSON.parse(first.encode(Point.new(1, 2))) == ["~#point", [1, 2]] }
+    end
+
+    it "keeps a copy of the options it was given" do
+      handlers = {Point => PointWriteHandler.new}
+      p = Pool.new(:json, :writer => {:handlers => handlers})
+      handlers.clear
+      assert { JSON.parse(p.encode(Point.new(1, 2))) == ["~#point", [1, 2]] }
+    end
+  end
+
+  describe Writer do
+    it "calls custom handlers from a thread other than the one it was built on" do
+      handler = Class.new do
+        def tag(_) "P" end
+        def rep(p) p.to_s end
+        def string_rep(p) rep(p) end
+      end
+      point = Struct.new(:x, :y)
+      io = StringIO.new('', 'w+')
+      writer = Writer.new(:json, io, :handlers => {point => handler.new})
+      Thread.new { writer.write(point.new(1, 2)) }.join
+      assert { JSON.parse(io.string) == ["~#'", "~P#{point.new(1, 2)}"] }
+    end
+  end
+end
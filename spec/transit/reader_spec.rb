@@ -64,6 +64,356 @@ module Transit
       include_examples "read with a block", :msgpack
     end
 
+    shared_examples "interning map keys" do |type|
+      it "shares one frozen String per distinct #{type} map key with :intern_keys" do
+        io = StringIO.new('', 'w+')
+        Transit::Writer.new(type, io).write([{"name" => "a", "id" => 1}, {"name" => "b", "id" => 2}])
+        records = Transit::Reader.new(type, StringIO.new(io.string), :intern_keys => true).read
+        assert { records == [{"name" => "a", "id" => 1}, {"name" => "b", "id" => 2}] }
+        assert { records[0].keys.zip(records[1].keys).all? {|a, b| a.equal?(b) && a.frozen?} }
+      end
+    end
+
+    describe "interning map keys" do
+      include_examples "interning map keys", :json
+      include_examples "interning map keys", :json_verbose
+      include_examples "interning map keys", :msgpack
+    end
+
+    shared_examples "resetting" do |type|
+      it "reads #{type} from a new io after reset" do
+        first  = [{"name" => "a", "tags" => [:xyzzy, :xyzzy]}]
+        second = [{"name" => "b", "tags" => [:plugh, :plugh]}, 2]
+        reader = Transit::Reader.new(type, StringIO.new(written(type, first)))
+        assert { reader.read == first }
+        assert { reader.reset(StringIO.new(written(type, second))).read == second }
+      end
+
+      it "drops what is left of the old #{type} io on reset" do
+        io = StringIO.new(written(type, "one") + written(type, "two"))
+        reader = Transit::Reader.new(type, io)
+        assert { reader.read == "one" }
+        reader.reset(StringIO.new(written(type, "three")))
+        values = []
+        if Transit::jruby?
+          # Ignore expected EOFException raised after the StringIO is exhausted
+          reader.read {|v| values << v} rescue nil
+        else
+          reader.read {|v| values << v}
+        end
+        assert { values == ["three"] }
+      end
+
+      it "keeps its #{type} handlers across reset" do
+        handler = Class.new { def from_rep(v) "custom #{v}" end }
+        tagged = Transit::TaggedValue.new("X", "value")
+        reader = Transit::Reader.new(type, StringIO.new(written(type, tagged)),
+                                     :handlers => {"X" => handler.new})
+        assert { reader.read == "custom value" }
+        assert { reader.reset(StringIO.new(written(type, [tagged]))).read == ["custom value"] }
+      end
+    end
+
+    describe "resetting" do
+      include_examples "resetting", :json
+      include_examples "resetting", :json_verbose
+      include_examples "resetting", :msgpack
+    end
+
+    shared_examples "each" do |type|
+      rows = [{"name" => "a", :tags => [:xyzzy, :plugh]},
+              {"name" => "b", :tags => [:plugh, :xyzzy]},
+              {"name" => "c", :tags => []}]
+
+      it "yields every #{type} value and stops at the end of the io" do
+        values = []
+        Transit::Reader.new(type, StringIO.new(written(type, "one", [2], {:three => 3}))).each {|v| values << v}
+        assert { values == ["one", [2], {:three => 3}] }
+      end
+
+      it "returns a lazy Enumerator that reads #{type} values only as asked" do
+        reader = Transit::Reader.new(type, StringIO.new(written(type, 1, 2, 3)))
+        assert { reader.each.map {|v| v * 10}.first(1) == [10] }
+        assert { reader.read == 2 }
+      end
+
+      it "supports external iteration over #{type} values" do
+        enum = Transit::Reader.new(type, StringIO.new(written(type, 1, 2))).each
+        assert { enum.next == 1 }
+        assert { enum.next == 2 }
+        assert { rescuing { enum.next }.is_a?(StopIteration) }
+      end
+
+      it "yields the elements of top-level #{type} arrays with :unwrap" do
+        reader = Transit::Reader.new(type, StringIO.new(written(type, rows, [], rows.take(1))))
+        assert { reader.each(:unwrap => true).to_a == rows + rows.take(1) }
+      end
+
+      it "unwraps top-level #{type} arrays that start with the string \"^ \"" do
+        reader = Transit::Reader.new(type, StringIO.new(written(type, ["^ ", "x", 1], ["^ "])))
+        assert { reader.each(:unwrap => true).to_a == ["^ ", "x", 1, "^ "] }
+      end
+
+      it "stops part way through a top-level #{type} array with :unwrap" do
+        reader = Transit::Reader.new(type, StringIO.new(written(type, rows)))
+        assert { reader.each(:unwrap => true).first(2) == rows.take(2) }
+      end
+
+      it "raises with :unwrap when a top-level #{type} value is not an array" do
+        [{"a" => 1}, "scalar", Transit::TaggedValue.new("point", [1, 2])].each do |value|
+          reader = Transit::Reader.new(type, StringIO.new(written(type, value)))
+          assert { rescuing { reader.each(:unwrap => true) {|_|} }.message =~ /not an array/ }
+        end
+      end
+    end
+
+    describe "each" do
+      include_examples "each", :json
+      include_examples "each", :json_verbose
+      include_examples "each", :msgpack
+
+      it "makes Reader Enumerable" do
+        io = StringIO.new('', 'w+')
+        writer = Transit::Writer.new(:json, io)
+        [1, 2, 3, 4].each {|v| writer.write(v)}
+        reader = Transit::Reader.new(:json, StringIO.new(io.string))
+        assert { reader.select(&:even?) == [2, 4] }
+      end
+    end
+
+    shared_examples "selecting key paths" do |type|
+      # :admin and "email" are first written inside entries that are not
+      # selected, so the second row refers to them by cache code
+      rows = [{"user" => {"name" => "a", "email" => "a@example.com"},
+               "meta" => {:kind => :admin, "extra" => [:admin, 1.5]},
+               "ts" => 1},
+              {"user" => {"name" => "b", "email" => "b@example.com"},
+               "meta" => {:kind => :admin},
+               "ts" => 2,
+               "note" => :admin}]
+      selected = [{"user" => {"name" => "a"}, "ts" => 1},
+                  {"user" => {"name" => "b"}, "ts" => 2, "note" => :admin}]
+      paths = [["user", "name"], "ts", ["note"]]
+
+      it "reads only the selected #{type} map entries" do
+        reader = Transit::Reader.new(type, StringIO.new(written(type, rows)), :select => paths)
+        assert { reader.read == selected }
+      end
+
+      it "selects #{type} entries by keyword key" do
+        reader = Transit::Reader.new(type, StringIO.new(written(type, {:id => 1, :other => [2]})), :select => [:id])
+        assert { reader.read == {:id => 1} }
+      end
+
+      it "reads #{type} arrays that start with the string \"^ \" as arrays" do
+        reader = Transit::Reader.new(type, StringIO.new(written(type, ["^ ", "x", 1], {"ts" => ["^ "]})), :select => ["ts"])
+        assert { reader.each.to_a == [["^ ", "x", 1], {"ts" => ["^ "]}] }
+      end
+
+      it "reads selected #{type} values whole" do
+        point = Transit::TaggedValue.new("point", [1, 2])
+        reader = Transit::Reader.new(type, StringIO.new(written(type, {"at" => point, "meta" => rows})),
+                                     :select => [["at", "x"], ["meta"], ["meta", "ts"]])
+        assert { reader.read == {"at" => point, "meta" => rows} }
+      end
+
+      it "applies the selection to each #{type} value and unwrapped element" do
+        reader = Transit::Reader.new(type, StringIO.new(written(type, *rows)), :select => paths)
+        assert { reader.each.to_a == selected }
+        reader = Transit::Reader.new(type, StringIO.new(written(type, rows)), :select => paths)
+        assert { reader.each(:unwrap => true).to_a == selected }
+      end
+    end
+
+    describe "selecting key paths" do
+      include_examples "selecting key paths", :json
+      include_examples "selecting key paths", :json_verbose
+      include_examples "selecting key paths", :msgpack
+
+      it "raises on an empty key path" do
+        assert { rescuing { Transit::Reader.new(:json, StringIO.new("[]"), :select => [[]]) }.is_a?(ArgumentError) }
+      end
+    end
+
+    shared_examples "lazy reading" do |type|
+      def force(value)
+        case value
+        when Transit::LazyMap  then value.to_hash.each_with_object({}) {|(k, v), h| h[k] = force(v)}
+        when Transit::LazyArray then value.to_ary.map {|v| force(v)}
+        else value
+        end
+      end
+
+      # the second row refers to keys and keywords first written in the
+      # first by cache code
+      rows = [{"user" => {"name" => "a", "email" => "a@example.com"},
+               "meta" => {:kind => :admin, "extra" => [:admin, 1.5]},
+               "at" => Transit::TaggedValue.new("point", [1, 2]),
+               "seen" => Set[:admin]},
+              {"user" => {"name" => "b", "email" => "b@example.com"},
+               "meta" => {:kind => :admin},
+               "note" => :admin,
+               "none" => [],
+               "empty" => {}}]
+
+      it "reads #{type} maps and arrays lazily" do
+        value = Transit::Reader.new(type, StringIO.new(written(type, rows)), :lazy => true).read
+        assert { Transit::LazyArray === value }
+        assert { Transit::LazyMap === value[1] }
+        assert { !value[1]["user"].decoded? }
+        assert { value[1]["note"] == :admin }
+        assert { value[1]["meta"][:kind] == :admin }
+        assert { !value[1]["user"].decoded? }
+      end
+
+      it "reads the same #{type} values lazily as it does eagerly" do
+        value = Transit::Reader.new(type, StringIO.new(written(type, rows)), :lazy => true).read
+        assert { force(value) == rows }
+        assert { value == rows }
+      end
+
+      it "reads #{type} tagged values whole" do
+        value = Transit::Reader.new(type, StringIO.new(written(type, rows)), :lazy => true).read
+        assert { value[0]["at"] == Transit::TaggedValue.new("point", [1, 2]) }
+        assert { value[0]["seen"] == Set[:admin] }
+      end
+
+      it "reads #{type} arrays that start with the string \"^ \" as arrays" do
+        values = [["^ ", 1, 2], ["^ "], {"a" => ["^ ", 1]}]
+        reader = Transit::Reader.new(type, StringIO.new(written(type, *values)), :lazy => true)
+        assert { reader.each.map {|v| force(v)}.to_a == values }
+      end
+
+      it "reads each #{type} value and unwrapped element lazily" do
+        reader = Transit::Reader.new(type, StringIO.new(written(type, rows, "scalar", [1])), :lazy => true)
+        assert { reader.each.map {|v| force(v)}.to_a == [rows, "scalar", [1]] }
+        reader = Transit::Reader.new(type, StringIO.new(written(type, rows)), :lazy => true)
+        elements = reader.each(:unwrap => true).to_a
+        assert { elements.all? {|e| Transit::LazyMap === e} }
+        assert { elements.map {|e| force(e)} == rows }
+      end
+    end
+
+    describe "lazy reading" do
+      include_examples "lazy reading", :json
+      include_examples "lazy reading", :json_verbose
+      include_examples "lazy reading", :msgpack
+
+      it "can not be combined with :select" do
+        assert { rescuing { Transit::Reader.new(:json, StringIO.new("[]"), :lazy => true, :select => ["a"]) }.is_a?(ArgumentError) }
+      end
+    end
+
+    shared_examples "parallel each" do |type|
+      messages = (1..50).map {|i| {"id" => i, :kind => :"kind#{i % 3}", "tags" => [:keyword, "tag#{i}"]}}
+
+      it "yields #{type} values parsed in parallel in order" do
+        values = []
+        Transit::Reader.new(type, StringIO.new(written(type, *messages))).each(:parallel => 3) {|v| values << v}
+        assert { values == messages }
+      end
+
+      it "stops parallel #{type} reads part way" do
+        reader = Transit::Reader.new(type, StringIO.new(written(type, *messages)))
+        assert { reader.each(:parallel => true).first(5) == messages.take(5) }
+      end
+
+      it "applies the #{type} reader options to values parsed in parallel" do
+        reader = Transit::Reader.new(type, StringIO.new(written(type, *messages)), :select => ["id"])
+        assert { reader.each(:parallel => 2).to_a == messages.map {|m| {"id" => m["id"]}} }
+      end
+
+      it "raises when a #{type} value read in parallel does not parse" do
+        reader = Transit::Reader.new(type, StringIO.new(written(type, "ok", Transit::TaggedValue.new("point", [1]))),
+                                     :handlers => {"point" => Class.new { def from_rep(v) raise "bad rep" end }.new})
+        assert { rescuing { reader.each(:parallel => 2) {|_|} }.message =~ /bad rep/ }
+      end
+    end
+
+    describe "parallel each" do
+      include_examples "parallel each", :json
+      include_examples "parallel each", :json_verbose
+      include_examples "parallel each", :msgpack
+
+      if Transit::jruby?
+        it "parses each :parallel read on the same threads" do
+          threads = java.util.concurrent.ConcurrentHashMap.new
+          handler = Class.new do
+            define_method(:from_rep) {|v| threads.put(java.lang.Thread.currentThread.getId, true); v}
+          end
+          string = written(:json, *(1..20).map {|i| Transit::TaggedValue.new("point", [i])})
+          reader = Transit::Reader.new(:json, StringIO.new(string), :handlers => {"point" => handler.new})
+          3.times do
+            assert { reader.each(:parallel => 2).to_a.size == 20 }
+            reader.reset(StringIO.new(string))
+          end
+          assert { threads.size <= 2 }
+        end
+      end
+
+      it "reads json that ends in a bare number in parallel" do
+        reader = Transit::Reader.new(:json, StringIO.new("[1] 2 3"))
+        assert { reader.each(:parallel => 2).to_a == [[1], 2, 3] }
+      end
+
+      it "can not be combined with :unwrap" do
+        reader = Transit::Reader.new(:json, StringIO.new("[]"))
+        assert { rescuing { reader.each(:parallel => true, :unwrap => true) {|_|} }.is_a?(ArgumentError) }
+      end
+    end
+
+    shared_examples "read ahead" do |type|
+      messages = (1..50).map {|i| {"id" => i, :kind => :"kind#{i % 3}", "tags" => [:keyword, "tag#{i}"]}}
+
+      it "yields #{type} values read ahead in order" do
+        values = []
+        Transit::Reader.new(type, StringIO.new(written(type, *messages))).each(:read_ahead => 4) {|v| values << v}
+        assert { values == messages }
+      end
+
+      it "reads ahead the elements of #{type} arrays with :unwrap" do
+        reader = Transit::Reader.new(type, StringIO.new(written(type, messages.take(20), messages.drop(20))))
+        assert { reader.each(:read_ahead => true, :unwrap => true).to_a == messages }
+      end
+
+      it "stops #{type} reads ahead part way" do
+        reader = Transit::Reader.new(type, StringIO.new(written(type, *messages)))
+        assert { reader.each(:read_ahead => 2).first(5) == messages.take(5) }
+      end
+
+      it "raises when a #{type} value read ahead does not parse" do
+        reader = Transit::Reader.new(type, StringIO.new(written(type, "ok", Transit::TaggedValue.new("point", [1]))),
+                                     :handlers => {"point" => Class.new { def from_rep(v) raise "bad rep" end }.new})
+        values = []
+        assert { rescuing { reader.each(:read_ahead => 2) {|v| values << v} }.message =~ /bad rep/ }
+        assert { values == ["ok"] }
+      end
+    end
+
+    describe "read ahead" do
+      include_examples "read ahead", :json
+      include_examples "read ahead", :json_verbose
+      include_examples "read ahead", :msgpack
+
+      it "reads no more than the given number of values ahead of the block" do
+        parsed = 0
+        handler = Class.new { define_method(:from_rep) {|v| parsed += 1; v} }.new
+        io = StringIO.new('', 'w+')
+        Transit::Writer.new(:json, io).write_all((1..20).map {|i| Transit::TaggedValue.new("point", [i])})
+        reader = Transit::Reader.new(:json, StringIO.new(io.string), :handlers => {"point" => handler})
+        seen = nil
+        reader.each(:read_ahead => 2) {|_| sleep 0.2; seen = parsed; break}
+        # the value yielded, two in the queue and one waiting to join them
+        assert { seen <= 4 }
+      end
+
+      it "rejects sizes below 1 and :parallel" do
+        reader = Transit::Reader.new(:json, StringIO.new("[]"))
+        assert { rescuing { reader.each(:read_ahead => 0) {|_|} }.is_a?(ArgumentError) }
+        assert { rescuing { reader.each(:read_ahead => 2, :parallel => 2) {|_|} }.is_a?(ArgumentError) }
+      end
+    end
+
     describe 'handler registration' do
       describe 'overrides' do
         describe 'ground types' do
@@ -91,6 +441,18 @@ module Transit
           assert { reader.read == my_uuid }
         end
 
+        it 'supports override of default keyword handlers' do
+          io = StringIO.new("[\"~:abc\",\"~:def\"]","r+")
+          reader = Reader.new(:json, io, :handlers => {":" => Class.new { def from_rep(v) v.upcase end}.new})
+          assert { reader.read == ["ABC", "DEF"] }
+        end
+
+        it 'supports override of stock handlers with subclasses of the stock handler' do
+          io = StringIO.new("[\"~:abc\"]","r+")
+          reader = Reader.new(:json, io, :handlers => {":" => Class.new(ReadHandlers::KeywordHandler) { def from_rep(v) super.to_s end}.new})
+          assert { reader.read == ["abc"] }
+        end
+
         it 'supports override of the default handler' do
           io = StringIO.new("~Xabc".to_json)
           reader = Reader.new(:json, io, :default_handler => Class.new { def from_rep(tag,val) raise "Unacceptable: #{s}" end}.new)
@@ -148,12 +510,77 @@ module Transit
         end
       end
 
+      describe 'shared handler configurations' do
+        it 'uses the same handlers for every reader built from equal handler options' do
+          handler = Class.new { def from_rep(v) "custom #{v}" end }.new
+          readers = 3.times.map do
+            Reader.new(:json, StringIO.new({"~#X" => "v"}.to_json), :handlers => {"X" => handler})
+          end
+          assert { readers.map(&:read) == ["custom v"] * 3 }
+        end
+
+        it 'is not affected by changes to the handlers hash after a reader is built' do
+          handlers = {"X" => Class.new { def from_rep(v) "first #{v}" end }.new}
+          first = Reader.new(:json, StringIO.new({"~#X" => "v"}.to_json), :handlers => handlers)
+          handlers["X"] = Class.new { def from_rep(v) "second #{v}" end }.new
+          second = Reader.new(:json, StringIO.new({"~#X" => "v"}.to_json), :handlers => handlers)
+          assert { first.read == "first v" }
+          assert { second.read == "second v" }
+        end
+      end
+
       describe 'Dates/Times' do
         it "delivers a UTC DateTime for a non-UTC date string" do
           io = StringIO.new(["~t2014-04-14T12:20:50.152-05:00"].to_json)
           reader = Reader.new(:json, io)
           expect(Transit::DateTimeUtil.to_millis(reader.read.first)).to eq(Transit::DateTimeUtil.to_millis(DateTime.new(2014,4,14,17,20,50.152,"Z")))
         end
+
+        it "keeps the offset of a date string" do
+          io = StringIO.new(["~t2014-04-14T12:20:50.152-05:00"].to_json)
+          date_time = Reader.new(:json, io).read.first
+          expect(date_time).to eq(DateTime.new(2014,4,14,12,20,Rational(50152,1000),"-05:00"))
+          expect(date_time.offset).to eq(Rational(-5,24))
+        end
+
+        it "reads date strings with fewer and more digits of fractional seconds" do
+          io = StringIO.new(["~t2014-04-14T12:20:50.1Z", "~t2014-04-14T12:20:50.152345Z"].to_json)
+          tenth, micros = Reader.new(:json, io).read
+          expect(tenth).to eq(DateTime.new(2014,4,14,12,20,Rational(501,10)))
+          expect(micros.sec_fraction).to eq(Rational(152345,1000000))
+        end
+
+        it "rejects an invalid date string" do
+          io = StringIO.new(["~t2014-02-30T12:20:50.152Z"].to_json)
+          expect { Reader.new(:json, io).read }.to raise_error
+        end
+
+        it "reads millis on either side of the epoch as UTC dates" do
+          {1397478050152 => "2014-04-14", -1 => "1969-12-31", -86400001 => "1969-12-30"}.each do |millis, date|
+            date_time = Reader.new(:json, StringIO.new(["~m#{millis}"].to_json)).read.first
+            expect(date_time.strftime('%Y-%m-%d')).to eq(date)
+          end
+        end
+
+        if Transit::jruby?
+          it "reads millis exactly" do
+            date_time = DateTime.new(2014,4,14,12,20,Rational(50152,1000))
+            io = StringIO.new(["~m#{Transit::DateTimeUtil.to_millis(date_time)}", "~m-1"].to_json)
+            at, before_epoch = Reader.new(:json, io).read
+            expect(at).to eq(date_time)
+            expect(before_epoch.strftime('%Q')).to eq("-1")
+          end
+
+          it "leaves a date string without a zone to DateTime.strptime" do
+            io = StringIO.new(["~t2014-01-01T00:00:00.123"].to_json)
+            assert { rescuing { Reader.new(:json, io).read }.message =~ /invalid date/ }
+          end
+
+          it "leaves a date string that ends after the '.' to DateTime.strptime" do
+            io = StringIO.new(["~t2014-01-01T00:00:00."].to_json)
+            assert { rescuing { Reader.new(:json, io).read }.message =~ /invalid date/ }
+          end
+        end
       end
 
       describe 'edge cases found in generative testing' do
@@ -166,5 +593,22 @@ module Transit
         end
       end
     end
+
+    if Transit::jruby?
+      describe 'malformed msgpack strings' do
+        it 'raises on bytes that are not UTF-8' do
+          ["\x91\xA3a\xFFb", "\x92\xA3~#'\xA3a\xFFb", "\x91\xA4~:a\xFF"].each do |bytes|
+            io = StringIO.new(bytes.force_encoding(Encoding::BINARY))
+            assert { rescuing { Reader.new(:msgpack, io).read }.message =~ /MalformedInput/ }
+          end
+        end
+
+        it 'reads valid multibyte strings' do
+          io = StringIO.new("\x91\xA4\xC3\xA9ok".force_encoding(Encoding::BINARY))
+          value = Reader.new(:msgpack, io).read.first
+          assert { value == "\u00e9ok" && value.valid_encoding? }
+        end
+      end
+    end
   end
 end
@@ -94,6 +94,24 @@ module Transit
     end
   end
 
+  class Label < ::String; end
+
+  class LabelHandler
+    def tag(_) "L" end
+    def rep(l) l.to_s end
+    def string_rep(l) rep(l) end
+  end
+
+  class LabelReadHandler
+    def from_rep(v) Label.new(v) end
+  end
+
+  class UpcaseStringHandler
+    def tag(_) "s" end
+    def rep(s) s.upcase end
+    def string_rep(s) rep(s) end
+  end
+
   shared_examples "round trips" do |type|
     round_trips("nil", nil, type)
     round_trips("a keyword", random_symbol, type)
@@ -101,6 +119,8 @@ module Transit
     round_trips("a string starting with ~", "~#{random_string}", type)
     round_trips("a string starting with ^", "^#{random_string}", type)
     round_trips("a string starting with `", "`#{random_string}", type)
+    round_trips("an empty string", "", type)
+    round_trips("a string with multibyte characters", "h\u00e9llo \u2603 \u{1D11E}", type)
     round_trips("true", true, type)
     round_trips("false", false, type)
     round_trips("a small int", 1, type)
@@ -143,7 +163,14 @@ module Transit
     round_trips("an extension struct", Person.new("First","Last",:today), type,
                 :write_handlers => {Person => PersonHandler.new},
                 :read_handlers  => {"person" => PersonReadHandler.new})
+    round_trips("a String subclass with its own handler", Label.new("label"), type,
+                :write_handlers => {Label => LabelHandler.new},
+                :read_handlers  => {"L" => LabelReadHandler.new})
+    round_trips("a string with an overridden handler", "abc", type,
+                :write_handlers => {String => UpcaseStringHandler.new},
+                :expected => "ABC")
     round_trips("a hash with simple values", {'a' => 1, 'b' => 2, 'name' => 'russ'}, type)
+    round_trips("a large hash", Hash[(1..200).map {|i| ["key#{i}", [i, {"v" => i}]]}], type)
     round_trips("a hash with Transit::Symbols", {Transit::Symbol.new("foo") => Transit::Symbol.new("bar")}, type)
     round_trips("a hash with 53 bit ints",  {2**53-1 => 2**53-2}, type)
     round_trips("a hash with 54 bit ints",  {2**53   => 2**53+1}, type)
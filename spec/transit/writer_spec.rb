@@ -14,6 +14,7 @@
 
 require 'spec_helper'
 require 'json'
+require 'weakref'
 
 module Transit
   describe Writer do
@@ -68,6 +69,11 @@ module Transit
       marshals_structure("a TaggedValue", TaggedValue.new("tag", "value"), {"~#tag" => "value"})
       marshals_structure("a ratio by Rational class", Rational(1, 3), {"~#ratio" => [1, 3]})
       marshals_structure("a Rational with big number", Rational(4953778853208128465, 636801457410081246), {"~#ratio" => ["~i4953778853208128465", "~i636801457410081246"]})
+      # BigDecimal#to_s("F"), never the 0.125E1 form
+      marshals_scalar("a BigDecimal", BigDecimal("1.25"), "~f1.25")
+      marshals_scalar("a small BigDecimal", BigDecimal("-0.000123"), "~f-0.000123")
+      marshals_scalar("a large BigDecimal", BigDecimal("12345678901234567890.5"), "~f12345678901234567890.5")
+      marshals_structure("a nested BigDecimal", [BigDecimal("1.25")], ["~f1.25"])
     end
 
     describe "custom handlers" do
@@ -105,6 +111,74 @@ module Transit
         assert { JSON.parse(io.string) == {"~#person" => { "~:first_name" => "Russ" } } }
       end
 
+      it "uses the same handlers for every writer built from equal handler options" do
+        handler = Class.new do
+          def tag(_) "person" end
+          def rep(s) s.first_name end
+          def string_rep(s) s.first_name end
+        end.new
+        [:json, :json_verbose, :json].each do |format|
+          out = StringIO.new('', 'w+')
+          Writer.new(format, out, :handlers => {Person => handler}).write(Person.new("Russ"))
+          assert { JSON.parse(out.string) == (format == :json ? ["~#person", "Russ"] : {"~#person" => "Russ"}) }
+        end
+      end
+
+      it "is not affected by changes to the handlers hash after a writer is built" do
+        handlers = {Person => Class.new { def tag(_) "first" end; def rep(s) s.first_name end }.new}
+        first = Writer.new(:json_verbose, io, :handlers => handlers)
+        handlers[Person] = Class.new { def tag(_) "second" end; def rep(s) s.first_name end }.new
+        second_io = StringIO.new('', 'w+')
+        Writer.new(:json_verbose, second_io, :handlers => handlers).write(Person.new("Russ"))
+        first.write(Person.new("Russ"))
+        assert { JSON.parse(io.string) == {"~#first" => "Russ"} }
+        assert { JSON.parse(second_io.string) == {"~#second" => "Russ"} }
+      end
+
+      it "uses a handler put into the shared handlers Hash after a writer is built" do
+        handlers = {Person => Class.new { def tag(_) "first" end; def rep(s) s.first_name end }.new}
+        Writer.new(:json_verbose, io, :handlers => handlers).write(Person.new("Russ"))
+        shared = Writer.new(:json_verbose, io, :handlers => handlers).instance_variable_get(:@marshaler).instance_variable_get(:@handlers)
+        shared[Person] = Class.new { def tag(_) "second" end; def rep(s) s.first_name end }.new
+        second_io = StringIO.new('', 'w+')
+        Writer.new(:json_verbose, second_io, :handlers => handlers).write(Person.new("Russ"))
+        assert { JSON.parse(second_io.string) == {"~#second" => "Russ"} }
+      end
+
+      it "finds handlers registered for modules included after the first write" do
+        tagged = Module.new
+        handler = Class.new do
+          def tag(_) "tagged" end
+          def rep(_) "yes" end
+          def string_rep(_) nil end
+        end
+        point_class = Class.new
+        writer = Writer.new(:json_verbose, io, :handlers => {tagged => handler.new})
+        assert { rescuing { writer.write(point_class.new) } }
+        point_class.send(:include, tagged)
+        io.rewind
+        writer.write(point_class.new)
+        assert { JSON.parse(io.string) == {"~#tagged" => "yes"} }
+      end
+
+      it "writes many throwaway classes, and lets them be collected" do
+        base = Class.new
+        handler = Class.new do
+          def tag(_) "thing" end
+          def rep(o) o.class.name.nil? end
+          def string_rep(_) nil end
+        end
+        writer = Writer.new(:json, io, :handlers => {base => handler.new})
+        first = WeakRef.new(Class.new(base))
+        writer.write(first.new)
+        2000.times { writer.write(Class.new(base).new) }
+        assert { io.string.scan('["~#thing",true]').size == 2001 }
+        if Transit::jruby?
+          5.times { java.lang.System.gc; break unless first.weakref_alive? }
+          assert { !first.weakref_alive? }
+        end
+      end
+
       it "supports verbose handlers" do
         phone_class = Class.new do
           attr_reader :p
@@ -316,4 +390,441 @@ module Transit
       end
     end
   end
+
+  describe "Writer#reset" do
+    [:json, :json_verbose, :msgpack].each do |format|
+      it "writes #{format} to the new io as a new Writer would" do
+        first = StringIO.new('', 'w+')
+        second = StringIO.new('', 'w+')
+        writer = Writer.new(format, first)
+        writer.write({:abcd => [:abcd, "first"]})
+        writer.reset(second).write({:abcd => [:abcd, "second"]})
+        assert { first.string == written(format, {:abcd => [:abcd, "first"]}) }
+        assert { second.string == written(format, {:abcd => [:abcd, "second"]}) }
+      end
+
+      it "keeps its #{format} handlers across reset" do
+        handler = Class.new do
+          def tag(_) "P" end
+          def rep(p) p.to_s end
+          def string_rep(p) rep(p) end
+        end
+        point = Struct.new(:x, :y)
+        io = StringIO.new('', 'w+')
+        writer = Writer.new(format, StringIO.new('', 'w+'), :handlers => {point => handler.new})
+        writer.write(point.new(1, 2))
+        writer.reset(io).write(point.new(3, 4))
+        assert { Reader.new(format, StringIO.new(io.string)).read ==
+                 TaggedValue.new("P", point.new(3, 4).to_s) }
+      end
+    end
+
+    it "can move between StringIO and other IOs" do
+      require 'tempfile'
+      Tempfile.open('transit') do |file|
+        io = StringIO.new('', 'w+')
+        writer = Writer.new(:json, io)
+        writer.write([1])
+        writer.reset(file).write([2])
+        writer.reset(io).write([3])
+        file.flush
+        file.rewind
+        assert { file.read == written(:json, [2]) }
+        assert { io.string == written(:json, [1]) + written(:json, [3]) }
+      end
+    end
+  end
+
+  if Transit::jruby?
+    describe "writing after an error" do
+      [:json, :json_verbose, :msgpack].each do |format|
+        [{}, {:flush => :manual}, {:session => true}].each do |opts|
+          it "drops what a failed #{format} value wrote with #{opts.inspect}" do
+            io = StringIO.new('', 'w+')
+            writer = Writer.new(format, io, opts)
+            writer.write([1, "abcd"])
+            assert { rescuing { writer.write([2, "abcd", {"efgh" => [Class.new.new]}]) }.is_a?(RuntimeError) }
+            writer.write([3, "abcd"])
+            writer.flush
+            reader = Reader.new(format, StringIO.new(io.string), :session => !!opts[:session])
+            assert { reader.each.to_a == [[1, "abcd"], [3, "abcd"]] }
+          end
+        end
+      end
+    end
+
+    describe "writing to an IO subclass" do
+      it "writes through its write method" do
+        require 'tempfile'
+        Tempfile.open('transit') do |file|
+          io = Class.new(File) do
+            attr_reader :written
+            def write(s) (@written ||= []) << s; super end
+          end.open(file.path, 'w')
+          Writer.new(:json, io).write([1, 2])
+          io.close
+          assert { io.written == ["[1,2]"] }
+          assert { File.read(file.path) == "[1,2]" }
+        end
+      end
+    end
+  end
+
+  describe "Writer#write_all and flush policies" do
+    [:json, :json_verbose, :msgpack].each do |format|
+      values = [{:abcd => [:abcd, "first"]}, [1, 2.5, nil], "three", {:abcd => :efgh}]
+
+      it "writes an Array of #{format} values as writing them one by one would" do
+        io = StringIO.new('', 'w+')
+        Writer.new(format, io).write_all(values)
+        assert { io.string == written(format, *values) }
+      end
+
+      it "writes any Enumerable of #{format} values" do
+        io = StringIO.new('', 'w+')
+        Writer.new(format, io).write_batch(values.lazy)
+        assert { io.string == written(format, *values) }
+      end
+
+      it "holds #{format} values until flush when the policy is :manual" do
+        io = StringIO.new('', 'w+')
+        writer = Writer.new(format, io, :flush => :manual)
+        writer.write(values[0])
+        writer.write_all(values[1..-1])
+        assert { io.string == "" }
+        writer.flush
+        assert { io.string == written(format, *values) }
+      end
+
+      it "flushes #{format} after every n values" do
+        io = StringIO.new('', 'w+')
+        writer = Writer.new(format, io, :flush => 2)
+        values[0..2].each {|v| writer.write(v)}
+        assert { io.string == written(format, *values[0..1]) }
+        writer.flush
+        assert { io.string == written(format, *values[0..2]) }
+      end
+
+      it "flushes #{format} once :buffer_size bytes are waiting" do
+        io = StringIO.new('', 'w+')
+        writer = Writer.new(format, io, :flush => :manual, :buffer_size => 1)
+        writer.write(values[0])
+        assert { io.string == written(format, values[0]) }
+      end
+
+      it "flushes waiting #{format} values to the old io on reset" do
+        first = StringIO.new('', 'w+')
+        writer = Writer.new(format, first, :flush => :manual)
+        writer.write(values[0])
+        writer.reset(StringIO.new('', 'w+'))
+        assert { first.string == written(format, values[0]) }
+      end
+    end
+
+    [:json, :json_verbose, :msgpack].each do |format|
+      describe "with :parallel for #{format}" do
+        values = (1..50).map {|i| [{:abcd => i, "efgh" => [:abcd, i * 1.5]}, "ijkl", i]}
+
+        it "writes what writing the values one by one writes" do
+          io = StringIO.new('', 'w+')
+          Writer.new(format, io).write_all(values, :parallel => 4)
+          assert { io.string == written(format, *values) }
+        end
+
+        it "writes any Enumerable" do
+          io = StringIO.new('', 'w+')
+          Writer.new(format, io).write_all(values.lazy, :parallel => true)
+          assert { io.string == written(format, *values) }
+        end
+
+        it "separates values from those written before and after" do
+          io = StringIO.new('', 'w+')
+          writer = Writer.new(format, io)
+          writer.write(values[0])
+          writer.write_all(values[1..-2], :parallel => 2)
+          writer.write(values[-1])
+          assert { io.string == written(format, *values) }
+          assert { Reader.new(format, StringIO.new(io.string)).each.to_a == values }
+        end
+
+        it "follows the flush policy" do
+          io = StringIO.new('', 'w+')
+          writer = Writer.new(format, io, :flush => :manual)
+          writer.write_all(values, :parallel => 2)
+          assert { io.string == "" }
+          writer.flush
+          assert { io.string == written(format, *values) }
+        end
+
+        it "raises errors from handlers" do
+          handler = Class.new do
+            def tag(_) raise "no tag" end
+          end
+          point = Struct.new(:x, :y)
+          writer = Writer.new(format, StringIO.new('', 'w+'), :handlers => {point => handler.new})
+          assert { rescuing { writer.write_all([1, point.new(1, 2), 3], :parallel => 2) }.message =~ /no tag/ }
+        end
+      end
+    end
+
+    if Transit::jruby?
+      it "encodes each :parallel batch on the same threads" do
+        threads = java.util.concurrent.ConcurrentHashMap.new
+        handler = Class.new do
+          define_method(:tag) {|_| threads.put(java.lang.Thread.currentThread.getId, true); "point"}
+          def rep(p) [p.x, p.y] end
+          def string_rep(_) nil end
+        end
+        point = Struct.new(:x, :y)
+        values = (1..20).map {|i| point.new(i, i)}
+        writer = Writer.new(:json, StringIO.new('', 'w+'), :handlers => {point => handler.new})
+        3.times { writer.write_all(values, :parallel => 2) }
+        assert { threads.size <= 2 }
+      end
+    end
+
+    it "rejects :parallel inside a streamed array" do
+      writer = Writer.new(:json, StringIO.new('', 'w+'))
+      writer.begin_array
+      assert { rescuing { writer.write_all([1, 2], :parallel => 2) }.is_a?(ArgumentError) }
+    end
+
+    it "rejects unknown flush policies" do
+      assert { rescuing { Writer.new(:json, StringIO.new, :flush => :sometimes) }.is_a?(ArgumentError) }
+      assert { rescuing { Writer.new(:json, StringIO.new, :flush => 0) }.is_a?(ArgumentError) }
+      assert { rescuing { Writer.new(:json, StringIO.new, :buffer_size => -1) }.is_a?(ArgumentError) }
+    end
+  end
+
+  describe "streaming arrays and maps" do
+    [:json, :json_verbose, :msgpack].each do |format|
+      rows = [{:abcd => "first", :efgh => [:abcd, 1]},
+              {:abcd => "second", :efgh => [:abcd, 2]},
+              {:abcd => "third", :efgh => [:efgh, 3]}]
+
+      it "writes a streamed #{format} array as writing it whole would, caching across elements" do
+        io = StringIO.new('', 'w+')
+        writer = Writer.new(format, io)
+        writer.begin_array(rows.size)
+        rows.each {|row| writer.write(row)}
+        writer.end_array
+        assert { io.string == written(format, rows) }
+      end
+
+      it "writes a streamed #{format} map as writing it whole would" do
+        map = {:abcd => rows[0], "efgh" => [1, 2], 3 => nil}
+        io = StringIO.new('', 'w+')
+        writer = Writer.new(format, io)
+        writer.begin_map(map.size)
+        map.each {|k,v| writer.write_entry(k, v)}
+        writer.end_map
+        assert { io.string == written(format, map) }
+      end
+
+      it "nests streamed #{format} maps in streamed arrays" do
+        io = StringIO.new('', 'w+')
+        writer = Writer.new(format, io)
+        writer.begin_array(rows.size)
+        rows.each do |row|
+          writer.begin_map(row.size)
+          row.each {|k,v| writer.write_entry(k, v)}
+          writer.end_map
+        end
+        writer.end_array
+        assert { io.string == written(format, rows) }
+        assert { Reader.new(format, StringIO.new(io.string)).read == rows }
+      end
+
+      it "writes #{format} values after a streamed array as separate values" do
+        io = StringIO.new('', 'w+')
+        writer = Writer.new(format, io)
+        writer.write_array(rows)
+        writer.write("after")
+        assert { io.string == written(format, rows, "after") }
+      end
+
+      it "writes #{format} arrays and maps from Enumerables" do
+        io = StringIO.new('', 'w+')
+        writer = Writer.new(format, io)
+        writer.write_array(rows.each, rows.size)
+        writer.write_map({:a => 1, :b => 2}.each, 2)
+        assert { io.string == written(format, rows, {:a => 1, :b => 2}) }
+      end
+
+      it "raises when a streamed #{format} array gets more elements than its size" do
+        writer = Writer.new(format, StringIO.new('', 'w+'))
+        writer.begin_array(1)
+        writer.write(1)
+        assert { rescuing { writer.write(2) }.message =~ /declared 1 elements but got 2/ }
+      end
+
+      it "raises when a streamed #{format} map gets more entries than its size" do
+        writer = Writer.new(format, StringIO.new('', 'w+'))
+        writer.begin_map(1)
+        writer.write_entry(:a, 1)
+        assert { rescuing { writer.write_entry(:b, 2) }.message =~ /declared 1 entries but got 2/ }
+      end
+
+      it "raises on a streamed #{format} map key that a whole map would write as a cmap" do
+        io = StringIO.new('', 'w+')
+        writer = Writer.new(format, io)
+        writer.begin_map(2)
+        writer.write_entry(:a, 1)
+        assert { rescuing { writer.write_entry([1, 2], 3) }.message =~ /as a map key/ }
+        assert { rescuing { writer.write_entry({:b => 1}, 3) }.message =~ /as a map key/ }
+        writer.write_entry(:b, 2)
+        writer.end_map
+        assert { io.string == written(format, {:a => 1, :b => 2}) }
+      end
+    end
+
+    it "writes lazy json arrays without knowing their size" do
+      io = StringIO.new('', 'w+')
+      Writer.new(:json, io).write_array((1..Float::INFINITY).lazy.map {|i| i * 2}.first(3).lazy)
+      assert { io.string == "[2,4,6]" }
+    end
+
+    it "requires a size for msgpack arrays and maps" do
+      writer = Writer.new(:msgpack, StringIO.new('', 'w+'))
+      assert { rescuing { writer.begin_array }.is_a?(ArgumentError) }
+      assert { rescuing { writer.write_map([[1, 2]].lazy) }.is_a?(ArgumentError) }
+    end
+
+    it "flushes a long streamed array in pieces" do
+      io = StringIO.new('', 'w+')
+      writer = Writer.new(:json, io, :buffer_size => 16)
+      writer.begin_array
+      10.times {|i| writer.write("element #{i}")}
+      assert { io.string.length >= 16 }
+      writer.end_array
+      assert { JSON.parse(io.string).length == 10 }
+    end
+
+    it "checks that streaming calls are balanced" do
+      writer = Writer.new(:json, StringIO.new('', 'w+'))
+      assert { rescuing { writer.end_array }.message =~ /without begin_array/ }
+      assert { rescuing { writer.write_entry(:a, 1) }.message =~ /only allowed between begin_map/ }
+      writer.begin_map
+      assert { rescuing { writer.write(1) }.message =~ /write_entry/ }
+      assert { rescuing { writer.begin_array }.message =~ /map keys or values/ }
+      assert { rescuing { writer.end_array }.message =~ /without begin_array/ }
+      assert { rescuing { writer.reset(StringIO.new) }.message =~ /middle of an array or map/ }
+    end
+  end
+
+  describe "sessions" do
+    values = (1..10).map {|i| {"abcd" => i, :efgh => [:ijkl, "mnop#{i}"], "qrst" => TaggedValue.new("point", [i])}}
+
+    def session_read(format, string, each_opts={})
+      Reader.new(format, StringIO.new(string), :session => true).each(each_opts).to_a
+    end
+
+    [:json, :json_verbose, :msgpack].each do |format|
+      it "round trips #{format} values written in a session" do
+        read = session_read(format, written_with(format, {:session => true}, values))
+        assert { read.map {|v| v.merge("qrst" => v["qrst"].rep)} == values.map {|v| v.merge("qrst" => v["qrst"].rep)} }
+      end
+
+      it "round trips #{format} sessions with reset markers" do
+        string = written_with(format, {:session => 3}, values)
+        written = written_with(format, {:session => true}, values) {|w, v| w.reset_session if v["abcd"] == 5; w.write(v)}
+        assert { session_read(format, string).map {|v| v["abcd"]} == (1..10).to_a }
+        assert { session_read(format, written).map {|v| v["abcd"]} == (1..10).to_a }
+      end
+
+      it "reads #{format} session elements with :unwrap" do
+        string = written_with(format, {:session => 1}, [values.take(5), values.drop(5)])
+        assert { session_read(format, string, :unwrap => true).map {|v| v["abcd"]} == (1..10).to_a }
+      end
+
+      it "keeps #{format} caches in step past the size of the cache" do
+        big = (1..30).map {|i| Hash[(1..100).map {|k| ["key#{i * 100 + k}", k]}]}
+        assert { session_read(format, written_with(format, {:session => true}, big)) == big }
+      end
+
+      it "starts a new #{format} session on reset" do
+        io = StringIO.new('', 'w+')
+        writer = Writer.new(format, io, :session => true)
+        writer.write(values[0])
+        second = StringIO.new('', 'w+')
+        writer.reset(second)
+        writer.write(values[1])
+        assert { session_read(format, second.string).map {|v| v["abcd"]} == [2] }
+      end
+    end
+
+    [:json, :msgpack].each do |format|
+      it "writes #{format} map keys in full once per session" do
+        assert { written_with(format, {:session => true}, values).scan("abcd").size == 1 }
+        assert { written_with(format, {:session => 5}, values).scan("abcd").size == 2 }
+        assert { written(format, *values).scan("abcd").size == 10 }
+      end
+    end
+
+    it "rejects bad options and calls" do
+      assert { rescuing { Writer.new(:json, StringIO.new, :session => 0) }.is_a?(ArgumentError) }
+      assert { rescuing { Writer.new(:json, StringIO.new).reset_session }.is_a?(RuntimeError) }
+      writer = Writer.new(:json, StringIO.new('', 'w+'), :session => true)
+      assert { rescuing { writer.write_all([1], :parallel => 2) }.is_a?(ArgumentError) }
+      assert { rescuing { Reader.new(:json, StringIO.new, :session => true, :lazy => true) }.is_a?(ArgumentError) }
+      reader = Reader.new(:json, StringIO.new("[1]"), :session => true)
+      assert { rescuing { reader.each(:parallel => 2) {|_|} }.is_a?(ArgumentError) }
+    end
+  end
+
+  describe "Transit.encode" do
+    [:json, :json_verbose, :msgpack].each do |format|
+      it "returns what a #{format} Writer writes" do
+        value = {:a => [1, "two", 3.0], "b" => nil}
+        io = StringIO.new('', 'w+')
+        Writer.new(format, io).write(value)
+        assert { Transit.encode(value, format).bytes.to_a == io.string.bytes.to_a }
+      end
+
+      it "returns a binary String for #{format}" do
+        assert { Transit.encode("h\u00e9llo", format).encoding == Encoding::BINARY }
+      end
+
+      it "does not carry state between calls for #{format}" do
+        first = Transit.encode([:abcd, :abcd], format)
+        assert { Transit.encode([:abcd, :abcd], format) == first }
+        assert { Transit.encode(1, format) != first }
+      end
+
+      it "returns the same bytes for #{format} on its first call and later ones" do
+        first = Thread.new { Transit.encode([1, "two"], format) }.value
+        Transit.encode(:three, format)
+        assert { Transit.encode([1, "two"], format) == first }
+      end
+
+      it "returns the same bytes for #{format} however many values came before" do
+        io = StringIO.new('', 'w+')
+        Writer.new(format, io).write([1, "two"])
+        Transit.encode(:three, format)
+        assert { Transit.encode([1, "two"], format).bytes.to_a == io.string.bytes.to_a }
+      end
+
+      it "returns only the next value after a #{format} value fails" do
+        expected = Transit.encode([1, "two"], format)
+        assert { rescuing { Transit.encode([1, "two", Class.new.new], format) }.is_a?(RuntimeError) }
+        assert { Transit.encode([1, "two"], format) == expected }
+      end
+
+      it "round trips through a Reader for #{format}" do
+        value = [1, "two", {:three => 3.0}]
+        assert { Reader.new(format, StringIO.new(Transit.encode(value, format))).read == value }
+      end
+    end
+
+    it "uses custom handlers" do
+      handler = Class.new do
+        def tag(_) "P" end
+        def rep(p) p.to_s end
+        def string_rep(p) rep(p) end
+      end
+      point = Struct.new(:x, :y)
+      encoded = Transit.encode(point.new(1, 2), :json, :handlers => {point => handler.new})
+      assert { JSON.parse(encoded) == ["~#'", "~P#{point.new(1, 2)}"] }
+    end
+  end
 end